@@ -0,0 +1,82 @@
+package dev.foxgirl.torrent.bencode;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Decoding and encoding whole torrent files from the torrents directory, run from the project root
+// or point the torrents.dir system property at the samples
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BencodeBenchmark {
+
+    @Param({"archlinux", "big-buck-bunny", "debian", "silly", "sintel", "ubuntu"})
+    public String torrent;
+
+    private byte[] bytes;
+    private BencodeElement element;
+    private ByteBuffer buffer;
+
+    static byte[] readTorrent(String name) throws Exception {
+        var directory = Path.of(System.getProperty("torrents.dir", "torrents"));
+        return Files.readAllBytes(directory.resolve(name + ".torrent"));
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        bytes = readTorrent(torrent);
+        element = BencodeDecoder.decodeFromBytes(bytes);
+        buffer = ByteBuffer.allocateDirect(bytes.length);
+    }
+
+    @Benchmark
+    public BencodeElement decode() throws Exception {
+        return BencodeDecoder.decodeFromBytes(bytes);
+    }
+
+    // Walks every token without building elements, compare against decode
+    @Benchmark
+    public int pull() throws Exception {
+        var reader = new BencodeReader(bytes);
+        int count = 0;
+        while (reader.next() != BencodeReader.Token.EOF) {
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return BencodeEncoder.encodeToBytes(element);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeToBuffer() {
+        buffer.clear();
+        BencodeEncoder.encodeToBuffer(element, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public int sizeOf() {
+        return BencodeEncoder.sizeOf(element);
+    }
+
+    // The lookups and the copy-then-remove that the metainfo parsers do on every dictionary
+    @Benchmark
+    public BencodeMap lookup() {
+        var info = new BencodeMap(element.asMap().get("info").asMap());
+        info.remove("name");
+        info.remove("piece length");
+        info.remove("pieces");
+        return info;
+    }
+
+}
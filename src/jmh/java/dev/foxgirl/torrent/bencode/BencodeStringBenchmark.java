@@ -0,0 +1,35 @@
+package dev.foxgirl.torrent.bencode;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Interning from several threads at once, as when torrents are parsed in parallel
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class BencodeStringBenchmark {
+
+    private static final byte[] KEY_BYTES = "piece length".getBytes(StandardCharsets.UTF_8);
+
+    @Benchmark
+    public BencodeString ofKnown() {
+        return BencodeString.of("piece length");
+    }
+
+    @Benchmark
+    public BencodeString ofUnknown() {
+        return BencodeString.of("x-custom-field");
+    }
+
+    @Benchmark
+    public BencodeString lookupBytes() {
+        return BencodeString.lookupKnown(KEY_BYTES, 0, KEY_BYTES.length);
+    }
+
+}
@@ -0,0 +1,102 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.metainfo.Info;
+import dev.foxgirl.torrent.util.Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// BitField operations on a torrent with a million pieces, about half of them set
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BitFieldBenchmark {
+
+    private static final int PIECE_COUNT = 1 << 20;
+    private static final int PIECE_LENGTH = 16 * 1024;
+    private static final int RANDOM_INDEX_COUNT = 1024;
+
+    private BitField bitfield;
+    private BitSet bitset;
+    private byte[] bytes;
+    private int[] indices;
+    private int nextIndex;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var pieces = Collections.nCopies(PIECE_COUNT, Hash.of(new byte[20]));
+        var info = new Info("benchmark", (long) PIECE_COUNT * PIECE_LENGTH, pieces, PIECE_LENGTH, null, null);
+
+        var random = new SplittableRandom(1);
+        bitset = new BitSet(PIECE_COUNT);
+        for (int i = 0; i < PIECE_COUNT; i++) {
+            if (random.nextBoolean()) bitset.set(i);
+        }
+        bitfield = new BitField(info);
+        bitfield.or(bitset);
+        bytes = bitfield.toArray();
+
+        indices = new int[RANDOM_INDEX_COUNT];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = random.nextInt(PIECE_COUNT);
+        }
+    }
+
+    private int nextIndex() {
+        return indices[nextIndex++ & (RANDOM_INDEX_COUNT - 1)];
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean get() {
+        return bitfield.get(nextIndex());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean getAndSet() {
+        int index = nextIndex();
+        return bitfield.getAndSet(index, !bitfield.get(index));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int cardinality() {
+        return bitfield.cardinality();
+    }
+
+    @Benchmark
+    public BitSet getBitSet() {
+        return bitfield.getBitSet();
+    }
+
+    @Benchmark
+    public byte[] toArray() {
+        return bitfield.toArray();
+    }
+
+    @Benchmark
+    public BitSet fromArray() {
+        return bitfield.fromArray(ByteBuffer.wrap(bytes));
+    }
+
+    @Benchmark
+    public int or() {
+        bitfield.or(bitset);
+        return bitfield.cardinality();
+    }
+
+    @Benchmark
+    public int and() {
+        bitfield.and(bitset);
+        return bitfield.cardinality();
+    }
+
+}
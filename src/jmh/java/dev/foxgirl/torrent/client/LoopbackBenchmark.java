@@ -0,0 +1,152 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.util.Hash;
+import dev.foxgirl.torrent.util.MemoryChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// End to end throughput and message latency over in-memory channels, no sockets involved.
+// A bandwidth or latency of zero means unlimited, which measures the protocol code alone.
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    private static final Hash INFO_HASH = Hash.of(new byte[20]);
+    private static final Extensions EXTENSIONS = new Extensions(new byte[8]);
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 6881);
+
+    @State(Scope.Benchmark)
+    public static class Link {
+        // Bytes per second
+        @Param({"0", "104857600"})
+        public long bandwidth;
+
+        @Param({"0", "20"})
+        public long latencyMs;
+
+        @Param({"0", "1460"})
+        public int chunkSize;
+
+        MemoryChannel.Options getOptions() {
+            return MemoryChannel.Options.of(bandwidth, latencyMs, chunkSize);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Transfer {
+        @Param({"64"})
+        public int pieceCount;
+
+        @Param({"262144"})
+        public int pieceLength;
+
+        private LoopbackHarness harness;
+
+        @Setup(Level.Trial)
+        public void setup(Link link) throws Exception {
+            harness = new LoopbackHarness(pieceCount, pieceLength, link.getOptions());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            harness.close();
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class TransferCounters {
+        public double megabytesPerSecond;
+    }
+
+    // Whole torrent download between two clients, through the piece cache, verification and upload path
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void download(Transfer transfer, TransferCounters counters) throws Exception {
+        long start = System.nanoTime();
+        transfer.harness.download().get(5, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+        double megabytes = transfer.harness.getInfo().getTotalLength() / (1024.0 * 1024.0);
+        counters.megabytesPerSecond = megabytes / (elapsed / 1e9);
+    }
+
+    private static final class EchoListener implements Protocol.Listener {
+        private Protocol protocol;
+
+        @Override
+        public void onReceive(MessageImpl message) {
+            var payload = ByteBuffer.allocate(message.getLength()).put(message.getPayload()).flip();
+            protocol.send(new MessageImpl(message.getType(), payload));
+        }
+        @Override
+        public void onConnect(Identity identity) {}
+        @Override
+        public void onClose(Throwable cause) {}
+    }
+
+    private static final class CountingListener implements Protocol.Listener {
+        private volatile CountDownLatch latch;
+
+        @Override
+        public void onReceive(MessageImpl message) {
+            latch.countDown();
+        }
+        @Override
+        public void onConnect(Identity identity) {}
+        @Override
+        public void onClose(Throwable cause) {}
+    }
+
+    @State(Scope.Benchmark)
+    public static class Connection {
+        private ExecutorService executor;
+        private Protocol client;
+        private Protocol server;
+        private final CountingListener listener = new CountingListener();
+
+        @Setup(Level.Trial)
+        public void setup(Link link) throws Exception {
+            executor = Executors.newFixedThreadPool(2);
+            var channels = MemoryChannel.pair(link.getOptions());
+            var echo = new EchoListener();
+            client = new AsyncProtocol(channels.first(), listener, executor);
+            server = new AsyncProtocol(channels.second(), echo, executor);
+            echo.protocol = server;
+            var identity = new Identity(new byte[20], ADDRESS);
+            CompletableFuture.allOf(
+                server.establishIncoming(identity, EXTENSIONS, ADDRESS),
+                client.establishOutgoing(identity, EXTENSIONS, ADDRESS, INFO_HASH)
+            ).get(10, TimeUnit.SECONDS);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            client.close();
+            server.close();
+            executor.shutdown();
+        }
+    }
+
+    // One message echoed back by the other end, the latency of a single round trip
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip(Connection connection) throws Exception {
+        var latch = new CountDownLatch(1);
+        connection.listener.latch = latch;
+        connection.client.send(new MessageImpl(MessageType.HAVE, ByteBuffer.allocate(4).putInt(0).flip()));
+        if (!latch.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Round trip timed out");
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.metainfo.Info;
+import dev.foxgirl.torrent.storage.MemoryStorage;
+import dev.foxgirl.torrent.util.Hash;
+import dev.foxgirl.torrent.util.MemoryChannel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+
+// Two clients connected through in-memory channels, one seeding a torrent of random data to the other
+final class LoopbackHarness implements AutoCloseable {
+
+    private static final InetSocketAddress SEEDER_ADDRESS = new InetSocketAddress("127.0.0.1", 6881);
+    private static final InetSocketAddress LEECHER_ADDRESS = new InetSocketAddress("127.0.0.1", 6882);
+
+    private final Info info;
+    private final MemoryChannel.Options options;
+    private final Client seeder;
+    private final Client leecher;
+
+    LoopbackHarness(int pieceCount, int pieceLength, MemoryChannel.Options options) throws IOException {
+        this.options = options;
+
+        var random = new SplittableRandom(1);
+        var data = new byte[pieceCount * pieceLength];
+        random.nextBytes(data);
+        var pieces = new ArrayList<Hash>(pieceCount);
+        for (int i = 0; i < pieceCount; i++) {
+            pieces.add(Hash.digest(Hash.Algorithm.SHA1, data, i * pieceLength, pieceLength));
+        }
+        info = new Info("loopback", data.length, pieces, pieceLength, null, null);
+
+        seeder = new Client(createIdentity(1, SEEDER_ADDRESS), new ClientExecutors(2, 2, false));
+        leecher = new Client(createIdentity(2, LEECHER_ADDRESS), new ClientExecutors(2, 2, false));
+
+        var storage = new MemoryStorage(info);
+        storage.write(0, ByteBuffer.wrap(data));
+        seeder.createSwarm(info, storage).getBitField().setAll();
+    }
+
+    private static Identity createIdentity(int seed, InetSocketAddress address) {
+        var id = new byte[20];
+        new SplittableRandom(seed).nextBytes(id);
+        return new Identity(id, address);
+    }
+
+    Info getInfo() {
+        return info;
+    }
+
+    Client getSeeder() {
+        return seeder;
+    }
+
+    Client getLeecher() {
+        return leecher;
+    }
+
+    // Connects the leecher to the seeder and downloads the whole torrent into a fresh swarm
+    CompletableFuture<Void> download() {
+        var existing = leecher.getSwarm(info.getInfoHash());
+        if (existing != null) {
+            existing.close();
+        }
+        var swarm = leecher.createSwarm(info);
+
+        var waiters = new CompletableFuture<?>[info.getPieceCount()];
+        for (int i = 0; i < waiters.length; i++) {
+            waiters[i] = swarm.awaitPiece(i);
+        }
+
+        var channels = MemoryChannel.pair(options);
+        var seederPeer = new Peer(seeder, channels.first());
+        var leecherPeer = new Peer(leecher, channels.second());
+        var incoming = seederPeer.establishIncoming(LEECHER_ADDRESS);
+        var outgoing = leecherPeer.establishOutgoing(SEEDER_ADDRESS, info.getInfoHash());
+
+        // The seeder's choker unchokes the leecher as soon as it becomes interested
+        return CompletableFuture.allOf(incoming, outgoing)
+            .thenCompose(ignored -> CompletableFuture.allOf(waiters))
+            .whenComplete((ignored, cause) -> {
+                leecherPeer.close();
+                seederPeer.close();
+            });
+    }
+
+    @Override
+    public void close() {
+        leecher.close();
+        seeder.close();
+    }
+
+}
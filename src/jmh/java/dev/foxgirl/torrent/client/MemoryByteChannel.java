@@ -0,0 +1,108 @@
+package dev.foxgirl.torrent.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+// Blocking in-memory channel, two of them share a pair of ring buffers, one for each direction
+final class MemoryByteChannel implements ByteChannel {
+
+    private static final int CAPACITY = 256 * 1024;
+
+    private static final class Ring {
+        private final byte[] bytes = new byte[CAPACITY];
+        private int head;
+        private int size;
+        private boolean isClosed;
+
+        private synchronized int read(ByteBuffer buffer) throws IOException {
+            while (size == 0) {
+                if (isClosed) return -1;
+                await();
+            }
+            int count = Math.min(size, buffer.remaining());
+            for (int i = 0; i < count; ) {
+                int chunk = Math.min(count - i, CAPACITY - head);
+                buffer.put(bytes, head, chunk);
+                head = (head + chunk) % CAPACITY;
+                i += chunk;
+            }
+            size -= count;
+            notifyAll();
+            return count;
+        }
+
+        private synchronized int write(ByteBuffer buffer) throws IOException {
+            while (size == CAPACITY && !isClosed) {
+                await();
+            }
+            if (isClosed) throw new ClosedChannelException();
+            int count = Math.min(CAPACITY - size, buffer.remaining());
+            for (int i = 0; i < count; ) {
+                int tail = (head + size) % CAPACITY;
+                int chunk = Math.min(count - i, CAPACITY - tail);
+                buffer.get(bytes, tail, chunk);
+                size += chunk;
+                i += chunk;
+            }
+            notifyAll();
+            return count;
+        }
+
+        private synchronized void close() {
+            isClosed = true;
+            notifyAll();
+        }
+
+        private void await() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException cause) {
+                Thread.currentThread().interrupt();
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    static MemoryByteChannel[] pair() {
+        var forward = new Ring();
+        var backward = new Ring();
+        return new MemoryByteChannel[] {
+            new MemoryByteChannel(backward, forward),
+            new MemoryByteChannel(forward, backward),
+        };
+    }
+
+    private final Ring incoming;
+    private final Ring outgoing;
+    private volatile boolean isOpen = true;
+
+    private MemoryByteChannel(Ring incoming, Ring outgoing) {
+        this.incoming = incoming;
+        this.outgoing = outgoing;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        return incoming.read(buffer);
+    }
+
+    @Override
+    public int write(ByteBuffer buffer) throws IOException {
+        return outgoing.write(buffer);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    @Override
+    public void close() {
+        isOpen = false;
+        incoming.close();
+        outgoing.close();
+    }
+
+}
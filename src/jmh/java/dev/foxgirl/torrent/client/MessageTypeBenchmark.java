@@ -0,0 +1,26 @@
+package dev.foxgirl.torrent.client;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Message type lookup runs once per received message, this covers every ID including unknown ones
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageTypeBenchmark {
+
+    @Benchmark
+    @OperationsPerInvocation(256)
+    public int valueOf() {
+        int found = 0;
+        for (int id = 0; id < 256; id++) {
+            if (MessageType.valueOf(id) != null) found++;
+        }
+        return found;
+    }
+
+}
@@ -0,0 +1,197 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.util.Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Compares the completion handler engine against the blocking engine over loopback sockets.
+// Run on JDK 21+ for the blocking engine to use virtual threads.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolEngineBenchmark {
+
+    private static final Hash INFO_HASH = Hash.of(new byte[20]);
+    private static final Extensions EXTENSIONS = new Extensions(new byte[8]);
+
+    private static final class EchoListener implements Protocol.Listener {
+        private Protocol protocol;
+
+        @Override
+        public void onReceive(MessageImpl message) {
+            var payload = ByteBuffer.allocate(message.getLength()).put(message.getPayload()).flip();
+            protocol.send(new MessageImpl(message.getType(), payload));
+        }
+        @Override
+        public void onConnect(Identity identity) {}
+        @Override
+        public void onClose(Throwable cause) {}
+    }
+
+    private static final class CountingListener implements Protocol.Listener {
+        private volatile CountDownLatch latch;
+
+        @Override
+        public void onReceive(MessageImpl message) {
+            latch.countDown();
+        }
+        @Override
+        public void onConnect(Identity identity) {}
+        @Override
+        public void onClose(Throwable cause) {}
+    }
+
+    private record Pair(Protocol client, Protocol server) {
+        private void close() {
+            client.close();
+            server.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Connections {
+        @Param({"ASYNC", "BLOCKING"})
+        public Client.Engine engine;
+
+        @Param({"1", "64", "1024"})
+        public int connectionCount;
+
+        private ClientExecutors executors;
+        private final CountingListener listener = new CountingListener();
+        private final List<Pair> pairs = new ArrayList<>();
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            executors = createExecutors(engine);
+            pairs.addAll(connect(executors, engine, connectionCount, listener));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pairs.forEach(Pair::close);
+            executors.close();
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class CpuCounters {
+        // Process CPU time over the iteration, across all threads
+        public long cpuTimeMs;
+
+        private long startTime;
+
+        @Setup(Level.Iteration)
+        public void start() {
+            startTime = getProcessCpuTime();
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() {
+            cpuTimeMs = TimeUnit.NANOSECONDS.toMillis(getProcessCpuTime() - startTime);
+        }
+    }
+
+    private static long getProcessCpuTime() {
+        var bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    private static ClientExecutors createExecutors(Client.Engine engine) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        return new ClientExecutors(threads, 2, engine == Client.Engine.BLOCKING);
+    }
+
+    private static List<Pair> connect(ClientExecutors executors, Client.Engine engine, int count, Protocol.Listener listener) throws Exception {
+        var pairs = new ArrayList<Pair>(count);
+        if (engine == Client.Engine.ASYNC) {
+            try (var server = executors.openServerSocketChannel().bind(new InetSocketAddress("127.0.0.1", 0), count)) {
+                var address = (InetSocketAddress) server.getLocalAddress();
+                for (int i = 0; i < count; i++) {
+                    var accepted = server.accept();
+                    var channel = executors.openSocketChannel();
+                    channel.connect(address).get();
+                    pairs.add(establish(
+                        new AsyncProtocol(channel, listener, executors.getProtocolExecutor()),
+                        echo -> new AsyncProtocol(accepted.get(), echo, executors.getProtocolExecutor()),
+                        address
+                    ));
+                }
+            }
+        } else {
+            try (var server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0), count)) {
+                var address = (InetSocketAddress) server.getLocalAddress();
+                for (int i = 0; i < count; i++) {
+                    var channel = SocketChannel.open(address);
+                    var accepted = server.accept();
+                    pairs.add(establish(
+                        new BlockingProtocol(channel, listener, executors.getBlockingExecutor()),
+                        echo -> new BlockingProtocol(accepted, echo, executors.getBlockingExecutor()),
+                        address
+                    ));
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private interface ServerFactory {
+        Protocol create(EchoListener listener) throws Exception;
+    }
+
+    private static Pair establish(Protocol client, ServerFactory serverFactory, InetSocketAddress address) throws Exception {
+        var echo = new EchoListener();
+        var server = serverFactory.create(echo);
+        echo.protocol = server;
+        var identity = new Identity(new byte[20], address);
+        var serverFuture = server.establishIncoming(identity, EXTENSIONS, address);
+        var clientFuture = client.establishOutgoing(identity, EXTENSIONS, address, INFO_HASH);
+        CompletableFuture.allOf(serverFuture, clientFuture).get(10, TimeUnit.SECONDS);
+        return new Pair(client, server);
+    }
+
+    // Sends one message on every connection and waits for all of them to be echoed back
+    @Benchmark
+    public void roundTrip(Connections connections, CpuCounters counters) throws Exception {
+        var latch = new CountDownLatch(connections.pairs.size());
+        connections.listener.latch = latch;
+        var payload = ByteBuffer.allocate(4).putInt(0).flip();
+        for (var pair : connections.pairs) {
+            pair.client().send(new MessageImpl(MessageType.HAVE, payload.duplicate()));
+        }
+        if (!latch.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Round trip timed out");
+        }
+    }
+
+    // Connection setup cost, measured once per iteration since it opens many sockets
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public int establish(Connections connections) throws Exception {
+        var pairs = connect(connections.executors, connections.engine, connections.connectionCount, new CountingListener());
+        pairs.forEach(Pair::close);
+        return pairs.size();
+    }
+
+}
@@ -0,0 +1,93 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.util.Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Message framing and parsing through a connected pair of protocols over an in-memory channel,
+// so the numbers cover the protocol's own buffering and dispatch without any socket overhead
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProtocolFramingBenchmark {
+
+    private static final int BATCH_SIZE = 1024;
+
+    private static final Hash INFO_HASH = Hash.of(new byte[20]);
+    private static final Extensions EXTENSIONS = new Extensions(new byte[8]);
+
+    private static final class CountingListener implements Protocol.Listener {
+        private volatile CountDownLatch latch;
+
+        @Override
+        public void onReceive(MessageImpl message) {
+            latch.countDown();
+        }
+        @Override
+        public void onConnect(Identity identity) {}
+        @Override
+        public void onClose(Throwable cause) {}
+    }
+
+    // Small control messages, or 16 KiB blocks like piece messages
+    @Param({"0", "4", "16384"})
+    public int payloadLength;
+
+    private ExecutorService executor;
+    private Protocol sender;
+    private Protocol receiver;
+    private final CountingListener listener = new CountingListener();
+    private ByteBuffer payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        executor = Executors.newCachedThreadPool(runnable -> {
+            var thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        var channels = MemoryByteChannel.pair();
+        sender = new BlockingProtocol(channels[0], new CountingListener(), executor);
+        receiver = new BlockingProtocol(channels[1], listener, executor);
+
+        var address = new InetSocketAddress("127.0.0.1", 6881);
+        var identity = new Identity(new byte[20], address);
+        var receiverFuture = receiver.establishIncoming(identity, EXTENSIONS, address);
+        var senderFuture = sender.establishOutgoing(identity, EXTENSIONS, address, INFO_HASH);
+        CompletableFuture.allOf(receiverFuture, senderFuture).get(10, TimeUnit.SECONDS);
+
+        payload = ByteBuffer.allocate(payloadLength);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void sendAndReceive() throws Exception {
+        var latch = new CountDownLatch(BATCH_SIZE);
+        listener.latch = latch;
+        var type = payloadLength == 0 ? MessageType.INTERESTED : payloadLength == 4 ? MessageType.HAVE : MessageType.PIECE;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            sender.send(new MessageImpl(type, payload.duplicate()));
+        }
+        if (!latch.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Messages were not received");
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package dev.foxgirl.torrent.dht;
+
+import dev.foxgirl.torrent.util.Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Iterative lookups between in-process nodes over real UDP sockets on loopback, so the score is the
+// cost of KRPC encoding, routing table updates and lookup bookkeeping rather than network latency
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DhtBenchmark {
+
+    private static final int ANNOUNCE_PORT = 6881;
+    private static final long OPERATION_TIMEOUT_MS = 30 * 1000;
+
+    @Param({"8", "32"})
+    public int nodeCount;
+
+    private DhtLoopbackHarness harness;
+    private Hash infoHash;
+    private int nextNode;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        harness = new DhtLoopbackHarness(nodeCount);
+        infoHash = harness.nextInfoHash();
+
+        // announce_peer is sent without waiting for replies, so poll until another node can find the peer
+        harness.getNode(0).announce(infoHash, ANNOUNCE_PORT).get(OPERATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        var expected = new InetSocketAddress("127.0.0.1", ANNOUNCE_PORT);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OPERATION_TIMEOUT_MS);
+        while (!lookup(harness.getNode(nodeCount - 1)).contains(expected)) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Announced peer was never found by get_peers");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        harness.close();
+    }
+
+    private List<InetSocketAddress> lookup(DhtNode node) throws Exception {
+        return node.getPeers(infoHash).get(OPERATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private DhtNode nextNode() {
+        var node = harness.getNode(nextNode);
+        nextNode = (nextNode + 1) % nodeCount;
+        return node;
+    }
+
+    // Full get_peers lookup for a stored infohash, started from each node in turn
+    @Benchmark
+    public List<InetSocketAddress> getPeers() throws Exception {
+        return lookup(nextNode());
+    }
+
+    // get_peers lookup followed by announce_peer to the closest nodes, for a fresh infohash each time
+    @Benchmark
+    public List<InetSocketAddress> announce() throws Exception {
+        return nextNode().announce(harness.nextInfoHash(), ANNOUNCE_PORT).get(OPERATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+}
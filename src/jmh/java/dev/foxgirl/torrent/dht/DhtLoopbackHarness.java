@@ -0,0 +1,82 @@
+package dev.foxgirl.torrent.dht;
+
+import dev.foxgirl.torrent.util.Hash;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Several DHT nodes bound to ephemeral ports on loopback in one process, bootstrapped off each other
+final class DhtLoopbackHarness implements AutoCloseable {
+
+    private static final long BOOTSTRAP_TIMEOUT_MS = 60 * 1000;
+
+    private final ExecutorService receiveExecutor;
+    private final List<DhtNode> nodes;
+    private final SplittableRandom random = new SplittableRandom(1);
+
+    DhtLoopbackHarness(int nodeCount) throws Exception {
+        if (nodeCount < 2) {
+            throw new IllegalArgumentException("Node count must be at least 2");
+        }
+
+        // Each node's receive loop blocks for its whole lifetime
+        receiveExecutor = Executors.newCachedThreadPool();
+        nodes = new ArrayList<>(nodeCount);
+        try {
+            for (int i = 0; i < nodeCount; i++) {
+                nodes.add(new DhtNode(nextID(), new InetSocketAddress("127.0.0.1", 0), receiveExecutor));
+            }
+            bootstrap();
+        } catch (Exception cause) {
+            close();
+            throw cause;
+        }
+    }
+
+    private byte[] nextID() {
+        var id = new byte[RoutingTable.ID_LENGTH];
+        random.nextBytes(id);
+        return id;
+    }
+
+    // Every node joins through the first one, then the first node looks itself up again to learn
+    // about the nodes that joined after it
+    private void bootstrap() throws Exception {
+        var entry = List.of(nodes.get(0).getLocalAddress());
+        for (int i = 1; i < nodes.size(); i++) {
+            nodes.get(i).bootstrap(entry).get(BOOTSTRAP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        nodes.get(0).bootstrap(List.of(nodes.get(1).getLocalAddress())).get(BOOTSTRAP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    List<DhtNode> getNodes() {
+        return nodes;
+    }
+
+    DhtNode getNode(int index) {
+        return nodes.get(index);
+    }
+
+    int getNodeCount() {
+        return nodes.size();
+    }
+
+    Hash nextInfoHash() {
+        return Hash.of(nextID());
+    }
+
+    @Override
+    public void close() {
+        for (var node : nodes) {
+            node.close();
+        }
+        receiveExecutor.shutdownNow();
+    }
+
+}
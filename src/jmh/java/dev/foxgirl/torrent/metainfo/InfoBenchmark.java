@@ -0,0 +1,52 @@
+package dev.foxgirl.torrent.metainfo;
+
+import dev.foxgirl.torrent.bencode.BencodeDecoder;
+import dev.foxgirl.torrent.bencode.BencodeElement;
+import dev.foxgirl.torrent.bencode.BencodeEncoder;
+import dev.foxgirl.torrent.util.Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Building Info from already decoded Bencode, with and without calculating the infohash,
+// and the infohash on its own, which is dominated by hashing the pieces string
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InfoBenchmark {
+
+    @Param({"archlinux", "big-buck-bunny", "debian", "silly", "sintel", "ubuntu"})
+    public String torrent;
+
+    private BencodeElement infoElement;
+    private Hash infoHash;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        var directory = Path.of(System.getProperty("torrents.dir", "torrents"));
+        var element = BencodeDecoder.decodeFromBytes(Files.readAllBytes(directory.resolve(torrent + ".torrent")));
+        infoElement = element.asMap().get("info");
+        infoHash = Info.fromBencode(infoElement).getInfoHash();
+    }
+
+    @Benchmark
+    public Info fromBencode() throws Exception {
+        return Info.fromBencode(infoElement);
+    }
+
+    @Benchmark
+    public Info fromBencodeWithKnownHash() throws Exception {
+        return Info.fromBencode(infoElement, infoHash);
+    }
+
+    @Benchmark
+    public Hash infoHash() {
+        return Hash.digest(Hash.Algorithm.SHA1, BencodeEncoder.encodeToBytes(infoElement));
+    }
+
+}
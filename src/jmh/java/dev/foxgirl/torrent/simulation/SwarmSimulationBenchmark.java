@@ -0,0 +1,41 @@
+package dev.foxgirl.torrent.simulation;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Whole swarm simulations, the score is the wall time of one run and the counters describe the
+// simulated swarm. Runs are deterministic, so the counters only change when the algorithms do.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SwarmSimulationBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int leecherCount;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public double completionP50Seconds;
+        public double completionP90Seconds;
+        public double completionMaxSeconds;
+        public double minEntropy;
+        public double cpuMillisPerSimulatedSecond;
+    }
+
+    @Benchmark
+    public SwarmSimulator.Report simulate(Counters counters) {
+        var report = new SwarmSimulator(SwarmSimulator.Settings.defaults(leecherCount)).run();
+        counters.completionP50Seconds = report.getCompletionPercentile(50);
+        counters.completionP90Seconds = report.getCompletionPercentile(90);
+        counters.completionMaxSeconds = report.getCompletionPercentile(100);
+        counters.minEntropy = report.minEntropy();
+        counters.cpuMillisPerSimulatedSecond = report.getCpuMillisPerSimulatedSecond();
+        return report;
+    }
+
+}
@@ -0,0 +1,431 @@
+package dev.foxgirl.torrent.simulation;
+
+import dev.foxgirl.torrent.client.BitField;
+import dev.foxgirl.torrent.client.Choker;
+import dev.foxgirl.torrent.client.PieceAvailability;
+import dev.foxgirl.torrent.client.PiecePicker;
+import dev.foxgirl.torrent.metainfo.Info;
+import dev.foxgirl.torrent.util.Clock;
+import dev.foxgirl.torrent.util.Hash;
+import dev.foxgirl.torrent.util.RateMeter;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Runs the client's piece picker and choker for thousands of virtual peers on a virtual clock.
+// Transfers are modelled per piece: a piece takes a request round trip plus its length over the
+// smaller of the uploader's and downloader's bandwidth share, fixed when the transfer starts.
+// Each peer keeps one piece in flight per connection, and endgame duplicates are not modelled.
+public final class SwarmSimulator {
+
+    // Bandwidths in bytes per second, each peer's is drawn from [0.5, 1.5] times the setting
+    public record Settings(
+            int leecherCount,
+            int seedCount,
+            int pieceCount,
+            int pieceLength,
+            long uploadBandwidth,
+            long downloadBandwidth,
+            long seedUploadBandwidth,
+            long latencyMs,
+            int connectionCount,
+            long arrivalWindowMs,
+            long rechokeIntervalMs,
+            long maxDurationMs,
+            long seed
+    ) {
+        public static @NotNull Settings defaults(int leecherCount) {
+            return new Settings(
+                leecherCount, Math.max(1, leecherCount / 100), 512, 256 * 1024,
+                256 * 1024, 2 * 1024 * 1024, 4 * 1024 * 1024,
+                50, 40, 60 * 1000, 10 * 1000, 24 * 60 * 60 * 1000L, 1
+            );
+        }
+    }
+
+    public record Report(
+            int leecherCount,
+            int completedCount,
+            double simulatedSeconds,
+            double[] completionSeconds,
+            double minEntropy,
+            double meanEntropy,
+            long eventCount,
+            double cpuMillis
+    ) {
+        public double getCompletionPercentile(double percentile) {
+            if (completionSeconds.length == 0) {
+                return Double.NaN;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * completionSeconds.length) - 1;
+            return completionSeconds[Math.max(0, Math.min(index, completionSeconds.length - 1))];
+        }
+
+        public double getCpuMillisPerSimulatedSecond() {
+            return simulatedSeconds > 0.0 ? cpuMillis / simulatedSeconds : 0.0;
+        }
+
+        @Override
+        public @NotNull String toString() {
+            return String.format(
+                "Report{leechers=%d, completed=%d, simulated=%.1fs, completion p10=%.1fs p50=%.1fs p90=%.1fs p99=%.1fs max=%.1fs, "
+                    + "entropy min=%.3f mean=%.3f, events=%d, cpu=%.0fms, cpuPerSimulatedSecond=%.3fms}",
+                leecherCount, completedCount, simulatedSeconds,
+                getCompletionPercentile(10), getCompletionPercentile(50), getCompletionPercentile(90),
+                getCompletionPercentile(99), getCompletionPercentile(100),
+                minEntropy, meanEntropy, eventCount, cpuMillis, getCpuMillisPerSimulatedSecond()
+            );
+        }
+    }
+
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    private static final BitSet NO_PIECES = new BitSet();
+    private static final int[] NO_SUGGESTED_PIECES = new int[0];
+
+    private final Settings settings;
+    private final Random random;
+    private final VirtualClock clock = new VirtualClock();
+    private final Info info;
+    private final List<Node> nodes = new ArrayList<>();
+
+    // Copies of each piece among the peers that have joined, for the entropy samples
+    private final int[] pieceCopies;
+    private int totalCopies;
+
+    private int remainingCount;
+    private double entropySum;
+    private int entropySampleCount;
+    private double minEntropy = 1.0;
+
+    public SwarmSimulator(@NotNull Settings settings) {
+        Objects.requireNonNull(settings, "Argument 'settings'");
+        this.settings = settings;
+        this.random = new Random(settings.seed());
+        var pieces = Collections.nCopies(settings.pieceCount(), Hash.of(new byte[20]));
+        this.info = new Info("simulation", (long) settings.pieceCount() * settings.pieceLength(), pieces, settings.pieceLength(), null, null);
+        this.pieceCopies = new int[settings.pieceCount()];
+    }
+
+    // One direction of a connection, pieces flow from the uploader to the downloader
+    private static final class Link {
+        private final Node uploader;
+        private final Node downloader;
+        private final RateMeter rate;
+        private Link reverse;
+
+        private boolean isChoking = true;
+        private boolean isInterested = false;
+        private boolean isBusy = false;
+
+        private Link(Node uploader, Node downloader, Clock clock) {
+            this.uploader = uploader;
+            this.downloader = downloader;
+            this.rate = new RateMeter(clock);
+        }
+    }
+
+    private final class Node implements PiecePicker.Context {
+        private final BitField bitfield = new BitField(info);
+        private final PieceAvailability availability = new PieceAvailability(info.getPieceCount());
+        private final PiecePicker picker = new PiecePicker(this);
+        private final Choker<Link> choker = new Choker<>(Choker.DEFAULT_SLOT_COUNT, new Random(random.nextLong()));
+
+        private final long uploadBandwidth;
+        private final long downloadBandwidth;
+
+        // Links this node downloads over, and links it uploads over
+        private final List<Link> incoming = new ArrayList<>();
+        private final List<Link> outgoing = new ArrayList<>();
+
+        private long joinTime = -1;
+        private long completeTime = -1;
+        private int uploadCount;
+        private int downloadCount;
+
+        private Node(long uploadBandwidth, long downloadBandwidth) {
+            this.uploadBandwidth = uploadBandwidth;
+            this.downloadBandwidth = downloadBandwidth;
+        }
+
+        private boolean isJoined() {
+            return joinTime >= 0;
+        }
+
+        private boolean isComplete() {
+            return bitfield.isComplete();
+        }
+
+        @Override
+        public @NotNull Info getInfo() {
+            return info;
+        }
+
+        @Override
+        public @NotNull BitField getBitField() {
+            return bitfield;
+        }
+
+        @Override
+        public @NotNull PieceAvailability getAvailability() {
+            return availability;
+        }
+
+        @Override
+        public double @NotNull [] getPeerRates() {
+            return incoming.stream().mapToDouble(link -> link.rate.getRate()).toArray();
+        }
+
+        @Override
+        public @NotNull Clock getClock() {
+            return clock;
+        }
+
+        @Override
+        public @NotNull Random getRandom() {
+            return random;
+        }
+    }
+
+    private long vary(long bandwidth) {
+        return Math.max(1, (long) (bandwidth * (0.5 + random.nextDouble())));
+    }
+
+    private void connect(Node a, Node b) {
+        var forward = new Link(a, b, clock);
+        var backward = new Link(b, a, clock);
+        forward.reverse = backward;
+        backward.reverse = forward;
+        a.outgoing.add(forward);
+        b.incoming.add(forward);
+        b.outgoing.add(backward);
+        a.incoming.add(backward);
+    }
+
+    private void setup() {
+        for (int i = 0; i < settings.seedCount(); i++) {
+            var node = new Node(vary(settings.seedUploadBandwidth()), vary(settings.downloadBandwidth()));
+            node.bitfield.setAll();
+            nodes.add(node);
+        }
+        for (int i = 0; i < settings.leecherCount(); i++) {
+            nodes.add(new Node(vary(settings.uploadBandwidth()), vary(settings.downloadBandwidth())));
+        }
+
+        // Random graph where every node opens connectionCount / 2 connections, like a tracker handing out peers
+        var connected = new HashSet<Long>();
+        int opened = Math.min(settings.connectionCount() / 2, nodes.size() - 1);
+        for (int i = 0; i < nodes.size(); i++) {
+            for (int n = 0; n < opened; n++) {
+                int j = random.nextInt(nodes.size());
+                if (j == i || !connected.add((long) Math.min(i, j) << 32 | Math.max(i, j))) continue;
+                connect(nodes.get(i), nodes.get(j));
+            }
+        }
+
+        remainingCount = settings.leecherCount();
+        for (int i = 0; i < nodes.size(); i++) {
+            var node = nodes.get(i);
+            long delayMs = i < settings.seedCount() ? 0 : (long) (random.nextDouble() * settings.arrivalWindowMs());
+            clock.scheduleMillis(delayMs, () -> join(node));
+        }
+        clock.scheduleMillis(SAMPLE_INTERVAL_MS, this::sample);
+    }
+
+    private void join(Node node) {
+        node.joinTime = clock.nanoTime();
+        var pieces = node.bitfield.getBitSet();
+        for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1)) {
+            pieceCopies[i]++;
+            totalCopies++;
+        }
+        if (node.isComplete()) {
+            node.completeTime = node.joinTime;
+        }
+
+        // Bitfields are exchanged with every neighbour that is already there
+        for (var link : node.outgoing) {
+            if (!link.downloader.isJoined()) continue;
+            link.downloader.availability.increment(pieces);
+            node.availability.increment(link.downloader.bitfield.getBitSet());
+        }
+        for (var link : node.outgoing) {
+            if (link.downloader.isJoined()) updateInterest(link);
+        }
+        for (var link : node.incoming) {
+            if (link.uploader.isJoined()) updateInterest(link);
+        }
+
+        long offsetMs = (long) (random.nextDouble() * settings.rechokeIntervalMs());
+        clock.scheduleMillis(offsetMs, () -> rechoke(node));
+    }
+
+    private void updateInterest(Link link) {
+        boolean isInterested = false;
+        if (!link.downloader.isComplete()) {
+            var wanted = link.uploader.bitfield.getBitSet();
+            wanted.andNot(link.downloader.bitfield.getBitSet());
+            isInterested = !wanted.isEmpty();
+        }
+        if (isInterested == link.isInterested) {
+            return;
+        }
+        link.isInterested = isInterested;
+        if (isInterested) {
+            if (link.uploader.choker.tryUnchoke(link)) {
+                unchoke(link);
+            }
+        } else {
+            link.uploader.choker.remove(link);
+        }
+    }
+
+    private void unchoke(Link link) {
+        if (!link.isChoking) {
+            return;
+        }
+        link.isChoking = false;
+        // The unchoke message takes one way latency to arrive
+        clock.scheduleMillis(settings.latencyMs(), () -> request(link));
+    }
+
+    private void request(Link link) {
+        var downloader = link.downloader;
+        if (link.isBusy || link.isChoking || !link.isInterested || downloader.isComplete()) {
+            return;
+        }
+        int index = downloader.picker.pick(link.uploader.bitfield.getBitSet(), NO_PIECES, NO_SUGGESTED_PIECES, false, link.rate.getRate());
+        if (index < 0) {
+            return;
+        }
+        link.isBusy = true;
+        link.uploader.uploadCount++;
+        downloader.downloadCount++;
+
+        double bandwidth = Math.min(
+            (double) link.uploader.uploadBandwidth / link.uploader.uploadCount,
+            (double) downloader.downloadBandwidth / downloader.downloadCount
+        );
+        long transferNanos = (long) (settings.pieceLength() / bandwidth * 1e9);
+        long roundTripNanos = TimeUnit.MILLISECONDS.toNanos(2 * settings.latencyMs());
+        clock.schedule(roundTripNanos + transferNanos, () -> receive(link, index));
+    }
+
+    private void receive(Link link, int index) {
+        var downloader = link.downloader;
+        link.isBusy = false;
+        link.uploader.uploadCount--;
+        downloader.downloadCount--;
+        link.rate.add(settings.pieceLength());
+
+        downloader.bitfield.set(index);
+        downloader.picker.release(index);
+        pieceCopies[index]++;
+        totalCopies++;
+
+        // HAVE to every neighbour, which may make them interested
+        for (var out : downloader.outgoing) {
+            if (!out.downloader.isJoined()) continue;
+            out.downloader.availability.increment(index);
+            if (!out.isInterested && !out.downloader.bitfield.get(index)) {
+                updateInterest(out);
+            }
+        }
+
+        if (downloader.isComplete()) {
+            downloader.completeTime = clock.nanoTime();
+            for (var in : downloader.incoming) {
+                updateInterest(in);
+            }
+            if (--remainingCount == 0) {
+                clock.stop();
+            }
+            return;
+        }
+
+        // A piece was released, so connections left idle by fully claimed pieces may have work again.
+        // Interest only ever drops here since the downloader gained a piece.
+        for (var in : downloader.incoming) {
+            if (in.isInterested) {
+                updateInterest(in);
+                request(in);
+            }
+        }
+    }
+
+    private void rechoke(Node node) {
+        var interested = new ArrayList<Link>();
+        for (var link : node.outgoing) {
+            if (link.isInterested && link.downloader.isJoined()) interested.add(link);
+        }
+        // Leechers reward the peers they download from fastest, seeds the peers they upload to fastest
+        var unchoked = node.isComplete()
+            ? node.choker.rechoke(interested, link -> link.rate.getRate())
+            : node.choker.rechoke(interested, link -> link.reverse.rate.getRate());
+        for (var link : node.outgoing) {
+            if (unchoked.contains(link)) {
+                unchoke(link);
+            } else {
+                link.isChoking = true;
+            }
+        }
+        clock.scheduleMillis(settings.rechokeIntervalMs(), () -> rechoke(node));
+    }
+
+    // Normalized Shannon entropy of the piece copies, 1.0 when every piece is equally replicated
+    private double getEntropy() {
+        if (totalCopies == 0 || pieceCopies.length < 2) {
+            return 1.0;
+        }
+        double entropy = 0.0;
+        for (int copies : pieceCopies) {
+            if (copies == 0) continue;
+            double p = (double) copies / totalCopies;
+            entropy -= p * Math.log(p);
+        }
+        return entropy / Math.log(pieceCopies.length);
+    }
+
+    private void sample() {
+        double entropy = getEntropy();
+        entropySum += entropy;
+        entropySampleCount++;
+        minEntropy = Math.min(minEntropy, entropy);
+        clock.scheduleMillis(SAMPLE_INTERVAL_MS, this::sample);
+    }
+
+    public @NotNull Report run() {
+        var threadBean = ManagementFactory.getThreadMXBean();
+        long cpuStart = threadBean.getCurrentThreadCpuTime();
+
+        setup();
+        clock.runUntil(TimeUnit.MILLISECONDS.toNanos(settings.maxDurationMs()));
+
+        long cpuNanos = threadBean.getCurrentThreadCpuTime() - cpuStart;
+
+        var completions = nodes.stream()
+            .skip(settings.seedCount())
+            .filter(node -> node.completeTime >= 0)
+            .mapToDouble(node -> (node.completeTime - node.joinTime) / 1e9)
+            .sorted()
+            .toArray();
+        return new Report(
+            settings.leecherCount(),
+            completions.length,
+            clock.nanoTime() / 1e9,
+            completions,
+            minEntropy,
+            entropySampleCount > 0 ? entropySum / entropySampleCount : 1.0,
+            clock.getEventCount(),
+            cpuNanos / 1e6
+        );
+    }
+
+    public static void main(String[] args) {
+        int leecherCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        System.out.println(new SwarmSimulator(Settings.defaults(leecherCount)).run());
+    }
+
+}
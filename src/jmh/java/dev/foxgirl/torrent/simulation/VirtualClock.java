@@ -0,0 +1,72 @@
+package dev.foxgirl.torrent.simulation;
+
+import dev.foxgirl.torrent.util.Clock;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+// Discrete-event clock, time only moves when the next event is run. Events at the same time run
+// in the order they were scheduled, so a simulation with a seeded random is fully deterministic.
+public final class VirtualClock implements Clock {
+
+    private record Event(long time, long sequence, Runnable task) implements Comparable<Event> {
+        @Override
+        public int compareTo(Event other) {
+            int result = Long.compare(time, other.time);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now = 0;
+    private long sequence = 0;
+    private long eventCount = 0;
+    private boolean isStopped = false;
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    public int getPendingCount() {
+        return events.size();
+    }
+
+    public void schedule(long delayNanos, Runnable task) {
+        events.add(new Event(now + Math.max(delayNanos, 0), sequence++, task));
+    }
+
+    public void scheduleMillis(long delayMs, Runnable task) {
+        schedule(TimeUnit.MILLISECONDS.toNanos(delayMs), task);
+    }
+
+    // Makes runUntil return after the current event
+    public void stop() {
+        isStopped = true;
+    }
+
+    // Runs events until stopped, out of events, or the next one is past the end time, returns false in the latter case
+    public boolean runUntil(long endNanos) {
+        isStopped = false;
+        while (!isStopped) {
+            var event = events.peek();
+            if (event == null) {
+                return true;
+            }
+            if (event.time() > endNanos) {
+                now = endNanos;
+                return false;
+            }
+            events.poll();
+            now = event.time();
+            eventCount++;
+            event.task().run();
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,57 @@
+package dev.foxgirl.torrent.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Batches of SHA-1 piece hashes as in a recheck, the score is batches per second. Run with each
+// hash provider to see where lanes beat one-at-a-time digests.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchHashBenchmark {
+
+    @Param({"SEQUENTIAL", "LANES"})
+    public BatchHasher.Strategy strategy;
+
+    @Param({"JDK", "BouncyCastle"})
+    public String provider;
+
+    @Param({"16384", "262144"})
+    public int pieceLength;
+
+    @Param({"64"})
+    public int pieceCount;
+
+    private BatchHasher hasher;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Hash.setProvider(switch (provider) {
+            case "JDK" -> Hash.Provider.JDK;
+            case "BouncyCastle" -> Hash.Provider.BOUNCY_CASTLE;
+            default -> throw new IllegalArgumentException("Unknown provider: " + provider);
+        });
+        hasher = new BatchHasher(Hash.Algorithm.SHA1, strategy);
+        var bytes = new byte[pieceLength * pieceCount];
+        new SplittableRandom(1).nextBytes(bytes);
+        buffer = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Hash.setProvider(Hash.Provider.JDK);
+    }
+
+    @Benchmark
+    public Hash[] digest() {
+        return hasher.digest(buffer, pieceLength);
+    }
+
+}
@@ -3,6 +3,7 @@ package dev.foxgirl.torrent.bencode;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Objects;
 
 public final class BencodeDecoder implements Closeable {
@@ -74,7 +75,7 @@ public final class BencodeDecoder implements Closeable {
         }
     }
 
-    private BencodeString decodeNextString(int c) throws IOException {
+    private int readStringLength(int c) throws IOException {
         int length = 0;
         while (true) {
             length = length * 10 + (c - '0');
@@ -89,7 +90,34 @@ public final class BencodeDecoder implements Closeable {
                 throw new BencodeDecodeException("String length invalid");
             }
         }
-        return BencodeString.wrap(read(length));
+        return length;
+    }
+
+    private BencodeString decodeNextString(int c) throws IOException {
+        return BencodeString.wrap(read(readStringLength(c)));
+    }
+
+    // Short keys are read into a scratch buffer first, known keys then come out of the intern table without allocating
+    private final byte[] keyBuffer = new byte[32];
+
+    private BencodeString decodeNextKey(int c) throws IOException {
+        if (c < '0' || c > '9') {
+            throw new BencodeDecodeException("Map key is not a string");
+        }
+        int length = readStringLength(c);
+        if (length > keyBuffer.length) {
+            return BencodeString.wrap(read(length));
+        }
+        int total = 0;
+        while (total < length) {
+            int count = inputStream.read(keyBuffer, total, length - total);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of stream");
+            }
+            total += count;
+        }
+        var key = BencodeString.lookupKnown(keyBuffer, 0, length);
+        return key != null ? key : BencodeString.wrap(Arrays.copyOf(keyBuffer, length));
     }
 
     private BencodeInteger decodeNextInteger() throws IOException {
@@ -135,15 +163,13 @@ public final class BencodeDecoder implements Closeable {
             if (c == 'e') {
                 break;
             }
-            BencodeElement key = decodeNext(c);
-            if (key.getType() != BencodeType.STRING) {
-                throw new BencodeDecodeException("Map key is not a string");
-            }
+            BencodeString key = decodeNextKey(c);
             BencodeElement value = decodeNext(read());
-            if (map.putIfAbsent(key.asString(), value) != null) {
+            if (map.putIfAbsent(key, value) != null) {
                 throw new BencodeDecodeException("Duplicate map key: " + key);
             }
         }
+        map.trimToSize();
         return map;
     }
 
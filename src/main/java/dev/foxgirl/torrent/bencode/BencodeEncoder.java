@@ -2,10 +2,11 @@ package dev.foxgirl.torrent.bencode;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
@@ -19,12 +20,132 @@ public final class BencodeEncoder implements Closeable {
 
     public static byte @NotNull [] encodeToBytes(@NotNull BencodeElement element) {
         Objects.requireNonNull(element, "Argument 'element'");
-        try (var outputStream = new ByteArrayOutputStream(128)) {
-            encodeToStream(element, outputStream);
-            return outputStream.toByteArray();
-        } catch (IOException cause) {
-            throw new RuntimeException(cause);
+        var bytes = new byte[sizeOf(element)];
+        encodeToBuffer(element, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    // Writes the element at the buffer's position, which must have at least sizeOf(element) bytes
+    // remaining. The element must not be modified in between, since the size isn't checked again.
+    public static void encodeToBuffer(@NotNull BencodeElement element, @NotNull ByteBuffer buffer) {
+        Objects.requireNonNull(element, "Argument 'element'");
+        Objects.requireNonNull(buffer, "Argument 'buffer'");
+        put(buffer, element);
+    }
+
+    // Exact number of bytes the element encodes to
+    public static int sizeOf(@NotNull BencodeElement element) {
+        Objects.requireNonNull(element, "Argument 'element'");
+        long size = size(element);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Encoded element is too large: " + size);
+        }
+        return (int) size;
+    }
+
+    private static long size(BencodeElement element) {
+        switch (element.getType()) {
+            case INTEGER -> {
+                return 2 + digitCount(element.asInteger().getValue());
+            }
+            case STRING -> {
+                int length = element.asString().length();
+                return digitCount(length) + 1 + length;
+            }
+            case LIST -> {
+                long size = 2;
+                for (var value : element.asList()) {
+                    if (value == null) continue;
+                    size += size(value);
+                }
+                return size;
+            }
+            case MAP -> {
+                long size = 2;
+                for (var entry : element.asMap().entrySet()) {
+                    var key = entry.getKey();
+                    if (key == null) continue;
+                    var value = entry.getValue();
+                    if (value == null) continue;
+                    size += size(key) + size(value);
+                }
+                return size;
+            }
+        }
+        throw new IllegalStateException("Unknown element type: " + element.getType());
+    }
+
+    private static int digitCount(long value) {
+        if (value == Long.MIN_VALUE) {
+            return 20;
+        }
+        int count = 1;
+        if (value < 0) {
+            count++;
+            value = -value;
+        }
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    private static void put(ByteBuffer buffer, BencodeElement element) {
+        switch (element.getType()) {
+            case INTEGER -> {
+                buffer.put((byte) 'i');
+                putDecimal(buffer, element.asInteger().getValue());
+                buffer.put((byte) 'e');
+            }
+            case STRING -> {
+                var string = element.asString();
+                putDecimal(buffer, string.length());
+                buffer.put((byte) ':');
+                string.putTo(buffer);
+            }
+            case LIST -> {
+                buffer.put((byte) 'l');
+                for (var value : element.asList()) {
+                    if (value == null) continue;
+                    put(buffer, value);
+                }
+                buffer.put((byte) 'e');
+            }
+            case MAP -> {
+                buffer.put((byte) 'd');
+                for (var entry : element.asMap().entrySet()) {
+                    var key = entry.getKey();
+                    if (key == null) continue;
+                    var value = entry.getValue();
+                    if (value == null) continue;
+                    put(buffer, key);
+                    put(buffer, value);
+                }
+                buffer.put((byte) 'e');
+            }
+        }
+    }
+
+    private static void putDecimal(ByteBuffer buffer, long value) {
+        if (value == Long.MIN_VALUE) {
+            buffer.put(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int count = digitCount(value);
+        if (buffer.remaining() < count) {
+            throw new BufferOverflowException();
+        }
+        int position = buffer.position();
+        for (int i = position + count - 1; i >= position; i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
         }
+        buffer.position(position + count);
     }
 
     private OutputStream outputStream;
@@ -3,36 +3,188 @@ package dev.foxgirl.torrent.bencode;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Map;
-import java.util.Objects;
-import java.util.TreeMap;
+import java.util.*;
+import java.util.function.BiConsumer;
 
-public final class BencodeMap extends TreeMap<@NotNull BencodeString, @NotNull BencodeElement> implements BencodeElement {
+// Entries are kept in a pair of arrays sorted by key, lookups are binary searches and iteration
+// walks the arrays in order. Copying a map shares its arrays, and whichever map is written to
+// first copies them, so the copy-then-remove pattern in the metainfo parsers stays cheap.
+public final class BencodeMap extends AbstractMap<@NotNull BencodeString, @NotNull BencodeElement> implements BencodeElement {
+
+    private static final BencodeString[] EMPTY_KEYS = new BencodeString[0];
+    private static final BencodeElement[] EMPTY_VALUES = new BencodeElement[0];
+
+    private BencodeString[] keys;
+    private BencodeElement[] values;
+    private int size;
+    private boolean shared;
+    private int modCount;
+
+    private EntrySet entrySet;
 
     public BencodeMap() {
-        super();
+        keys = EMPTY_KEYS;
+        values = EMPTY_VALUES;
+    }
+
+    public BencodeMap(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity is negative");
+        }
+        keys = capacity == 0 ? EMPTY_KEYS : new BencodeString[capacity];
+        values = capacity == 0 ? EMPTY_VALUES : new BencodeElement[capacity];
     }
 
     public BencodeMap(@NotNull Map<? extends BencodeString, ? extends BencodeElement> source) {
-        super(Objects.requireNonNull(source, "Argument 'source'"));
+        Objects.requireNonNull(source, "Argument 'source'");
+        if (source instanceof BencodeMap map) {
+            keys = map.keys;
+            values = map.values;
+            size = map.size;
+            shared = true;
+            map.shared = true;
+        } else {
+            keys = EMPTY_KEYS;
+            values = EMPTY_VALUES;
+            putAll(source);
+        }
+    }
+
+    // Returns the index of the key, or (-(insertion point) - 1) if it is absent
+    private int indexOf(BencodeString key) {
+        Objects.requireNonNull(key, "Argument 'key'");
+        // Keys usually arrive in order, so appending is checked before searching
+        int high = size - 1;
+        if (high < 0) {
+            return -1;
+        }
+        int last = key.compareTo(keys[high]);
+        if (last >= 0) {
+            return last == 0 ? high : -(size + 1);
+        }
+        int low = 0;
+        high--;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int result = keys[middle].compareTo(key);
+            if (result < 0) {
+                low = middle + 1;
+            } else if (result > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private int indexOf(Object key) {
+        return key instanceof BencodeString string ? indexOf(string) : -1;
+    }
+
+    private void ensureWritable(int capacity) {
+        if (shared || capacity > keys.length) {
+            int length = capacity > keys.length ? Math.max(capacity, Math.max(4, keys.length + (keys.length >> 1))) : keys.length;
+            keys = Arrays.copyOf(keys, length);
+            values = Arrays.copyOf(values, length);
+            shared = false;
+        }
+    }
+
+    private void insertAt(int index, BencodeString key, BencodeElement value) {
+        ensureWritable(size + 1);
+        if (index < size) {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+        }
+        keys[index] = key;
+        values[index] = value;
+        size++;
+        modCount++;
     }
 
+    private BencodeElement setAt(int index, BencodeElement value) {
+        ensureWritable(size);
+        var previous = values[index];
+        values[index] = value;
+        return previous;
+    }
+
+    private BencodeElement removeAt(int index) {
+        ensureWritable(size);
+        var previous = values[index];
+        int moved = size - index - 1;
+        if (moved > 0) {
+            System.arraycopy(keys, index + 1, keys, index, moved);
+            System.arraycopy(values, index + 1, values, index, moved);
+        }
+        size--;
+        keys[size] = null;
+        values[size] = null;
+        modCount++;
+        return previous;
+    }
+
+    // Drops the spare capacity left over from growing, the decoder calls this on every map it builds
+    public void trimToSize() {
+        if (!shared && keys.length > size) {
+            keys = size == 0 ? EMPTY_KEYS : Arrays.copyOf(keys, size);
+            values = size == 0 ? EMPTY_VALUES : Arrays.copyOf(values, size);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
     public boolean containsKey(@NotNull BencodeString key) {
-        return super.containsKey(key);
+        return indexOf(key) >= 0;
     }
     public boolean containsKey(@NotNull String key) {
         return containsKey(BencodeString.of(key));
     }
 
+    @Override
+    public boolean containsValue(Object value) {
+        for (int i = 0; i < size; i++) {
+            if (Objects.equals(values[i], value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public @Nullable BencodeElement get(Object key) {
+        int index = indexOf(key);
+        return index >= 0 ? values[index] : null;
+    }
     public @Nullable BencodeElement get(@NotNull BencodeString key) {
-        return super.get(key);
+        int index = indexOf(key);
+        return index >= 0 ? values[index] : null;
     }
     public @Nullable BencodeElement get(@NotNull String key) {
         return get(BencodeString.of(key));
     }
 
+    @Override
+    public @NotNull BencodeElement getOrDefault(Object key, BencodeElement defaultValue) {
+        int index = indexOf(key);
+        return index >= 0 ? values[index] : defaultValue;
+    }
     public @NotNull BencodeElement getOrDefault(@NotNull BencodeString key, @NotNull BencodeElement defaultValue) {
-        return super.getOrDefault(key, defaultValue);
+        int index = indexOf(key);
+        return index >= 0 ? values[index] : defaultValue;
     }
     public @NotNull BencodeElement getOrDefault(@NotNull String key, @NotNull BencodeElement defaultValue) {
         return getOrDefault(BencodeString.of(key), defaultValue);
@@ -40,7 +192,12 @@ public final class BencodeMap extends TreeMap<@NotNull BencodeString, @NotNull B
 
     @Override
     public @Nullable BencodeElement put(@NotNull BencodeString key, @NotNull BencodeElement value) {
-        return super.put(key, value);
+        int index = indexOf(key);
+        if (index >= 0) {
+            return setAt(index, value);
+        }
+        insertAt(-(index + 1), key, value);
+        return null;
     }
     public @Nullable BencodeElement put(@NotNull String key, @NotNull BencodeElement value) {
         return put(BencodeString.of(key), value);
@@ -48,7 +205,11 @@ public final class BencodeMap extends TreeMap<@NotNull BencodeString, @NotNull B
 
     @Override
     public @Nullable BencodeElement putIfAbsent(@NotNull BencodeString key, @NotNull BencodeElement value) {
-        return super.putIfAbsent(key, value);
+        int index = indexOf(key);
+        if (index >= 0 && values[index] != null) {
+            return values[index];
+        }
+        return put(key, value);
     }
     public @Nullable BencodeElement putIfAbsent(@NotNull String key, @NotNull BencodeElement value) {
         return putIfAbsent(BencodeString.of(key), value);
@@ -68,15 +229,30 @@ public final class BencodeMap extends TreeMap<@NotNull BencodeString, @NotNull B
         put(key, BencodeString.of(value));
     }
 
+    @Override
+    public @Nullable BencodeElement remove(Object key) {
+        int index = indexOf(key);
+        return index >= 0 ? removeAt(index) : null;
+    }
     public @Nullable BencodeElement remove(@NotNull BencodeString key) {
-        return super.remove(key);
+        int index = indexOf(key);
+        return index >= 0 ? removeAt(index) : null;
     }
     public @Nullable BencodeElement remove(@NotNull String key) {
         return remove(BencodeString.of(key));
     }
 
+    @Override
+    public boolean remove(Object key, Object value) {
+        int index = indexOf(key);
+        if (index >= 0 && Objects.equals(values[index], value)) {
+            removeAt(index);
+            return true;
+        }
+        return false;
+    }
     public boolean remove(@NotNull BencodeString key, Object value) {
-        return super.remove(key, value);
+        return remove((Object) key, value);
     }
     public boolean remove(@NotNull String key, Object value) {
         return remove(BencodeString.of(key), value);
@@ -84,7 +260,8 @@ public final class BencodeMap extends TreeMap<@NotNull BencodeString, @NotNull B
 
     @Override
     public @Nullable BencodeElement replace(@NotNull BencodeString key, @NotNull BencodeElement value) {
-        return super.replace(key, value);
+        int index = indexOf(key);
+        return index >= 0 ? setAt(index, value) : null;
     }
     public @Nullable BencodeElement replace(@NotNull String key, @NotNull BencodeElement value) {
         return replace(BencodeString.of(key), value);
@@ -92,12 +269,175 @@ public final class BencodeMap extends TreeMap<@NotNull BencodeString, @NotNull B
 
     @Override
     public boolean replace(@NotNull BencodeString key, @NotNull BencodeElement oldValue, @NotNull BencodeElement newValue) {
-        return super.replace(key, oldValue, newValue);
+        int index = indexOf(key);
+        if (index >= 0 && Objects.equals(values[index], oldValue)) {
+            setAt(index, newValue);
+            return true;
+        }
+        return false;
     }
     public boolean replace(@NotNull String key, @NotNull BencodeElement oldValue, @NotNull BencodeElement newValue) {
         return replace(BencodeString.of(key), oldValue, newValue);
     }
 
+    @Override
+    public void clear() {
+        if (size > 0) {
+            if (shared) {
+                keys = EMPTY_KEYS;
+                values = EMPTY_VALUES;
+                shared = false;
+            } else {
+                Arrays.fill(keys, 0, size, null);
+                Arrays.fill(values, 0, size, null);
+            }
+            size = 0;
+            modCount++;
+        }
+    }
+
+    @Override
+    public void forEach(@NotNull BiConsumer<? super BencodeString, ? super BencodeElement> action) {
+        Objects.requireNonNull(action, "Argument 'action'");
+        int expectedModCount = modCount;
+        for (int i = 0; i < size; i++) {
+            action.accept(keys[i], values[i]);
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    @Override
+    public @NotNull Set<Map.@NotNull Entry<@NotNull BencodeString, @NotNull BencodeElement>> entrySet() {
+        var entrySet = this.entrySet;
+        if (entrySet == null) {
+            this.entrySet = entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<BencodeString, BencodeElement>> {
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            BencodeMap.this.clear();
+        }
+
+        @Override
+        public boolean contains(Object object) {
+            if (object instanceof Map.Entry<?, ?> entry) {
+                int index = indexOf(entry.getKey());
+                return index >= 0 && Objects.equals(values[index], entry.getValue());
+            }
+            return false;
+        }
+
+        @Override
+        public boolean remove(Object object) {
+            return object instanceof Map.Entry<?, ?> entry && BencodeMap.this.remove(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public @NotNull Iterator<Map.Entry<BencodeString, BencodeElement>> iterator() {
+            return new EntryIterator();
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<BencodeString, BencodeElement>> {
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Map.Entry<BencodeString, BencodeElement> next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new IndexEntry(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private final class IndexEntry implements Map.Entry<BencodeString, BencodeElement> {
+        private final BencodeString key;
+        private final int index;
+        private final int expectedModCount = modCount;
+
+        private IndexEntry(int index) {
+            this.key = keys[index];
+            this.index = index;
+        }
+
+        private int getIndex() {
+            // Entries outlive structural changes in TreeMap, so fall back to a search when the map has changed
+            return modCount == expectedModCount ? index : indexOf(key);
+        }
+
+        @Override
+        public BencodeString getKey() {
+            return key;
+        }
+
+        @Override
+        public BencodeElement getValue() {
+            int index = getIndex();
+            return index >= 0 ? values[index] : null;
+        }
+
+        @Override
+        public BencodeElement setValue(BencodeElement value) {
+            int index = getIndex();
+            if (index < 0) {
+                throw new IllegalStateException("Entry was removed from the map");
+            }
+            return setAt(index, value);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof Map.Entry<?, ?> entry
+                && key.equals(entry.getKey())
+                && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+
     @Override
     public @NotNull BencodeType getType() {
         return BencodeType.MAP;
@@ -105,10 +445,12 @@ public final class BencodeMap extends TreeMap<@NotNull BencodeString, @NotNull B
 
     @Override
     public @NotNull BencodeMap copy() {
-        var map = new BencodeMap();
-        for (var entry : entrySet()) {
-            map.put(entry.getKey().copy(), entry.getValue().copy());
+        var map = new BencodeMap(size);
+        for (int i = 0; i < size; i++) {
+            map.keys[i] = keys[i].copy();
+            map.values[i] = values[i].copy();
         }
+        map.size = size;
         return map;
     }
 
@@ -0,0 +1,285 @@
+package dev.foxgirl.torrent.bencode;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+// Pull parser that walks bencoded data token by token without building elements, for hot paths
+// that only want a few fields out of a message. Strings are reported as ranges of the underlying
+// buffer, nothing is allocated per token unless the string accessors that return copies are used.
+public final class BencodeReader {
+
+    public enum Token {
+        MAP_START, LIST_START, KEY, STRING, INTEGER, END, EOF;
+    }
+
+    private static final int MAX_DEPTH = 1024;
+
+    // Container states kept on the stack
+    private static final byte STATE_LIST = 0;
+    private static final byte STATE_MAP_KEY = 1;
+    private static final byte STATE_MAP_VALUE = 2;
+
+    private ByteBuffer buffer;
+    private int position;
+    private int limit;
+
+    private byte[] stack = new byte[16];
+    private int depth;
+    private boolean done;
+
+    private Token token;
+    private long integer;
+    private int stringOffset;
+    private int stringLength;
+
+    public BencodeReader(@NotNull ByteBuffer buffer) {
+        reset(buffer);
+    }
+
+    public BencodeReader(byte @NotNull [] bytes) {
+        this(ByteBuffer.wrap(Objects.requireNonNull(bytes, "Argument 'bytes'")));
+    }
+
+    public BencodeReader(byte @NotNull [] bytes, int offset, int length) {
+        this(ByteBuffer.wrap(Objects.requireNonNull(bytes, "Argument 'bytes'"), offset, length));
+    }
+
+    // Starts over on the remaining bytes of a buffer, the buffer's position is never changed
+    public void reset(@NotNull ByteBuffer buffer) {
+        Objects.requireNonNull(buffer, "Argument 'buffer'");
+        this.buffer = buffer;
+        this.position = buffer.position();
+        this.limit = buffer.limit();
+        this.depth = 0;
+        this.done = false;
+        this.token = null;
+    }
+
+    public @NotNull Token next() throws BencodeDecodeException {
+        if (done) {
+            return token = Token.EOF;
+        }
+
+        byte state = depth > 0 ? stack[depth - 1] : STATE_LIST;
+        int c = read();
+
+        if (c == 'e') {
+            if (depth == 0) {
+                throw new BencodeDecodeException("Unexpected end of container");
+            }
+            if (state == STATE_MAP_VALUE) {
+                throw new BencodeDecodeException("Map key has no value");
+            }
+            depth--;
+            done = depth == 0;
+            return token = Token.END;
+        }
+
+        if (state == STATE_MAP_KEY) {
+            if (c < '0' || c > '9') {
+                throw new BencodeDecodeException("Map key is not a string");
+            }
+            readString(c);
+            stack[depth - 1] = STATE_MAP_VALUE;
+            return token = Token.KEY;
+        }
+        if (state == STATE_MAP_VALUE) {
+            stack[depth - 1] = STATE_MAP_KEY;
+        }
+
+        if (c >= '0' && c <= '9') {
+            readString(c);
+            done = depth == 0;
+            return token = Token.STRING;
+        } else if (c == 'i') {
+            readInteger();
+            done = depth == 0;
+            return token = Token.INTEGER;
+        } else if (c == 'l') {
+            push(STATE_LIST);
+            return token = Token.LIST_START;
+        } else if (c == 'd') {
+            push(STATE_MAP_KEY);
+            return token = Token.MAP_START;
+        } else {
+            throw new BencodeDecodeException("Unexpected start of element: " + (char) c);
+        }
+    }
+
+    // Consumes the next value whole, including everything inside it if it is a list or map
+    public void skipValue() throws BencodeDecodeException {
+        var token = next();
+        if (token == Token.MAP_START || token == Token.LIST_START) {
+            skipContainer();
+        } else if (token == Token.END || token == Token.EOF || token == Token.KEY) {
+            throw new BencodeDecodeException("Expected a value, found " + token);
+        }
+    }
+
+    // Consumes the rest of the list or map whose start token was just read
+    public void skipContainer() throws BencodeDecodeException {
+        int target = depth - 1;
+        while (depth > target) {
+            if (next() == Token.EOF) {
+                throw new BencodeDecodeException("Unexpected end of input");
+            }
+        }
+    }
+
+    private int read() throws BencodeDecodeException {
+        if (position >= limit) {
+            throw new BencodeDecodeException("Unexpected end of input");
+        }
+        return buffer.get(position++) & 0xFF;
+    }
+
+    private void push(byte state) throws BencodeDecodeException {
+        if (depth == stack.length) {
+            if (depth >= MAX_DEPTH) {
+                throw new BencodeDecodeException("Nesting is too deep");
+            }
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = state;
+    }
+
+    private void readString(int c) throws BencodeDecodeException {
+        int length = 0;
+        while (true) {
+            length = length * 10 + (c - '0');
+            if (length < 0) {
+                throw new BencodeDecodeException("String length overflow");
+            }
+            c = read();
+            if (c == ':') {
+                break;
+            }
+            if (c < '0' || c > '9') {
+                throw new BencodeDecodeException("String length invalid");
+            }
+        }
+        if (length > limit - position) {
+            throw new BencodeDecodeException("Unexpected end of input");
+        }
+        stringOffset = position;
+        stringLength = length;
+        position += length;
+    }
+
+    private void readInteger() throws BencodeDecodeException {
+        int c = read();
+
+        boolean negative = false;
+        if (c == '-') {
+            c = read();
+            negative = true;
+        }
+        if (c == 'e') {
+            throw new BencodeDecodeException("Invalid integer format");
+        }
+
+        long value = 0;
+        while (c != 'e') {
+            if (c < '0' || c > '9') {
+                throw new BencodeDecodeException("Invalid integer format");
+            }
+            value = value * 10 + (c - '0');
+            if (value < 0) {
+                throw new BencodeDecodeException("Integer overflow");
+            }
+            c = read();
+        }
+
+        integer = negative ? -value : value;
+    }
+
+    public Token getToken() {
+        return token;
+    }
+
+    // Number of lists and maps the reader is currently inside of
+    public int getDepth() {
+        return depth;
+    }
+
+    // Absolute index in the buffer of the next byte to be read
+    public int getPosition() {
+        return position;
+    }
+
+    private void checkString() {
+        if (token != Token.KEY && token != Token.STRING) {
+            throw new IllegalStateException("Current token is not a string, it is " + token);
+        }
+    }
+
+    public long getInteger() {
+        if (token != Token.INTEGER) {
+            throw new IllegalStateException("Current token is not an integer, it is " + token);
+        }
+        return integer;
+    }
+
+    // Absolute index in the buffer of the current key or string's first byte
+    public int getStringOffset() {
+        checkString();
+        return stringOffset;
+    }
+
+    public int getStringLength() {
+        checkString();
+        return stringLength;
+    }
+
+    public boolean stringEquals(byte @NotNull [] value) {
+        Objects.requireNonNull(value, "Argument 'value'");
+        checkString();
+        if (value.length != stringLength) {
+            return false;
+        }
+        for (int i = 0; i < stringLength; i++) {
+            if (buffer.get(stringOffset + i) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // View of the current key or string sharing the underlying buffer
+    public @NotNull ByteBuffer getStringSlice() {
+        checkString();
+        return buffer.slice(stringOffset, stringLength);
+    }
+
+    public byte @NotNull [] getStringBytes() {
+        checkString();
+        var bytes = new byte[stringLength];
+        buffer.get(stringOffset, bytes);
+        return bytes;
+    }
+
+    public @NotNull String getStringValue() {
+        return new String(getStringBytes(), StandardCharsets.UTF_8);
+    }
+
+    public @NotNull BencodeString getString() {
+        checkString();
+        if (token == Token.KEY && buffer.hasArray()) {
+            var known = BencodeString.lookupKnown(buffer.array(), buffer.arrayOffset() + stringOffset, stringLength);
+            if (known != null) {
+                return known;
+            }
+        }
+        return BencodeString.wrap(getStringBytes());
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "BencodeReader{token=" + token + ", depth=" + depth + ", position=" + position + "}";
+    }
+
+}
@@ -1,33 +1,174 @@
 package dev.foxgirl.torrent.bencode;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Objects;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class BencodeString implements BencodePrimitive, Comparable<BencodeString> {
 
-    private static final WeakHashMap<String, BencodeString> CACHE = new WeakHashMap<>();
+    // Dictionary keys used by the metainfo, extension protocol, peer exchange, tracker and DHT code
+    private static final String[] KNOWN_KEYS = {
+        "announce", "announce-list", "comment", "created by", "creation date", "encoding", "info",
+        "url-list", "httpseeds", "name", "length", "files", "path", "pieces", "piece length", "private",
+        "md5sum", "source", "m", "p", "v", "e", "reqq", "yourip", "ipv4", "ipv6", "metadata_size",
+        "ut_metadata", "ut_pex", "lt_donthave", "msg_type", "piece", "total_size", "added", "added.f",
+        "added6", "added6.f", "dropped", "dropped6", "t", "y", "q", "r", "a", "id", "target", "info_hash",
+        "implied_port", "port", "token", "nodes", "nodes6", "values", "want", "complete", "incomplete",
+        "interval", "min interval", "peers", "peers6", "failure reason", "warning message", "tracker id",
+    };
+
+    private static final int MAX_KNOWN_LENGTH;
+
+    // Perfect hash table of the known keys, every key has a slot of its own so a lookup is one hash,
+    // one slot read and one comparison, without locks or allocation
+    private static final BencodeString[] KNOWN_TABLE;
+    private static final int KNOWN_MULTIPLIER;
+    private static final int KNOWN_SHIFT;
+
+    static {
+        var strings = new BencodeString[KNOWN_KEYS.length];
+        int maxLength = 0;
+        for (int i = 0; i < KNOWN_KEYS.length; i++) {
+            strings[i] = new BencodeString(KNOWN_KEYS[i].getBytes(StandardCharsets.UTF_8));
+            strings[i].hash = hash(strings[i].bytes, 0, strings[i].bytes.length);
+            maxLength = Math.max(maxLength, strings[i].bytes.length);
+        }
+        MAX_KNOWN_LENGTH = maxLength;
+
+        // Searches multipliers for one that maps every key to a distinct slot, growing the table if none does
+        int bits = 32 - Integer.numberOfLeadingZeros(strings.length - 1) + 1;
+        while (true) {
+            int multiplier = findPerfectMultiplier(strings, bits);
+            if (multiplier != 0) {
+                var table = new BencodeString[1 << bits];
+                for (var string : strings) {
+                    table[(string.hash * multiplier) >>> (32 - bits)] = string;
+                }
+                KNOWN_TABLE = table;
+                KNOWN_MULTIPLIER = multiplier;
+                KNOWN_SHIFT = 32 - bits;
+                break;
+            }
+            bits++;
+        }
+    }
+
+    private static int findPerfectMultiplier(BencodeString[] strings, int bits) {
+        var slots = new BitSet(1 << bits);
+        for (int attempt = 0, multiplier = 0x9E3779B1; attempt < 4096; attempt++, multiplier += 2) {
+            slots.clear();
+            boolean isPerfect = true;
+            for (var string : strings) {
+                int slot = (string.hash * multiplier) >>> (32 - bits);
+                if (slots.get(slot)) {
+                    isPerfect = false;
+                    break;
+                }
+                slots.set(slot);
+            }
+            if (isPerfect) {
+                return multiplier;
+            }
+        }
+        return 0;
+    }
+
+    private static @Nullable BencodeString lookupKnown(int hash) {
+        return KNOWN_TABLE[(hash * KNOWN_MULTIPLIER) >>> KNOWN_SHIFT];
+    }
+
+    // Returns the interned string for a known key without building a String, or null if the bytes are not one
+    static @Nullable BencodeString lookupKnown(byte @NotNull [] value, int offset, int length) {
+        if (length > MAX_KNOWN_LENGTH) {
+            return null;
+        }
+        var string = lookupKnown(hash(value, offset, length));
+        if (string != null && Arrays.equals(string.bytes, 0, string.bytes.length, value, offset, offset + length)) {
+            return string;
+        }
+        return null;
+    }
+
+    private static @Nullable BencodeString lookupKnown(String value) {
+        int length = value.length();
+        if (length > MAX_KNOWN_LENGTH) {
+            return null;
+        }
+        // Known keys are ASCII, where chars and UTF-8 bytes are the same
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                return null;
+            }
+            hash ^= c;
+            hash *= 16777619;
+        }
+        var string = lookupKnown(hash != 0 ? hash : 31);
+        if (string == null || string.bytes.length != length) {
+            return null;
+        }
+        for (int i = 0; i < length; i++) {
+            if (string.bytes[i] != value.charAt(i)) {
+                return null;
+            }
+        }
+        return string;
+    }
+
+    // Other strings are cached weakly by value, stale entries are swept as their references are enqueued
+    private static final ConcurrentHashMap<String, CacheReference> CACHE = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<BencodeString> CACHE_QUEUE = new ReferenceQueue<>();
+
+    private static final class CacheReference extends WeakReference<BencodeString> {
+        private final String key;
+
+        private CacheReference(String key, BencodeString string) {
+            super(string, CACHE_QUEUE);
+            this.key = key;
+        }
+    }
+
+    private static void sweepCache() {
+        Reference<? extends BencodeString> reference;
+        while ((reference = CACHE_QUEUE.poll()) != null) {
+            var cacheReference = (CacheReference) reference;
+            CACHE.remove(cacheReference.key, cacheReference);
+        }
+    }
 
     public static @NotNull BencodeString of(@NotNull String value) {
         Objects.requireNonNull(value, "Argument 'value'");
-        synchronized (CACHE) {
-            var string = CACHE.get(value);
-            if (string == null) {
-                CACHE.put(value, string = new BencodeString(value.getBytes(StandardCharsets.UTF_8)));
-            }
+        var string = lookupKnown(value);
+        if (string != null) {
+            return string;
+        }
+        sweepCache();
+        var reference = CACHE.get(value);
+        if (reference != null && (string = reference.get()) != null) {
             return string;
         }
+        // Racing threads may each create a string, they are equal so whichever is cached last is fine
+        string = new BencodeString(value.getBytes(StandardCharsets.UTF_8));
+        CACHE.put(value, new CacheReference(value, string));
+        return string;
     }
 
     public static @NotNull BencodeString of(byte @NotNull [] value) {
         Objects.requireNonNull(value, "Argument 'value'");
-        return new BencodeString(value.clone());
+        var string = lookupKnown(value, 0, value.length);
+        return string != null ? string : new BencodeString(value.clone());
     }
 
     public static @NotNull BencodeString of(byte @NotNull [] value, int offset, int length) {
@@ -38,7 +179,8 @@ public final class BencodeString implements BencodePrimitive, Comparable<Bencode
         if (length < 0 || length > value.length - offset) {
             throw new IndexOutOfBoundsException("Invalid length " + length + " for source array length " + value.length + " and offset " + offset);
         }
-        return new BencodeString(Arrays.copyOfRange(value, offset, offset + length));
+        var string = lookupKnown(value, offset, length);
+        return string != null ? string : new BencodeString(Arrays.copyOfRange(value, offset, offset + length));
     }
 
     public static @NotNull BencodeString of(@NotNull ByteBuffer value) {
@@ -58,10 +200,10 @@ public final class BencodeString implements BencodePrimitive, Comparable<Bencode
         this.bytes = bytes;
     }
 
-    private static int hash(byte[] value) {
+    private static int hash(byte[] value, int offset, int length) {
         int hash = 0x811C9DC5;
-        for (byte b : value) {
-            hash ^= b;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash ^= value[i];
             hash *= 16777619;
         }
         return hash != 0 ? hash : 31;
@@ -102,6 +244,11 @@ public final class BencodeString implements BencodePrimitive, Comparable<Bencode
         return count;
     }
 
+    // Bulk put without the read-only view that toBuffer allocates, for the encoder
+    void putTo(ByteBuffer buffer) {
+        buffer.put(bytes);
+    }
+
     public @NotNull ByteBuffer toBuffer() {
         return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
     }
@@ -166,7 +313,7 @@ public final class BencodeString implements BencodePrimitive, Comparable<Bencode
     public int hashCode() {
         var hash = this.hash;
         if (hash == 0) {
-            hash = this.hash = hash(bytes);
+            hash = this.hash = hash(bytes, 0, bytes.length);
         }
         return hash;
     }
@@ -0,0 +1,57 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.util.Hash;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Objects;
+
+final class AllowedFastSet {
+
+    static final int DEFAULT_SIZE = 10;
+
+    private AllowedFastSet() {
+    }
+
+    // Canonical allowed fast set generation from BEP 6, only defined for IPv4 peers
+    static int @NotNull [] generate(@NotNull InetAddress address, @NotNull Hash infoHash, int pieceCount, int size) {
+        Objects.requireNonNull(address, "Argument 'address'");
+        Objects.requireNonNull(infoHash, "Argument 'infoHash'");
+        if (!(address instanceof Inet4Address) || pieceCount <= 0) {
+            return new int[0];
+        }
+        size = Math.min(size, pieceCount);
+
+        var ip = address.getAddress();
+        var infoHashBytes = infoHash.getBytes();
+        var x = new byte[4 + infoHashBytes.length];
+        x[0] = ip[0];
+        x[1] = ip[1];
+        x[2] = ip[2];
+        System.arraycopy(infoHashBytes, 0, x, 4, infoHashBytes.length);
+
+        var pieces = new int[size];
+        int count = 0;
+        while (count < size) {
+            x = Hash.digest(Hash.Algorithm.SHA1, x).getBytes();
+            for (int i = 0; i < 5 && count < size; i++) {
+                int j = i * 4;
+                long y = ((x[j] & 0xFFL) << 24) | ((x[j + 1] & 0xFFL) << 16) | ((x[j + 2] & 0xFFL) << 8) | (x[j + 3] & 0xFFL);
+                int index = (int) (y % pieceCount);
+                if (!contains(pieces, count, index)) {
+                    pieces[count++] = index;
+                }
+            }
+        }
+        return pieces;
+    }
+
+    private static boolean contains(int[] pieces, int count, int index) {
+        for (int i = 0; i < count; i++) {
+            if (pieces[i] == index) return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,774 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.CompletionHandler;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public final class AsyncProtocol implements Protocol {
+
+    private final @NotNull AsynchronousByteChannel channel;
+    private final @NotNull Protocol.Listener listener;
+
+    private final @NotNull Executor executor;
+    private final @NotNull TimerWheel timerWheel;
+
+    public AsyncProtocol(@NotNull AsynchronousByteChannel channel, @NotNull Protocol.Listener listener) {
+        this(channel, listener, DefaultExecutors.getDefaultExecutor());
+    }
+
+    public AsyncProtocol(@NotNull AsynchronousByteChannel channel, @NotNull Protocol.Listener listener, @NotNull Executor executor) {
+        this(channel, listener, executor, DefaultExecutors.getTimerWheel());
+    }
+
+    // Timeouts and keep-alives run on the timer wheel's executor
+    public AsyncProtocol(
+            @NotNull AsynchronousByteChannel channel,
+            @NotNull Protocol.Listener listener,
+            @NotNull Executor executor,
+            @NotNull TimerWheel timerWheel
+    ) {
+        Objects.requireNonNull(channel, "Argument 'channel'");
+        Objects.requireNonNull(listener, "Argument 'listener'");
+        Objects.requireNonNull(executor, "Argument 'executor'");
+        Objects.requireNonNull(timerWheel, "Argument 'timerWheel'");
+        this.channel = channel;
+        this.listener = listener;
+        this.executor = executor;
+        this.timerWheel = timerWheel;
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncProtocol.class);
+
+    private static final long READ_TIMEOUT_MS = 120 * 1000;
+    private static final long WRITE_TIMEOUT_MS = 30 * 1000;
+    private static final long OPERATION_TIMEOUT_MS = 15 * 1000;
+    private static final long DISCONNECT_TIMEOUT_MS = 150 * 1000;
+    private static final long READ_HANDSHAKE_TIMEOUT_MS = 10 * 1000;
+    private static final long WRITE_HANDSHAKE_TIMEOUT_MS = 10 * 1000;
+    private static final long KEEPALIVE_INTERVAL_MS = 60 * 1000;
+
+    private static final int READ_BUFFER_SIZE = 36 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 36 * 1024;
+
+    // 0 = disconnected, 1 = connecting, 2 = connected
+    private final AtomicInteger connectionState = new AtomicInteger();
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    private final Object lock = new Object();
+
+    private Instant lastIncomingMessageTime = Instant.MIN;
+    private Instant lastOutgoingMessageTime = Instant.MIN;
+
+    private Hash infoHash;
+    private Identity identity;
+    private Extensions extensions;
+
+    private ReadHandler readHandler;
+    private WriteHandler writeHandler;
+
+    private final class ReadHandler implements CompletionHandler<Integer, Void> {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final Timeout timeout = new Timeout(timerWheel, () -> close(new TimeoutException("Channel read timed out")));
+
+        private void readFromChannel() {
+            if (isClosed()) {
+                close(new IllegalStateException("Channel closed"));
+                return;
+            }
+
+            // Started before the read, which may complete synchronously and cancel it
+            timeout.start(READ_TIMEOUT_MS);
+            channel.read(buffer, null, this);
+        }
+
+        @Override
+        public void completed(Integer result, Void attachment) {
+            try {
+                timeout.cancel();
+
+                if (result < 0) {
+                    close(new IllegalStateException("Channel read failed"));
+                    return;
+                }
+
+                // A single read can carry several messages, all of them are handled before reading again
+                while (receiveMessage()) {
+                }
+
+                readFromChannel();
+            } catch (Throwable cause) {
+                close(cause);
+            }
+        }
+
+        // Handles the message at the start of the buffer, returns false if it is not complete yet
+        private boolean receiveMessage() {
+            if (buffer.position() < 4) {
+                return false;
+            }
+
+            int messageLength = buffer.getInt(0);
+            if (messageLength < 0) {
+                throw new IllegalStateException("(Reading) Message length is negative: " + messageLength);
+            }
+
+            // Handle keep-alive message
+            if (messageLength == 0) {
+                LOGGER.debug("Peer {} received keep-alive", getIdentity());
+
+                updateLastIncomingMessageTime();
+
+                int remainingOffset = 4;
+                int remainingLength = buffer.position() - remainingOffset;
+                if (buffer.position() > 4) {
+                    buffer.put(0, buffer, remainingOffset, remainingLength);
+                    buffer.limit(buffer.capacity());
+                    buffer.position(remainingLength);
+                }
+
+                return true;
+            }
+
+            if (buffer.position() < 5) {
+                return false;
+            }
+
+            int messageID = buffer.get(4) & 0xFF;
+            var messageType = MessageType.valueOf(messageID);
+            if (messageType == null) {
+                throw new IllegalStateException("(Reading) Message type not supported: " + String.format("0x%02X", messageID));
+            }
+
+            int messagePayloadLength = messageLength - 1;
+            int messageTotalLength = messagePayloadLength + 5;
+            if (messageTotalLength < 0) {
+                throw new IllegalStateException("(Reading) Message " + messageType + " payload length is negative or too large: " + messagePayloadLength);
+            }
+            if (messageTotalLength > buffer.capacity()) {
+                throw new IllegalStateException("(Reading) Message " + messageType + " total length exceeds buffer capacity: " + messageTotalLength);
+            }
+
+            if (messageTotalLength > buffer.position()) {
+                return false;
+            }
+
+            LOGGER.debug("Peer {} received message {} with length {}", getIdentity(), messageType, messagePayloadLength);
+
+            updateLastIncomingMessageTime();
+
+            var messagePayload = buffer.asReadOnlyBuffer().limit(messageTotalLength).position(5);
+
+            try {
+                listener.onReceive(new MessageImpl(messageType, messagePayload, messagePayloadLength));
+            } catch (Throwable cause) {
+                throw new RuntimeException("(Reading) Failed to process message " + messageType + " with length " + messagePayloadLength, cause);
+            }
+
+            int remainingOffset = messageTotalLength;
+            int remainingLength = buffer.position() - remainingOffset;
+            if (remainingLength > 0) {
+                buffer.put(0, buffer, remainingOffset, remainingLength);
+                buffer.limit(buffer.capacity());
+                buffer.position(remainingLength);
+            } else {
+                buffer.clear();
+            }
+
+            return true;
+        }
+
+        @Override
+        public void failed(Throwable cause, Void attachment) {
+            close(cause);
+        }
+
+        private void closeHandler(Throwable cause) {
+            timeout.cancel();
+        }
+    }
+
+    private final class WriteHandler implements CompletionHandler<Integer, Void> {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final Timeout timeout = new Timeout(timerWheel, () -> close(new TimeoutException("Channel write timed out")));
+
+        private final Queue<PendingMessage> pendingMessages = new ArrayDeque<>();
+        private PendingMessage currentMessage = null;
+
+        private final Runnable keepAliveTask = this::sendKeepAliveOnInterval;
+        private TimerWheel.Handle keepAliveHandle;
+
+        private enum State {
+            IDLE, WRITING_MESSAGE, WRITING_KEEPALIVE
+        }
+        private State state = State.IDLE;
+
+        private static final class PendingMessage extends CompletableFuture<Void> {
+            private final Message message;
+
+            private PendingMessage(Message message) {
+                Objects.requireNonNull(message, "Argument 'message'");
+                this.message = message;
+            }
+        }
+
+        private CompletableFuture<Void> send(Message message) {
+            var pendingMessage = new PendingMessage(message);
+            var shouldWriteNextMessage = false;
+            synchronized (this) {
+                pendingMessages.offer(pendingMessage);
+                if (state == State.IDLE) shouldWriteNextMessage = true;
+            }
+            if (shouldWriteNextMessage) {
+                writeNextMessage();
+            }
+            return pendingMessage;
+        }
+
+        private void writeNextMessage() {
+            PendingMessage pendingMessage;
+            synchronized (this) {
+                pendingMessage = pendingMessages.poll();
+                if (pendingMessage == null) {
+                    state = State.IDLE;
+                    return;
+                } else {
+                    state = State.WRITING_MESSAGE;
+                }
+            }
+            writeMessage(pendingMessage);
+        }
+
+        private void writeMessage(PendingMessage pendingMessage) {
+            try {
+                synchronized (this) {
+                    currentMessage = pendingMessage;
+                }
+
+                var messageType = pendingMessage.message.getType();
+                if (messageType == null) {
+                    throw new IllegalStateException("(Writing) Message type is null");
+                }
+
+                var messageLength = pendingMessage.message.getLength();
+                if (messageLength < 0) {
+                    throw new IllegalStateException("(Writing) Message " + messageType + " length is negative: " + messageLength);
+                }
+                if (messageLength > buffer.capacity() - 5) {
+                    throw new IllegalStateException("(Writing) Message " + messageType + " length exceeds buffer capacity: " + messageLength);
+                }
+
+                LOGGER.debug("Peer {} sending message {} with length {}", getIdentity(), messageType, messageLength);
+
+                buffer.clear();
+                buffer.putInt(messageLength + 1);
+                buffer.put(messageType.getID());
+
+                CompletableFuture<Void> future;
+                try {
+                    future = pendingMessage.message.writePayloadTo(buffer);
+                } catch (Throwable cause) {
+                    throw new RuntimeException("(Reading) Failed to write message " + messageType + " with length " + messageLength, cause);
+                }
+                if (future != null) {
+                    future = Timeout.timeoutCompletableFuture(timerWheel, OPERATION_TIMEOUT_MS, future);
+                    future.whenCompleteAsync((result, cause) -> {
+                        if (cause != null) {
+                            pendingMessage.completeExceptionally(cause);
+                            close(cause);
+                        } else {
+                            buffer.flip();
+                            writeToChannel();
+                        }
+                    }, executor);
+                } else {
+                    buffer.flip();
+                    writeToChannel();
+                }
+            } catch (Throwable cause) {
+                pendingMessage.completeExceptionally(cause);
+                close(cause);
+            }
+        }
+
+        private void sendKeepAliveOnIntervalAfterDelay() {
+            if (isClosed()) {
+                return;
+            }
+            var keepAliveHandle = timerWheel.schedule(keepAliveTask, KEEPALIVE_INTERVAL_MS);
+            synchronized (this) {
+                this.keepAliveHandle = keepAliveHandle;
+            }
+        }
+
+        private void sendKeepAliveOnInterval() {
+            if (isClosed()) {
+                return;
+            }
+            if (Duration.between(getLastIncomingMessageTime(), Instant.now()).toMillis() > DISCONNECT_TIMEOUT_MS) {
+                close(new TimeoutException("Peer disconnected due to inactivity"));
+                return;
+            }
+            sendKeepAlive();
+            sendKeepAliveOnIntervalAfterDelay();
+        }
+
+        private void sendKeepAlive() {
+            synchronized (this) {
+                if (state != State.IDLE) {
+                    return;
+                }
+                state = State.WRITING_KEEPALIVE;
+            }
+            writeKeepAlive();
+        }
+
+        private void writeKeepAlive() {
+            try {
+                LOGGER.debug("Peer {} sending keep-alive", getIdentity());
+                buffer.clear();
+                buffer.putInt(0);
+                buffer.flip();
+                writeToChannel();
+            } catch (Throwable cause) {
+                close(cause);
+            }
+        }
+
+        private void writeToChannel() {
+            if (isClosed()) {
+                close(new IllegalStateException("Channel closed"));
+                return;
+            }
+
+            // Started before the write, which may complete synchronously and cancel it
+            timeout.start(WRITE_TIMEOUT_MS);
+            channel.write(buffer, null, this);
+        }
+
+        @Override
+        public void completed(Integer result, Void attachment) {
+            try {
+                timeout.cancel();
+
+                if (result < 0) {
+                    close(new IllegalStateException("Channel write failed"));
+                    return;
+                }
+
+                if (buffer.hasRemaining()) {
+                    writeToChannel();
+                    return;
+                }
+
+                updateLastOutgoingMessageTime();
+
+                if (state != State.WRITING_KEEPALIVE) {
+                    PendingMessage pendingMessage;
+                    synchronized (this) {
+                        pendingMessage = currentMessage;
+                        currentMessage = null;
+                    }
+                    if (pendingMessage == null) {
+                        throw new IllegalStateException("No current message");
+                    }
+                    pendingMessage.complete(null);
+                }
+
+                writeNextMessage();
+            } catch (Throwable cause) {
+                close(cause);
+            }
+        }
+
+        @Override
+        public void failed(Throwable cause, Void attachment) {
+            close(cause);
+        }
+
+        private void closeHandler(Throwable cause) {
+            timeout.cancel();
+
+            TimerWheel.Handle keepAliveHandle;
+            synchronized (this) {
+                keepAliveHandle = this.keepAliveHandle;
+            }
+            if (keepAliveHandle != null) {
+                keepAliveHandle.cancel();
+            }
+
+            PendingMessage currentMessage;
+            PendingMessage[] pendingMessagesArray;
+            synchronized (this) {
+                currentMessage = this.currentMessage;
+                pendingMessagesArray = pendingMessages.toArray(new PendingMessage[0]);
+                pendingMessages.clear();
+            }
+            if (currentMessage != null) {
+                currentMessage.completeExceptionally(cause);
+            }
+            for (var pendingMessage : pendingMessagesArray) {
+                pendingMessage.completeExceptionally(cause);
+            }
+        }
+    }
+
+    @Override
+    public @NotNull Instant getLastIncomingMessageTime() {
+        synchronized (lock) {
+            return lastIncomingMessageTime;
+        }
+    }
+    @Override
+    public @NotNull Instant getLastOutgoingMessageTime() {
+        synchronized (lock) {
+            return lastOutgoingMessageTime;
+        }
+    }
+
+    private void updateLastIncomingMessageTime() {
+        Instant now = Instant.now();
+        synchronized (lock) {
+            lastIncomingMessageTime = now;
+        }
+    }
+    private void updateLastOutgoingMessageTime() {
+        Instant now = Instant.now();
+        synchronized (lock) {
+            lastOutgoingMessageTime = now;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connectionState.get() == 2;
+    }
+
+    private void setConnectionStateDisconnected() {
+        connectionState.set(0);
+    }
+    private void setConnectionStateConnected() {
+        connectionState.set(2);
+    }
+
+    private boolean trySetConnectionStateConnecting() {
+        return connectionState.getAndUpdate(value -> value == 0 ? 1 : value) != 0;
+    }
+
+    @Override
+    public boolean isClosed() {
+        if (isClosed.get()) return true;
+        if (!channel.isOpen()) {
+            close();
+            return true;
+        }
+        return false;
+    }
+
+    private void assertNotClosed() {
+        if (isClosed()) {
+            throw new IllegalStateException("Peer is closed");
+        }
+    }
+
+    private void close(@Nullable Throwable cause) {
+        if (isClosed.getAndSet(true)) {
+            return;
+        }
+
+        setConnectionStateDisconnected();
+
+        if (cause == null) {
+            cause = new IllegalStateException("Peer closed");
+        } else {
+            cause = Throwables.unwrap(cause);
+        }
+
+        var identity = getIdentity();
+        if (identity == null) {
+            LOGGER.debug("Peer (no identity) closed: {}", Throwables.getMessage(cause));
+        } else {
+            LOGGER.info("Peer {} closed: {}", identity, Throwables.getMessage(cause));
+        }
+
+        if (!Throwables.isExpected(cause)) {
+            if (identity == null) {
+                LOGGER.debug("Peer (no identity) closed with unexpected exception", cause);
+            } else {
+                LOGGER.error("Peer {} closed with unexpected exception", identity, cause);
+            }
+        }
+
+        // Close read/write handlers
+
+        ReadHandler readHandler;
+        WriteHandler writeHandler;
+        synchronized (lock) {
+            readHandler = this.readHandler;
+            writeHandler = this.writeHandler;
+            this.readHandler = null;
+            this.writeHandler = null;
+        }
+        if (readHandler != null) {
+            try {
+                readHandler.closeHandler(cause);
+            } catch (Throwable readHandlerCause) {
+                cause.addSuppressed(readHandlerCause);
+            }
+        }
+        if (writeHandler != null) {
+            try {
+                writeHandler.closeHandler(cause);
+            } catch (Throwable writeHandlerCause) {
+                cause.addSuppressed(writeHandlerCause);
+            }
+        }
+
+        // Close channel
+
+        try {
+            channel.close();
+        } catch (Throwable channelCause) {
+            cause.addSuppressed(channelCause);
+        }
+
+        // Publish close event
+
+        try {
+            listener.onClose(cause);
+        } catch (Throwable ignored) {}
+    }
+
+    @Override
+    public void close() {
+        close(null);
+    }
+
+    @Override
+    public @NotNull CompletableFuture<Void> send(@NotNull Message message) {
+        Objects.requireNonNull(message, "Argument 'message'");
+        assertNotClosed();
+        WriteHandler writeHandler;
+        synchronized (lock) {
+            writeHandler = this.writeHandler;
+        }
+        if (writeHandler == null) {
+            throw new IllegalStateException("Peer not connected/established");
+        }
+        return writeHandler.send(message);
+    }
+
+    private final class Handshake {
+        private final ByteBuffer buffer = ByteBuffer.allocate(ProtocolHandshake.LENGTH);
+        private final Timeout timeout = new Timeout(timerWheel, () -> close(new TimeoutException("Handshake timed out")));
+
+        private final @NotNull Identity clientIdentity;
+        private final @NotNull Extensions clientExtensions;
+        private final @NotNull InetSocketAddress peerAddress;
+
+        private @Nullable Hash infoHash;
+
+        private Handshake(
+                @NotNull Identity clientIdentity,
+                @NotNull Extensions clientExtensions,
+                @NotNull InetSocketAddress peerAddress,
+                @Nullable Hash infoHash
+        ) {
+            this.clientIdentity = clientIdentity;
+            this.clientExtensions = clientExtensions;
+            this.peerAddress = peerAddress;
+            this.infoHash = infoHash;
+        }
+
+        // Receive incoming handshake from peer
+        private CompletableFuture<ProtocolHandshake.PeerHandshake> recv() {
+            return CompletableFuture.completedFuture(null)
+                    .thenCompose(__ -> {
+                        assertNotClosed();
+
+                        LOGGER.debug("Peer socket {} connecting, receiving response handshake", peerAddress);
+
+                        buffer.clear();
+
+                        timeout.start(READ_HANDSHAKE_TIMEOUT_MS);
+                        return IO.asyncChannelReadAll(channel, buffer);
+                    })
+                    .thenApply(__ -> {
+                        timeout.cancel();
+
+                        updateLastIncomingMessageTime();
+
+                        var peerHandshake = ProtocolHandshake.read(buffer, peerAddress, infoHash);
+                        if (infoHash == null) {
+                            infoHash = peerHandshake.peerInfoHash();
+                        }
+                        return peerHandshake;
+                    });
+        }
+
+        // Send outgoing handshake to peer
+        private CompletableFuture<Void> send() {
+            return CompletableFuture.completedFuture(null)
+                    .thenCompose(__ -> {
+                        assertNotClosed();
+
+                        LOGGER.debug("Peer socket {} connecting, sending request handshake", peerAddress);
+
+                        buffer.clear();
+                        ProtocolHandshake.write(buffer, clientExtensions, infoHash, clientIdentity);
+                        buffer.flip();
+
+                        timeout.start(WRITE_HANDSHAKE_TIMEOUT_MS);
+                        return IO.asyncChannelWriteAll(channel, buffer);
+                    })
+                    .thenApply(__ -> {
+                        timeout.cancel();
+
+                        updateLastOutgoingMessageTime();
+
+                        return null;
+                    });
+        }
+
+        // Set up state and "establish" connection with peer
+        private CompletableFuture<Identity> establish(ProtocolHandshake.PeerHandshake peerHandshake) {
+            return CompletableFuture.supplyAsync(() -> {
+                assertNotClosed();
+
+                var readHandler = new ReadHandler();
+                var writeHandler = new WriteHandler();
+
+                synchronized (lock) {
+                    AsyncProtocol.this.infoHash = peerHandshake.peerInfoHash();
+                    AsyncProtocol.this.identity = peerHandshake.peerIdentity();
+                    AsyncProtocol.this.extensions = peerHandshake.peerExtensions();
+                    AsyncProtocol.this.readHandler = readHandler;
+                    AsyncProtocol.this.writeHandler = writeHandler;
+                }
+
+                setConnectionStateConnected();
+
+                LOGGER.debug("Peer {} socket {} connected", peerHandshake.peerIdentity(), peerAddress);
+                LOGGER.info("Peer {} connected", peerHandshake.peerIdentity());
+
+                // The listener has to be set up before the first message arrives, so reading starts after it
+                listener.onConnect(peerHandshake.peerIdentity());
+
+                readHandler.readFromChannel();
+                writeHandler.sendKeepAliveOnIntervalAfterDelay();
+
+                return peerHandshake.peerIdentity();
+            }, executor);
+        }
+
+        // Clean up on completion
+        private void complete(Object ignored, Throwable cause) {
+            timeout.cancel();
+            if (cause != null) {
+                LOGGER.debug("Peer socket {} handshake failed: {}", peerAddress, Throwables.getMessage(cause));
+                close(cause);
+            }
+        }
+
+        private CompletableFuture<Identity> establish(Supplier<CompletableFuture<ProtocolHandshake.PeerHandshake>> peerHandshakeFutureSupplier) {
+            if (isClosed()) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Peer closed"));
+            }
+            if (trySetConnectionStateConnecting()) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Peer already connected"));
+            }
+            return peerHandshakeFutureSupplier.get()
+                    .thenCompose(this::establish)
+                    .whenComplete(this::complete);
+        }
+
+        private CompletableFuture<Identity> establishOutgoing() {
+            return establish(() -> {
+                return CompletableFuture.completedFuture(null)
+                        .thenCompose(__ -> send())
+                        .thenCompose(__ -> recv());
+            });
+        }
+        private CompletableFuture<Identity> establishIncoming() {
+            return establish(() -> {
+                return CompletableFuture.completedFuture(null)
+                        .thenCompose(__ -> recv())
+                        .thenCompose(peerHandshake -> send().thenApply(__ -> peerHandshake));
+            });
+        }
+    }
+
+    @Override
+    public @NotNull CompletableFuture<@NotNull Identity> establishOutgoing(
+            @NotNull Identity clientIdentity,
+            @NotNull Extensions clientExtensions,
+            @NotNull InetSocketAddress peerAddress,
+            @NotNull Hash infoHash
+    ) {
+        Objects.requireNonNull(clientIdentity, "Argument 'clientIdentity'");
+        Objects.requireNonNull(peerAddress, "Argument 'peerAddress'");
+        Objects.requireNonNull(infoHash, "Argument 'infoHash'");
+        if (infoHash.length() != 20) {
+            throw new IllegalArgumentException("Infohash length is not 20 bytes");
+        }
+        return new Handshake(clientIdentity, clientExtensions, peerAddress, infoHash).establishOutgoing();
+    }
+    @Override
+    public @NotNull CompletableFuture<@NotNull Identity> establishIncoming(
+            @NotNull Identity clientIdentity,
+            @NotNull Extensions clientExtensions,
+            @NotNull InetSocketAddress peerAddress
+    ) {
+        Objects.requireNonNull(clientIdentity, "Argument 'clientIdentity'");
+        Objects.requireNonNull(peerAddress, "Argument 'peerAddress'");
+        return new Handshake(clientIdentity, clientExtensions, peerAddress, null).establishIncoming();
+    }
+
+    @Override
+    public @Nullable Hash getInfoHash() {
+        synchronized (lock) {
+            return infoHash;
+        }
+    }
+
+    @Override
+    public @Nullable Identity getIdentity() {
+        synchronized (lock) {
+            return identity;
+        }
+    }
+    @Override
+    public @Nullable Extensions getExtensions() {
+        synchronized (lock) {
+            return extensions;
+        }
+    }
+
+    @Override
+    public @NotNull String toString() {
+        synchronized (lock) {
+            return String.format(
+                "AsyncProtocol{infoHash=%s, identity=%s, extensions=%s, isClosed=%s, isConnected=%s}",
+                infoHash, identity, extensions, isClosed(), isConnected()
+            );
+        }
+    }
+
+}
@@ -3,47 +3,88 @@ package dev.foxgirl.torrent.client;
 import dev.foxgirl.torrent.metainfo.Info;
 import org.jetbrains.annotations.NotNull;
 
+import java.nio.ByteBuffer;
 import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongBinaryOperator;
 
 public final class BitField {
 
     private final @NotNull Info info;
-    private final @NotNull BitSet bitset;
+
+    // Lock-free, bit i lives in word i / 64, each word is updated with compare-and-set.
+    // Bulk operations are atomic per word only, so concurrent readers may see them partially applied.
+    private final @NotNull AtomicLongArray words;
+    private final AtomicInteger cardinality = new AtomicInteger();
 
     public BitField(@NotNull Info info) {
         this.info = info;
-        this.bitset = new BitSet(info.getPieceCount());
+        this.words = new AtomicLongArray((info.getPieceCount() + 63) >>> 6);
     }
 
     public @NotNull Info getInfo() {
         return info;
     }
 
-    public synchronized @NotNull BitSet getBitSet() {
-        return (BitSet) bitset.clone();
+    public @NotNull BitSet getBitSet() {
+        var array = new long[words.length()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = words.get(i);
+        }
+        return BitSet.valueOf(array);
     }
 
     public int byteLength() {
         return (info.getPieceCount() + 7) / 8;
     }
 
-    public synchronized byte @NotNull [] toArray() {
+    // The high bit of the first byte corresponds to piece 0
+    public byte @NotNull [] toArray() {
         var bytes = new byte[byteLength()];
         for (int i = 0, length = bytes.length; i < length; i++) {
-            for (int j = 0; j < 8; j++) {
-                if (bitset.get(i * 8 + j)) {
-                    bytes[i] |= (byte) (1 << j);
+            int value = (int) (words.get(i >>> 3) >>> ((i & 7) << 3)) & 0xFF;
+            bytes[i] = (byte) (Integer.reverse(value) >>> 24);
+        }
+        return bytes;
+    }
+
+    public @NotNull BitSet fromArray(@NotNull ByteBuffer buffer) {
+        if (buffer.remaining() != byteLength()) {
+            throw new IllegalArgumentException("Invalid bitfield length, expected " + byteLength() + ", actual " + buffer.remaining());
+        }
+        var pieceCount = info.getPieceCount();
+        var bitset = new BitSet(pieceCount);
+        for (int i = 0, length = buffer.remaining(); i < length; i++) {
+            int value = buffer.get() & 0xFF;
+            for (int j = 0; j < 8 && i * 8 + j < pieceCount; j++) {
+                if ((value & (0x80 >>> j)) != 0) {
+                    bitset.set(i * 8 + j);
                 }
             }
         }
-        return bytes;
+        return bitset;
     }
 
-    public synchronized boolean get(int index) {
-        return bitset.get(index);
+    public boolean get(int index) {
+        Objects.checkIndex(index, info.getPieceCount());
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+    public void set(int index, boolean value) {
+        getAndSet(index, value);
     }
-    public synchronized void set(int index, boolean value) {
-        bitset.set(index, value);
+    public boolean getAndSet(int index, boolean value) {
+        Objects.checkIndex(index, info.getPieceCount());
+        long mask = 1L << index;
+        long previous = value
+            ? words.getAndAccumulate(index >>> 6, mask, (word, bit) -> word | bit)
+            : words.getAndAccumulate(index >>> 6, mask, (word, bit) -> word & ~bit);
+        boolean wasSet = (previous & mask) != 0;
+        if (wasSet != value) {
+            cardinality.addAndGet(value ? 1 : -1);
+        }
+        return wasSet;
     }
     public void set(int index) {
         set(index, true);
@@ -52,40 +93,65 @@ public final class BitField {
         set(index, false);
     }
 
-    public synchronized void setAll() {
-        bitset.set(0, info.getPieceCount());
+    // Replaces each word with operator(word, other word), keeping the cardinality in step
+    private void update(int wordIndex, long operand, LongBinaryOperator operator) {
+        long previous = words.getAndAccumulate(wordIndex, operand, operator);
+        long current = operator.applyAsLong(previous, operand);
+        int delta = Long.bitCount(current) - Long.bitCount(previous);
+        if (delta != 0) {
+            cardinality.addAndGet(delta);
+        }
     }
-    public synchronized void clearAll() {
-        bitset.clear();
+
+    private long lastWordMask(int wordIndex) {
+        int bits = info.getPieceCount() - (wordIndex << 6);
+        return bits >= 64 ? -1L : (1L << bits) - 1;
     }
 
-    public synchronized void and(@NotNull BitSet other) {
-        bitset.and(other);
+    public void setAll() {
+        for (int i = 0, length = words.length(); i < length; i++) {
+            update(i, lastWordMask(i), (word, mask) -> word | mask);
+        }
     }
-    public synchronized void or(@NotNull BitSet other) {
-        bitset.or(other);
+    public void clearAll() {
+        for (int i = 0, length = words.length(); i < length; i++) {
+            update(i, 0L, (word, zero) -> zero);
+        }
     }
 
-    public void and(@NotNull BitField other) {
-        synchronized (other) {
-            and(other.bitset);
+    public void and(@NotNull BitSet other) {
+        var otherWords = other.toLongArray();
+        for (int i = 0, length = words.length(); i < length; i++) {
+            update(i, i < otherWords.length ? otherWords[i] : 0L, (word, mask) -> word & mask);
         }
     }
-    public void or(@NotNull BitField other) {
-        synchronized (other) {
-            or(other.bitset);
+    public void or(@NotNull BitSet other) {
+        var otherWords = other.toLongArray();
+        for (int i = 0, length = Math.min(words.length(), otherWords.length); i < length; i++) {
+            update(i, otherWords[i] & lastWordMask(i), (word, mask) -> word | mask);
         }
     }
 
-    public synchronized boolean isComplete() {
-        return bitset.cardinality() == info.getPieceCount();
+    public void and(@NotNull BitField other) {
+        and(other.getBitSet());
+    }
+    public void or(@NotNull BitField other) {
+        or(other.getBitSet());
+    }
+
+    public int cardinality() {
+        return cardinality.get();
+    }
+
+    public boolean isComplete() {
+        return cardinality() == info.getPieceCount();
     }
-    public synchronized boolean isEmpty() {
-        return bitset.isEmpty();
+    public boolean isEmpty() {
+        return cardinality() == 0;
     }
 
-    public synchronized float getPercentage() {
-        return (float) bitset.cardinality() * 100.0F / (float) info.getPieceCount();
+    public float getPercentage() {
+        return (float) cardinality() * 100.0F / (float) info.getPieceCount();
     }
     public int getPercentageInteger() {
         return Math.round(getPercentage());
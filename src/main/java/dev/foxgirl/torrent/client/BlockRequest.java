@@ -0,0 +1,48 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.metainfo.Info;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+public record BlockRequest(int pieceIndex, int offset, int length) {
+
+    public static final int BLOCK_LENGTH = 16 * 1024;
+
+    // Peers commonly drop connections that request blocks larger than this
+    public static final int MAX_BLOCK_LENGTH = 128 * 1024;
+
+    public static int getBlockCount(@NotNull Info info, int pieceIndex) {
+        return (int) ((info.getPieceLength(pieceIndex) + BLOCK_LENGTH - 1) / BLOCK_LENGTH);
+    }
+
+    public static @NotNull BlockRequest forBlock(@NotNull Info info, int pieceIndex, int blockIndex) {
+        Objects.requireNonNull(info, "Argument 'info'");
+        var pieceLength = info.getPieceLength(pieceIndex);
+        var offset = (long) blockIndex * BLOCK_LENGTH;
+        if (offset < 0 || offset >= pieceLength) {
+            throw new IllegalArgumentException("Invalid block index " + blockIndex + " for piece " + pieceIndex);
+        }
+        return new BlockRequest(pieceIndex, (int) offset, (int) Math.min(BLOCK_LENGTH, pieceLength - offset));
+    }
+
+    public static @NotNull BlockRequest fromPayload(@NotNull ByteBuffer payload) {
+        Objects.requireNonNull(payload, "Argument 'payload'");
+        if (payload.remaining() != 12) {
+            throw new IllegalStateException("Invalid request length, expected 12, actual " + payload.remaining());
+        }
+        return new BlockRequest(payload.getInt(), payload.getInt(), payload.getInt());
+    }
+
+    public boolean isValid(@NotNull Info info) {
+        if (pieceIndex < 0 || pieceIndex >= info.getPieceCount()) return false;
+        if (offset < 0 || length <= 0 || length > MAX_BLOCK_LENGTH) return false;
+        return (long) offset + length <= info.getPieceLength(pieceIndex);
+    }
+
+    public @NotNull ByteBuffer toPayload() {
+        return ByteBuffer.allocate(12).putInt(pieceIndex).putInt(offset).putInt(length).flip();
+    }
+
+}
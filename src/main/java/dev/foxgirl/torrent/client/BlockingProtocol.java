@@ -0,0 +1,522 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Protocol implementation using plain blocking reads and writes, with one reader and one writer
+// thread per connection. Intended to run on virtual threads, where blocking is cheap.
+public final class BlockingProtocol implements Protocol {
+
+    private final @NotNull ByteChannel channel;
+    private final @NotNull Protocol.Listener listener;
+    private final @NotNull Executor executor;
+    private final @NotNull TimerWheel timerWheel;
+
+    // The executor must start a new thread per task, since both loops block for the connection lifetime
+    public BlockingProtocol(@NotNull ByteChannel channel, @NotNull Protocol.Listener listener, @NotNull Executor executor) {
+        this(channel, listener, executor, DefaultExecutors.getTimerWheel());
+    }
+
+    public BlockingProtocol(
+            @NotNull ByteChannel channel,
+            @NotNull Protocol.Listener listener,
+            @NotNull Executor executor,
+            @NotNull TimerWheel timerWheel
+    ) {
+        Objects.requireNonNull(channel, "Argument 'channel'");
+        Objects.requireNonNull(listener, "Argument 'listener'");
+        Objects.requireNonNull(executor, "Argument 'executor'");
+        Objects.requireNonNull(timerWheel, "Argument 'timerWheel'");
+        this.channel = channel;
+        this.listener = listener;
+        this.executor = executor;
+        this.timerWheel = timerWheel;
+        this.readTimeout = new Timeout(timerWheel, () -> close(new TimeoutException("Channel read timed out")));
+        this.writeTimeout = new Timeout(timerWheel, () -> close(new TimeoutException("Channel write timed out")));
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockingProtocol.class);
+
+    private static final long READ_TIMEOUT_MS = 120 * 1000;
+    private static final long WRITE_TIMEOUT_MS = 30 * 1000;
+    private static final long OPERATION_TIMEOUT_MS = 15 * 1000;
+    private static final long DISCONNECT_TIMEOUT_MS = 150 * 1000;
+    private static final long HANDSHAKE_TIMEOUT_MS = 10 * 1000;
+    private static final long KEEPALIVE_INTERVAL_MS = 60 * 1000;
+
+    private static final int READ_BUFFER_SIZE = 36 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 36 * 1024;
+
+    private final AtomicInteger connectionState = new AtomicInteger();
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    private final Object lock = new Object();
+
+    private Instant lastIncomingMessageTime = Instant.MIN;
+    private Instant lastOutgoingMessageTime = Instant.MIN;
+
+    private Hash infoHash;
+    private Identity identity;
+    private Extensions extensions;
+
+    private static final class PendingMessage extends CompletableFuture<Void> {
+        private final Message message;
+
+        private PendingMessage(Message message) {
+            this.message = message;
+        }
+    }
+
+    // Wakes up the writer when the connection closes
+    private static final PendingMessage CLOSED = new PendingMessage(null);
+
+    private final BlockingQueue<PendingMessage> pendingMessages = new LinkedBlockingQueue<>();
+
+    private final Timeout readTimeout;
+    private final Timeout writeTimeout;
+
+    private void readFully(ByteBuffer buffer, long timeoutMs) throws IOException {
+        readTimeout.start(timeoutMs);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Unexpected EOF while reading");
+                }
+            }
+        } finally {
+            readTimeout.cancel();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long timeoutMs) throws IOException {
+        writeTimeout.start(timeoutMs);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            writeTimeout.cancel();
+        }
+    }
+
+    private void readLoop() {
+        try {
+            var buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            while (!isClosed()) {
+                readTimeout.start(READ_TIMEOUT_MS);
+                int count;
+                try {
+                    count = channel.read(buffer);
+                } finally {
+                    readTimeout.cancel();
+                }
+                if (count < 0) {
+                    throw new EOFException("Channel read failed");
+                }
+
+                buffer.flip();
+                boolean hasMessage;
+                do {
+                    hasMessage = readMessage(buffer);
+                } while (hasMessage);
+                buffer.compact();
+            }
+        } catch (Throwable cause) {
+            close(cause);
+        }
+    }
+
+    // Dispatches one complete message from the buffer, returns false if more bytes are needed
+    private boolean readMessage(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return false;
+        }
+
+        int start = buffer.position();
+        int messageLength = buffer.getInt(start);
+        if (messageLength < 0) {
+            throw new IllegalStateException("(Reading) Message length is negative: " + messageLength);
+        }
+
+        // Handle keep-alive message
+        if (messageLength == 0) {
+            LOGGER.debug("Peer {} received keep-alive", getIdentity());
+            updateLastIncomingMessageTime();
+            buffer.position(start + 4);
+            return true;
+        }
+
+        if (buffer.remaining() < 5) {
+            return false;
+        }
+
+        int messageID = buffer.get(start + 4) & 0xFF;
+        var messageType = MessageType.valueOf(messageID);
+        if (messageType == null) {
+            throw new IllegalStateException("(Reading) Message type not supported: " + String.format("0x%02X", messageID));
+        }
+
+        int messagePayloadLength = messageLength - 1;
+        int messageTotalLength = messagePayloadLength + 5;
+        if (messageTotalLength < 0) {
+            throw new IllegalStateException("(Reading) Message " + messageType + " payload length is negative or too large: " + messagePayloadLength);
+        }
+        if (messageTotalLength > buffer.capacity()) {
+            throw new IllegalStateException("(Reading) Message " + messageType + " total length exceeds buffer capacity: " + messageTotalLength);
+        }
+        if (messageTotalLength > buffer.remaining()) {
+            return false;
+        }
+
+        LOGGER.debug("Peer {} received message {} with length {}", getIdentity(), messageType, messagePayloadLength);
+
+        updateLastIncomingMessageTime();
+
+        var messagePayload = buffer.asReadOnlyBuffer().limit(start + messageTotalLength).position(start + 5);
+        try {
+            listener.onReceive(new MessageImpl(messageType, messagePayload, messagePayloadLength));
+        } catch (Throwable cause) {
+            throw new RuntimeException("(Reading) Failed to process message " + messageType + " with length " + messagePayloadLength, cause);
+        }
+
+        buffer.position(start + messageTotalLength);
+        return true;
+    }
+
+    private void writeLoop() {
+        var batch = new ArrayList<PendingMessage>();
+        try {
+            var buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            while (!isClosed()) {
+                var pendingMessage = pendingMessages.poll(KEEPALIVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (pendingMessage == CLOSED) {
+                    break;
+                }
+
+                buffer.clear();
+                if (pendingMessage == null) {
+                    if (Duration.between(getLastIncomingMessageTime(), Instant.now()).toMillis() > DISCONNECT_TIMEOUT_MS) {
+                        throw new TimeoutException("Peer disconnected due to inactivity");
+                    }
+                    LOGGER.debug("Peer {} sending keep-alive", getIdentity());
+                    buffer.putInt(0);
+                } else {
+                    // Coalesce queued messages into a single write while they fit
+                    do {
+                        batch.add(pendingMessage);
+                        writeMessage(buffer, pendingMessage.message);
+                        pendingMessage = pendingMessages.peek();
+                    } while (
+                        pendingMessage != null && pendingMessage != CLOSED
+                        && pendingMessage.message.getLength() + 5 <= buffer.remaining()
+                        && pendingMessages.poll() != null
+                    );
+                }
+
+                buffer.flip();
+                writeFully(buffer, WRITE_TIMEOUT_MS);
+                updateLastOutgoingMessageTime();
+
+                for (var message : batch) {
+                    message.complete(null);
+                }
+                batch.clear();
+            }
+        } catch (Throwable cause) {
+            for (var message : batch) {
+                message.completeExceptionally(cause);
+            }
+            close(cause);
+        }
+    }
+
+    private void writeMessage(ByteBuffer buffer, Message message) throws Exception {
+        var messageType = message.getType();
+        if (messageType == null) {
+            throw new IllegalStateException("(Writing) Message type is null");
+        }
+
+        var messageLength = message.getLength();
+        if (messageLength < 0) {
+            throw new IllegalStateException("(Writing) Message " + messageType + " length is negative: " + messageLength);
+        }
+        if (messageLength > buffer.capacity() - 5) {
+            throw new IllegalStateException("(Writing) Message " + messageType + " length exceeds buffer capacity: " + messageLength);
+        }
+
+        LOGGER.debug("Peer {} sending message {} with length {}", getIdentity(), messageType, messageLength);
+
+        buffer.putInt(messageLength + 1);
+        buffer.put(messageType.getID());
+
+        var future = message.writePayloadTo(buffer);
+        if (future != null) {
+            try {
+                future.get(OPERATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException cause) {
+                throw new RuntimeException("(Writing) Failed to write message " + messageType + " with length " + messageLength, cause.getCause());
+            }
+        }
+    }
+
+    @Override
+    public @NotNull Instant getLastIncomingMessageTime() {
+        synchronized (lock) {
+            return lastIncomingMessageTime;
+        }
+    }
+    @Override
+    public @NotNull Instant getLastOutgoingMessageTime() {
+        synchronized (lock) {
+            return lastOutgoingMessageTime;
+        }
+    }
+
+    private void updateLastIncomingMessageTime() {
+        Instant now = Instant.now();
+        synchronized (lock) {
+            lastIncomingMessageTime = now;
+        }
+    }
+    private void updateLastOutgoingMessageTime() {
+        Instant now = Instant.now();
+        synchronized (lock) {
+            lastOutgoingMessageTime = now;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connectionState.get() == 2;
+    }
+
+    @Override
+    public boolean isClosed() {
+        if (isClosed.get()) return true;
+        if (!channel.isOpen()) {
+            close();
+            return true;
+        }
+        return false;
+    }
+
+    private void assertNotClosed() {
+        if (isClosed()) {
+            throw new IllegalStateException("Peer is closed");
+        }
+    }
+
+    private void close(@Nullable Throwable cause) {
+        if (isClosed.getAndSet(true)) {
+            return;
+        }
+
+        connectionState.set(0);
+
+        if (cause == null) {
+            cause = new IllegalStateException("Peer closed");
+        } else {
+            cause = Throwables.unwrap(cause);
+        }
+
+        var identity = getIdentity();
+        if (identity == null) {
+            LOGGER.debug("Peer (no identity) closed: {}", Throwables.getMessage(cause));
+        } else {
+            LOGGER.info("Peer {} closed: {}", identity, Throwables.getMessage(cause));
+        }
+
+        if (!Throwables.isExpected(cause)) {
+            if (identity == null) {
+                LOGGER.debug("Peer (no identity) closed with unexpected exception", cause);
+            } else {
+                LOGGER.error("Peer {} closed with unexpected exception", identity, cause);
+            }
+        }
+
+        readTimeout.cancel();
+        writeTimeout.cancel();
+
+        // Closing the channel unblocks the reader and any in-progress write
+        try {
+            channel.close();
+        } catch (Throwable channelCause) {
+            cause.addSuppressed(channelCause);
+        }
+
+        PendingMessage pendingMessage;
+        while ((pendingMessage = pendingMessages.poll()) != null) {
+            if (pendingMessage != CLOSED) pendingMessage.completeExceptionally(cause);
+        }
+        pendingMessages.add(CLOSED);
+
+        try {
+            listener.onClose(cause);
+        } catch (Throwable ignored) {}
+    }
+
+    @Override
+    public void close() {
+        close(null);
+    }
+
+    @Override
+    public @NotNull CompletableFuture<Void> send(@NotNull Message message) {
+        Objects.requireNonNull(message, "Argument 'message'");
+        assertNotClosed();
+        if (!isConnected()) {
+            throw new IllegalStateException("Peer not connected/established");
+        }
+        var pendingMessage = new PendingMessage(message);
+        pendingMessages.add(pendingMessage);
+        // Closed concurrently, the writer may never see this message
+        if (isClosed.get() && pendingMessages.remove(pendingMessage)) {
+            pendingMessage.completeExceptionally(new IllegalStateException("Peer closed"));
+        }
+        return pendingMessage;
+    }
+
+    private @NotNull CompletableFuture<@NotNull Identity> establish(
+            @NotNull Identity clientIdentity,
+            @NotNull Extensions clientExtensions,
+            @NotNull InetSocketAddress peerAddress,
+            @Nullable Hash infoHash
+    ) {
+        if (isClosed()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Peer closed"));
+        }
+        if (connectionState.getAndUpdate(value -> value == 0 ? 1 : value) != 0) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Peer already connected"));
+        }
+
+        var future = new CompletableFuture<Identity>();
+        executor.execute(() -> {
+            ProtocolHandshake.PeerHandshake peerHandshake;
+            try {
+                var buffer = ByteBuffer.allocate(ProtocolHandshake.LENGTH);
+                if (infoHash != null) {
+                    LOGGER.debug("Peer socket {} connecting, sending request handshake", peerAddress);
+                    ProtocolHandshake.write(buffer, clientExtensions, infoHash, clientIdentity);
+                    writeFully(buffer.flip(), HANDSHAKE_TIMEOUT_MS);
+                    updateLastOutgoingMessageTime();
+
+                    LOGGER.debug("Peer socket {} connecting, receiving response handshake", peerAddress);
+                    readFully(buffer.clear(), HANDSHAKE_TIMEOUT_MS);
+                    updateLastIncomingMessageTime();
+                    peerHandshake = ProtocolHandshake.read(buffer.flip(), peerAddress, infoHash);
+                } else {
+                    LOGGER.debug("Peer socket {} connecting, receiving request handshake", peerAddress);
+                    readFully(buffer, HANDSHAKE_TIMEOUT_MS);
+                    updateLastIncomingMessageTime();
+                    peerHandshake = ProtocolHandshake.read(buffer.flip(), peerAddress, null);
+
+                    LOGGER.debug("Peer socket {} connecting, sending response handshake", peerAddress);
+                    ProtocolHandshake.write(buffer.clear(), clientExtensions, peerHandshake.peerInfoHash(), clientIdentity);
+                    writeFully(buffer.flip(), HANDSHAKE_TIMEOUT_MS);
+                    updateLastOutgoingMessageTime();
+                }
+
+                assertNotClosed();
+
+                synchronized (lock) {
+                    this.infoHash = peerHandshake.peerInfoHash();
+                    this.identity = peerHandshake.peerIdentity();
+                    this.extensions = peerHandshake.peerExtensions();
+                }
+
+                connectionState.set(2);
+                executor.execute(this::writeLoop);
+
+                LOGGER.debug("Peer {} socket {} connected", peerHandshake.peerIdentity(), peerAddress);
+                LOGGER.info("Peer {} connected", peerHandshake.peerIdentity());
+
+                listener.onConnect(peerHandshake.peerIdentity());
+            } catch (Throwable cause) {
+                LOGGER.debug("Peer socket {} handshake failed: {}", peerAddress, Throwables.getMessage(cause));
+                future.completeExceptionally(cause);
+                close(cause);
+                return;
+            }
+
+            future.complete(peerHandshake.peerIdentity());
+
+            // This thread becomes the reader for the rest of the connection
+            readLoop();
+        });
+        return future;
+    }
+
+    @Override
+    public @NotNull CompletableFuture<@NotNull Identity> establishOutgoing(
+            @NotNull Identity clientIdentity,
+            @NotNull Extensions clientExtensions,
+            @NotNull InetSocketAddress peerAddress,
+            @NotNull Hash infoHash
+    ) {
+        Objects.requireNonNull(clientIdentity, "Argument 'clientIdentity'");
+        Objects.requireNonNull(peerAddress, "Argument 'peerAddress'");
+        Objects.requireNonNull(infoHash, "Argument 'infoHash'");
+        if (infoHash.length() != 20) {
+            throw new IllegalArgumentException("Infohash length is not 20 bytes");
+        }
+        return establish(clientIdentity, clientExtensions, peerAddress, infoHash);
+    }
+
+    @Override
+    public @NotNull CompletableFuture<@NotNull Identity> establishIncoming(
+            @NotNull Identity clientIdentity,
+            @NotNull Extensions clientExtensions,
+            @NotNull InetSocketAddress peerAddress
+    ) {
+        Objects.requireNonNull(clientIdentity, "Argument 'clientIdentity'");
+        Objects.requireNonNull(peerAddress, "Argument 'peerAddress'");
+        return establish(clientIdentity, clientExtensions, peerAddress, null);
+    }
+
+    @Override
+    public @Nullable Hash getInfoHash() {
+        synchronized (lock) {
+            return infoHash;
+        }
+    }
+
+    @Override
+    public @Nullable Identity getIdentity() {
+        synchronized (lock) {
+            return identity;
+        }
+    }
+    @Override
+    public @Nullable Extensions getExtensions() {
+        synchronized (lock) {
+            return extensions;
+        }
+    }
+
+    @Override
+    public @NotNull String toString() {
+        synchronized (lock) {
+            return String.format(
+                "BlockingProtocol{infoHash=%s, identity=%s, extensions=%s, isClosed=%s, isConnected=%s}",
+                infoHash, identity, extensions, isClosed(), isConnected()
+            );
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package dev.foxgirl.torrent.client;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.function.ToDoubleFunction;
+
+// Tit-for-tat unchoking. The interested peers with the best rates get the regular slots, and one
+// optimistic slot rotates through the rest so that new peers get a chance to prove themselves.
+// Generic over the peer type so that simulations can drive it without real connections.
+public final class Choker<P> {
+
+    public static final int DEFAULT_SLOT_COUNT = 4;
+
+    // The optimistic slot moves on every this many rechokes
+    private static final int OPTIMISTIC_ROUNDS = 3;
+
+    private final int slotCount;
+    private final @NotNull Random random;
+
+    private final Set<P> unchoked = new HashSet<>();
+    private P optimistic;
+    private int round = 0;
+
+    public Choker() {
+        this(DEFAULT_SLOT_COUNT, new Random());
+    }
+
+    public Choker(int slotCount, @NotNull Random random) {
+        if (slotCount < 0) {
+            throw new IllegalArgumentException("Slot count is negative");
+        }
+        Objects.requireNonNull(random, "Argument 'random'");
+        this.slotCount = slotCount;
+        this.random = random;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public synchronized boolean isUnchoked(@NotNull P peer) {
+        return unchoked.contains(peer);
+    }
+
+    public synchronized int getUnchokedCount() {
+        return unchoked.size();
+    }
+
+    // Takes a free slot for a newly interested peer without waiting for the next rechoke
+    public synchronized boolean tryUnchoke(@NotNull P peer) {
+        Objects.requireNonNull(peer, "Argument 'peer'");
+        if (unchoked.contains(peer)) {
+            return true;
+        }
+        if (unchoked.size() >= slotCount + 1) {
+            return false;
+        }
+        unchoked.add(peer);
+        return true;
+    }
+
+    public synchronized void remove(@NotNull P peer) {
+        Objects.requireNonNull(peer, "Argument 'peer'");
+        unchoked.remove(peer);
+        if (optimistic == peer) {
+            optimistic = null;
+        }
+    }
+
+    // Picks the peers to unchoke out of the interested ones, every other peer should be choked
+    public synchronized @NotNull Set<@NotNull P> rechoke(
+            @NotNull Collection<@NotNull P> interested,
+            @NotNull ToDoubleFunction<? super P> rate
+    ) {
+        Objects.requireNonNull(interested, "Argument 'interested'");
+        Objects.requireNonNull(rate, "Argument 'rate'");
+
+        // Shuffled first so that ties, such as every rate being zero at the start, are broken randomly
+        var peers = new ArrayList<P>(interested);
+        Collections.shuffle(peers, random);
+        var rates = new IdentityHashMap<P, Double>(peers.size());
+        for (var peer : peers) {
+            rates.put(peer, rate.applyAsDouble(peer));
+        }
+        peers.sort((a, b) -> Double.compare(rates.get(b), rates.get(a)));
+
+        unchoked.clear();
+        int regularCount = Math.min(slotCount, peers.size());
+        unchoked.addAll(peers.subList(0, regularCount));
+
+        var others = peers.subList(regularCount, peers.size());
+        if (others.isEmpty()) {
+            optimistic = null;
+        } else if (optimistic == null || round % OPTIMISTIC_ROUNDS == 0 || !others.contains(optimistic)) {
+            optimistic = others.get(random.nextInt(others.size()));
+        }
+        if (optimistic != null) {
+            unchoked.add(optimistic);
+        }
+        round++;
+
+        return Set.copyOf(unchoked);
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "Choker{slotCount=" + slotCount + ", unchoked=" + getUnchokedCount() + "}";
+    }
+
+}
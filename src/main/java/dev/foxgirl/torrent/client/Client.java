@@ -1,25 +1,90 @@
 package dev.foxgirl.torrent.client;
 
+import dev.foxgirl.torrent.dht.DhtNode;
 import dev.foxgirl.torrent.metainfo.Info;
+import dev.foxgirl.torrent.storage.BufferPool;
+import dev.foxgirl.torrent.storage.MemoryStorage;
+import dev.foxgirl.torrent.storage.ReadCache;
+import dev.foxgirl.torrent.storage.Storage;
+import dev.foxgirl.torrent.tracker.UdpTracker;
 import dev.foxgirl.torrent.util.Hash;
+import dev.foxgirl.torrent.util.Timeout;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class Client implements AutoCloseable {
 
+    public enum Engine {
+        // Completion handler state machines on the client's channel group
+        ASYNC,
+        // Blocking reads and writes on the client's blocking executor, best with virtual threads
+        BLOCKING
+    }
+
     private final @NotNull Identity identity;
     private final @NotNull Extensions extensions;
+    private final @NotNull ClientExecutors executors;
+    private final @NotNull Engine engine;
+    private final @NotNull BufferPool bufferPool;
+    private final @NotNull BufferPool readBufferPool;
+
+    private static final long CONNECT_TIMEOUT_MS = 10 * 1000;
 
     private final AtomicBoolean isClosed = new AtomicBoolean();
-    private final Map<Hash, Swarm> swarms = new LinkedHashMap<>(32);
+    private final Map<Hash, Swarm> swarms = new ConcurrentHashMap<>(32);
+    private final Collection<Swarm> swarmsView = Collections.unmodifiableCollection(swarms.values());
+
+    private UdpTracker udpTracker;
+    private DhtNode dhtNode;
+
+    public Client(@NotNull Identity identity) throws IOException {
+        this(identity, new ClientExecutors());
+    }
+
+    public Client(@NotNull Identity identity, @NotNull ClientExecutors executors) {
+        this(identity, executors, Engine.ASYNC);
+    }
+
+    public Client(@NotNull Identity identity, @NotNull ClientExecutors executors, @NotNull Engine engine) {
+        this(identity, executors, engine, new BufferPool());
+    }
+
+    public Client(@NotNull Identity identity, @NotNull ClientExecutors executors, @NotNull Engine engine, @NotNull BufferPool bufferPool) {
+        this(identity, executors, engine, bufferPool, new BufferPool(ReadCache.DEFAULT_BUDGET));
+    }
 
-    public Client(@NotNull Identity identity) {
+    public Client(
+            @NotNull Identity identity,
+            @NotNull ClientExecutors executors,
+            @NotNull Engine engine,
+            @NotNull BufferPool bufferPool,
+            @NotNull BufferPool readBufferPool
+    ) {
         Objects.requireNonNull(identity, "Argument 'identity'");
+        Objects.requireNonNull(executors, "Argument 'executors'");
+        Objects.requireNonNull(engine, "Argument 'engine'");
+        Objects.requireNonNull(bufferPool, "Argument 'bufferPool'");
+        Objects.requireNonNull(readBufferPool, "Argument 'readBufferPool'");
+        if (readBufferPool == bufferPool) {
+            throw new IllegalArgumentException("Read cache pool is the same as the piece cache pool");
+        }
         this.identity = identity;
         this.extensions = Extensions.getSupportedExtensions();
+        this.executors = executors;
+        this.engine = engine;
+        this.bufferPool = bufferPool;
+        this.readBufferPool = readBufferPool;
     }
 
     public @NotNull Identity getIdentity() {
@@ -29,46 +94,176 @@ public final class Client implements AutoCloseable {
         return extensions.copyImmutable();
     }
 
+    public @NotNull ClientExecutors getExecutors() {
+        return executors;
+    }
+
+    public @NotNull Engine getEngine() {
+        return engine;
+    }
+
+    // Memory budget shared by the piece caches of all swarms
+    public @NotNull BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    // Memory budget shared by the read caches of all swarms, kept apart so uploads can't starve downloads
+    public @NotNull BufferPool getReadBufferPool() {
+        return readBufferPool;
+    }
+
     public boolean isClosed() {
         return isClosed.get();
     }
 
     private void assertNotClosed() {
         if (isClosed()) {
-            throw new IllegalStateException("Swarm is closed");
+            throw new IllegalStateException("Client is closed");
         }
     }
 
-    @SuppressWarnings({"unchecked", "rawtypes"})
-    public synchronized @NotNull List<@NotNull Swarm> getSwarms() {
-        return (List) Arrays.asList(swarms.values().toArray());
+    // Live view of the swarms, not a copy
+    public @NotNull Collection<@NotNull Swarm> getSwarms() {
+        return swarmsView;
     }
 
-    public synchronized @Nullable Swarm getSwarm(@Nullable Hash infoHash) {
+    public @Nullable Swarm getSwarm(@Nullable Hash infoHash) {
         if (infoHash == null) {
             return null;
         }
         return swarms.get(infoHash);
     }
 
-    public synchronized @NotNull Swarm createSwarm(@NotNull Info info) {
+    public @NotNull Swarm createSwarm(@NotNull Info info) {
+        Objects.requireNonNull(info, "Argument 'info'");
+        return createSwarm(info, new MemoryStorage(info));
+    }
+
+    // If the swarm already exists it is returned as is, and the storage is left unused
+    public @NotNull Swarm createSwarm(@NotNull Info info, @NotNull Storage storage) {
         Objects.requireNonNull(info, "Argument 'info'");
+        Objects.requireNonNull(storage, "Argument 'storage'");
         assertNotClosed();
         var swarm = swarms.get(info.getInfoHash());
-        return swarm != null ? swarm : new Swarm(this, info);
+        if (swarm != null) {
+            return swarm;
+        }
+        try {
+            return new Swarm(this, info, storage);
+        } catch (IllegalStateException cause) {
+            // Lost a race with another thread creating the same swarm
+            swarm = swarms.get(info.getInfoHash());
+            if (swarm != null) {
+                return swarm;
+            }
+            throw cause;
+        }
     }
 
-    public synchronized boolean addSwarm(@NotNull Swarm swarm) {
+    public boolean addSwarm(@NotNull Swarm swarm) {
         Objects.requireNonNull(swarm, "Argument 'swarm'");
         assertNotClosed();
-        return swarms.putIfAbsent(swarm.getInfoHash(), swarm) == null;
+        if (swarms.putIfAbsent(swarm.getInfoHash(), swarm) != null) {
+            return false;
+        }
+        // Closed concurrently, close() may have already swept the map
+        if (isClosed() && swarms.remove(swarm.getInfoHash(), swarm)) {
+            throw new IllegalStateException("Client is closed");
+        }
+        return true;
     }
 
-    public synchronized void removeSwarm(@NotNull Swarm swarm) {
+    public void removeSwarm(@NotNull Swarm swarm) {
         Objects.requireNonNull(swarm, "Argument 'swarm'");
-        if (!isClosed()) {
-            swarms.remove(swarm.getInfoHash());
+        swarms.remove(swarm.getInfoHash(), swarm);
+    }
+
+    public @NotNull CompletableFuture<@NotNull Peer> connect(@NotNull InetSocketAddress address, @NotNull Hash infoHash) {
+        Objects.requireNonNull(address, "Argument 'address'");
+        Objects.requireNonNull(infoHash, "Argument 'infoHash'");
+        assertNotClosed();
+
+        if (engine == Engine.BLOCKING) {
+            return connectBlocking(address, infoHash);
+        }
+
+        AsynchronousSocketChannel channel;
+        try {
+            channel = executors.openSocketChannel();
+        } catch (IOException cause) {
+            return CompletableFuture.failedFuture(cause);
+        }
+
+        var future = new CompletableFuture<Void>();
+        channel.connect(address, null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void result, Void attachment) {
+                future.complete(null);
+            }
+            @Override
+            public void failed(Throwable cause, Void attachment) {
+                future.completeExceptionally(cause);
+            }
+        });
+
+        return Timeout.timeoutCompletableFuture(executors.getTimerWheel(), CONNECT_TIMEOUT_MS, future).thenCompose(ignored -> {
+            var peer = new Peer(this, channel);
+            return peer.establishOutgoing(address, infoHash).thenApply(identity -> peer);
+        }).whenComplete((peer, cause) -> {
+            if (cause != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    private @NotNull CompletableFuture<@NotNull Peer> connectBlocking(@NotNull InetSocketAddress address, @NotNull Hash infoHash) {
+        return CompletableFuture.supplyAsync(() -> {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.socket().connect(address, (int) CONNECT_TIMEOUT_MS);
+                return channel;
+            } catch (IOException cause) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                throw new CompletionException(cause);
+            }
+        }, executors.getBlockingExecutor()).thenCompose(channel -> {
+            var peer = new Peer(this, channel);
+            return peer.establishOutgoing(address, infoHash).thenApply(identity -> peer);
+        });
+    }
+
+    public synchronized @NotNull UdpTracker getUdpTracker() {
+        assertNotClosed();
+        if (udpTracker == null) {
+            try {
+                udpTracker = new UdpTracker(this);
+            } catch (IOException cause) {
+                throw new RuntimeException("Failed to open UDP tracker socket", cause);
+            }
         }
+        return udpTracker;
+    }
+
+    public synchronized @NotNull DhtNode getDhtNode() {
+        assertNotClosed();
+        if (dhtNode == null) {
+            try {
+                var bindAddress = new InetSocketAddress(identity.getSocketAddress().getPort());
+                dhtNode = new DhtNode(DhtNode.generateID(), bindAddress, executors);
+            } catch (IOException cause) {
+                throw new RuntimeException("Failed to open DHT node socket", cause);
+            }
+        }
+        return dhtNode;
     }
 
     @Override
@@ -76,10 +271,17 @@ public final class Client implements AutoCloseable {
         if (isClosed.getAndSet(true)) {
             return;
         }
-        for (var swarm : getSwarms()) {
+        for (var swarm : swarms.values()) {
             swarm.close();
         }
         swarms.clear();
+        if (udpTracker != null) {
+            udpTracker.close();
+        }
+        if (dhtNode != null) {
+            dhtNode.close();
+        }
+        executors.close();
     }
 
     @Override
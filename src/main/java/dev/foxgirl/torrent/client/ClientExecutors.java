@@ -0,0 +1,227 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.util.TimerWheel;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Execution resources owned by a single client, kept separate from each other and from the
+// common pool so that slow disk or hashing work can't starve socket completion handlers
+public final class ClientExecutors implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClientExecutors.class);
+
+    private static final int DISK_QUEUE_CAPACITY = 1024;
+
+    // Disk tasks that must not run on the submitting thread, like reads submitted while holding a peer
+    // lock on a network thread, they are rejected instead when the disk queue is full
+    public interface DeferrableTask extends Runnable {
+    }
+
+    private final @NotNull AsynchronousChannelGroup channelGroup;
+    private final @NotNull ExecutorService protocolExecutor;
+    private final @NotNull ExecutorService diskExecutor;
+    private final @NotNull ExecutorService blockingExecutor;
+    private final boolean isVirtual;
+
+    // 100ms ticks with 512 slots, one revolution covers 51.2 seconds
+    private static final long TIMER_WHEEL_TICK_MS = 100;
+    private static final int TIMER_WHEEL_SLOT_COUNT = 512;
+
+    // Both only keep time, what they run is handed to the protocol executor
+    private final @NotNull TimerWheel timerWheel;
+    private final @NotNull ScheduledExecutorService scheduledExecutor;
+
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    public ClientExecutors() throws IOException {
+        this(Runtime.getRuntime().availableProcessors(), Math.max(2, Runtime.getRuntime().availableProcessors() / 2), false);
+    }
+
+    public ClientExecutors(int ioThreadCount, int diskThreadCount, boolean useVirtualThreads) throws IOException {
+        if (ioThreadCount <= 0) {
+            throw new IllegalArgumentException("IO thread count is not positive");
+        }
+        if (diskThreadCount <= 0) {
+            throw new IllegalArgumentException("Disk thread count is not positive");
+        }
+
+        channelGroup = AsynchronousChannelGroup.withFixedThreadPool(ioThreadCount, createThreadFactory("Client-IO"));
+
+        protocolExecutor = Executors.newFixedThreadPool(ioThreadCount, createThreadFactory("Client-Protocol"));
+
+        timerWheel = new TimerWheel(TIMER_WHEEL_TICK_MS, TIMER_WHEEL_SLOT_COUNT, protocolExecutor);
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor(createThreadFactory("Client-Timer"));
+
+        // Bounded queue, submitters run the task themselves when it's full to apply backpressure
+        diskExecutor = new ThreadPoolExecutor(
+            diskThreadCount, diskThreadCount, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(DISK_QUEUE_CAPACITY),
+            createThreadFactory("Client-Disk"),
+            ClientExecutors::rejectDiskTask
+        );
+
+        var virtualExecutor = useVirtualThreads ? createVirtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            blockingExecutor = virtualExecutor;
+            isVirtual = true;
+        } else {
+            if (useVirtualThreads) {
+                LOGGER.warn("Virtual threads are not available, falling back to platform threads");
+            }
+            blockingExecutor = Executors.newCachedThreadPool(createThreadFactory("Client-Blocking"));
+            isVirtual = false;
+        }
+    }
+
+    private static void rejectDiskTask(Runnable task, ThreadPoolExecutor executor) {
+        if (task instanceof DeferrableTask) {
+            throw new RejectedExecutionException("Disk queue is full");
+        }
+        // Same as CallerRunsPolicy, discarded once shut down
+        if (!executor.isShutdown()) {
+            task.run();
+        }
+    }
+
+    private static ThreadFactory createThreadFactory(String name) {
+        var counter = new AtomicInteger();
+        return runnable -> {
+            var thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Virtual threads require Java 21, look them up reflectively so that the library still runs on 17
+    private static @Nullable ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            return null;
+        }
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException ignored) {
+            return false;
+        }
+    }
+
+    public @NotNull AsynchronousChannelGroup getChannelGroup() {
+        return channelGroup;
+    }
+
+    // Runs protocol continuations that aren't completion handlers, like handshake stages
+    public @NotNull ExecutorService getProtocolExecutor() {
+        return protocolExecutor;
+    }
+
+    // Runs piece hashing and storage reads and writes, when the queue is full the submitter runs
+    // the task itself unless it is a DeferrableTask, which is rejected
+    public @NotNull ExecutorService getDiskExecutor() {
+        return diskExecutor;
+    }
+
+    // Runs long-lived blocking loops like datagram receivers, one thread per task
+    public @NotNull ExecutorService getBlockingExecutor() {
+        return blockingExecutor;
+    }
+
+    public boolean isVirtual() {
+        return isVirtual;
+    }
+
+    // Runs timeouts on the protocol executor, for high-frequency timers that are usually cancelled before they fire
+    public @NotNull TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    // Runs the task once on the protocol executor after the delay
+    public @NotNull ScheduledFuture<?> schedule(@NotNull Runnable task, long delayMs) {
+        Objects.requireNonNull(task, "Argument 'task'");
+        return scheduledExecutor.schedule(() -> dispatch(task, null), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs the task periodically on the protocol executor, a run is skipped while the previous one is still going
+    public @NotNull ScheduledFuture<?> scheduleWithFixedDelay(@NotNull Runnable task, long initialDelayMs, long delayMs) {
+        Objects.requireNonNull(task, "Argument 'task'");
+        var isRunning = new AtomicBoolean();
+        return scheduledExecutor.scheduleWithFixedDelay(() -> {
+            if (isRunning.compareAndSet(false, true)) dispatch(task, isRunning);
+        }, initialDelayMs, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch(Runnable task, @Nullable AtomicBoolean isRunning) {
+        try {
+            protocolExecutor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable cause) {
+                    LOGGER.warn("Scheduled task {} failed", task, cause);
+                } finally {
+                    if (isRunning != null) isRunning.set(false);
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            if (isRunning != null) isRunning.set(false);
+        }
+    }
+
+    public @NotNull AsynchronousSocketChannel openSocketChannel() throws IOException {
+        assertNotClosed();
+        return AsynchronousSocketChannel.open(channelGroup);
+    }
+
+    public @NotNull AsynchronousServerSocketChannel openServerSocketChannel() throws IOException {
+        assertNotClosed();
+        return AsynchronousServerSocketChannel.open(channelGroup);
+    }
+
+    public boolean isClosed() {
+        return isClosed.get();
+    }
+
+    private void assertNotClosed() {
+        if (isClosed()) {
+            throw new IllegalStateException("Executors are closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (isClosed.getAndSet(true)) {
+            return;
+        }
+        scheduledExecutor.shutdownNow();
+        timerWheel.close();
+        protocolExecutor.shutdown();
+        diskExecutor.shutdown();
+        blockingExecutor.shutdown();
+        // Closes any channels still open in the group, never wait here since this may run on a group thread
+        try {
+            channelGroup.shutdownNow();
+        } catch (IOException cause) {
+            LOGGER.warn("Failed to shut down channel group", cause);
+        }
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "ClientExecutors{isVirtual=" + isVirtual + ", isClosed=" + isClosed() + "}";
+    }
+
+}
@@ -0,0 +1,51 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.bencode.BencodeElement;
+import dev.foxgirl.torrent.bencode.BencodeEncoder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+// Extension message with a bencoded payload, encoded straight into the protocol's write buffer
+final class ExtendedMessage extends Message {
+
+    private final int messageID;
+    private final BencodeElement element;
+    private final int length;
+
+    ExtendedMessage(int messageID, @NotNull BencodeElement element) {
+        Objects.requireNonNull(element, "Argument 'element'");
+        if (messageID < 0 || messageID > 255) {
+            throw new IllegalArgumentException("Message ID is out of range: " + messageID);
+        }
+        this.messageID = messageID;
+        this.element = element;
+        this.length = 1 + BencodeEncoder.sizeOf(element);
+    }
+
+    @Override
+    public @NotNull MessageType getType() {
+        return MessageType.EXTENDED;
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public @Nullable ByteBuffer getPayload() {
+        return null;
+    }
+
+    @Override
+    public @Nullable CompletableFuture<Void> writePayloadTo(@NotNull ByteBuffer buffer) {
+        buffer.put((byte) messageID);
+        BencodeEncoder.encodeToBuffer(element, buffer);
+        return null;
+    }
+
+}
@@ -17,6 +17,7 @@ public final class Extensions {
         extensions.setExtensionProtocol(true);
         extensions.setExtensionMessages(Map.of(
                 "ut_metadata", 10,
+                "ut_pex", 11,
                 "lt_donthave", 20
         ));
         extensions.setExtensionClientVersion("https://github.com/luavixen/torrent");
@@ -268,6 +269,26 @@ public final class Extensions {
         this.extensionMessages = extensionMessages == null ? null : Collections.unmodifiableMap(new TreeMap<>(extensionMessages));
     }
 
+    public synchronized @Nullable Integer getExtensionMessageID(@NotNull String name) {
+        Objects.requireNonNull(name, "Argument 'name'");
+        if (extensionMessages == null) {
+            return null;
+        }
+        var id = extensionMessages.get(name);
+        return id == null || id == 0 ? null : id;
+    }
+    public synchronized @Nullable String getExtensionMessageName(int id) {
+        if (extensionMessages == null || id == 0) {
+            return null;
+        }
+        for (var entry : extensionMessages.entrySet()) {
+            if (entry.getValue() == id) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
     public synchronized @Nullable Integer getExtensionTcpListenPort() {
         return extensionTcpListenPort;
     }
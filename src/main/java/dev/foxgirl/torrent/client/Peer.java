@@ -1,47 +1,100 @@
 package dev.foxgirl.torrent.client;
 
 import dev.foxgirl.torrent.bencode.BencodeDecoder;
-import dev.foxgirl.torrent.bencode.BencodeEncoder;
 import dev.foxgirl.torrent.metainfo.Info;
+import dev.foxgirl.torrent.storage.ReadCache;
 import dev.foxgirl.torrent.util.Hash;
 import dev.foxgirl.torrent.util.IO;
+import dev.foxgirl.torrent.util.RateMeter;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousByteChannel;
-import java.util.BitSet;
-import java.util.Objects;
+import java.nio.channels.ByteChannel;
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class Peer implements Protocol.Listener, AutoCloseable {
 
     private final @NotNull Client client;
     private final @NotNull Protocol protocol;
+    private final @NotNull PeerExchange peerExchange;
 
     private final Object lock = new Object();
 
-    private boolean isReady = false;
+    // Hot state read by choker and picker threads, packed so that reads never take the lock
+    private static final int FLAG_READY = 1;
+    private static final int FLAG_CLIENT_CHOKING = 1 << 1;
+    private static final int FLAG_CLIENT_INTERESTED = 1 << 2;
+    private static final int FLAG_PEER_CHOKING = 1 << 3;
+    private static final int FLAG_PEER_INTERESTED = 1 << 4;
 
-    private Swarm swarm;
+    private final AtomicInteger flags = new AtomicInteger(FLAG_CLIENT_CHOKING | FLAG_PEER_CHOKING);
 
-    private BitField clientBitfield;
-    private BitField peerBitfield;
+    // Written once in setup before the ready flag is set
+    private volatile Swarm swarm;
+    private volatile BitField clientBitfield;
+    private volatile BitField peerBitfield;
 
-    private boolean isClientChoking = true;
-    private boolean isClientInterested = false;
-    private boolean isPeerChoking = true;
-    private boolean isPeerInterested = false;
+    private final RateMeter downloadRate = new RateMeter();
+    private final RateMeter uploadRate = new RateMeter();
+
+    // Number of pieces the peer has that the client does not, drives the interested state
+    private int interestingPieceCount = 0;
+
+    private static final int MAX_OUTSTANDING_REQUESTS = 16;
+    private static final int MAX_INCOMING_REQUESTS = 256;
+    private static final int MAX_SUGGESTED_PIECES = 16;
+    private static final int MAX_ENDGAME_REQUESTS = 4;
+
+    // Served blocks have to fit in the protocol's write buffer along with their header
+    private static final int MAX_UPLOAD_BLOCK_LENGTH = 2 * BlockRequest.BLOCK_LENGTH;
+
+    // Pieces claimed from the picker by this peer, and their blocks not yet requested or received
+    private final BitSet downloadingPieces = new BitSet();
+    private final Deque<BlockRequest> pendingRequests = new ArrayDeque<>();
+    private final Set<BlockRequest> outstandingRequests = new LinkedHashSet<>();
+
+    // Outstanding duplicates of blocks from pieces claimed by other peers, sent during endgame
+    private final Set<BlockRequest> endgameRequests = new HashSet<>();
+
+    // Pieces the peer rejected requests for, not picked again until the peer unchokes the client
+    private final BitSet rejectedPieces = new BitSet();
+
+    // Fast extension state, pieces the peer allows the client to request while choked and vice versa
+    private final BitSet allowedFastPieces = new BitSet();
+    private final BitSet clientAllowedFastPieces = new BitSet();
+    private final Deque<Integer> suggestedPieces = new ArrayDeque<>();
+
+    private final Deque<BlockRequest> incomingRequests = new ArrayDeque<>();
+
+    // Incoming requests are served one block at a time, the next read starts once the previous
+    // block has been written out, so a slow peer never pins more than one cached piece
+    private boolean isUploading = false;
+
+    private static final long UPLOAD_RETRY_DELAY_MS = 10;
 
     public Peer(@NotNull Client client, @NotNull AsynchronousByteChannel channel) {
         Objects.requireNonNull(client, "Argument 'client'");
         Objects.requireNonNull(channel, "Argument 'channel'");
         this.client = client;
-        this.protocol = new Protocol(channel, this);
+        this.protocol = new AsyncProtocol(channel, this, client.getExecutors().getProtocolExecutor(), client.getExecutors().getTimerWheel());
+        this.peerExchange = new PeerExchange(this);
+    }
+
+    public Peer(@NotNull Client client, @NotNull ByteChannel channel) {
+        Objects.requireNonNull(client, "Argument 'client'");
+        Objects.requireNonNull(channel, "Argument 'channel'");
+        this.client = client;
+        this.protocol = new BlockingProtocol(channel, this, client.getExecutors().getBlockingExecutor(), client.getExecutors().getTimerWheel());
+        this.peerExchange = new PeerExchange(this);
     }
 
     public @NotNull CompletableFuture<@NotNull Identity> establishOutgoing(
@@ -74,6 +127,22 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
         return identity;
     }
 
+    public @Nullable InetSocketAddress getPeerListenAddress() {
+        var identity = protocol.getIdentity();
+        if (identity == null) {
+            return null;
+        }
+        var address = identity.getSocketAddress();
+        var extensions = protocol.getExtensions();
+        if (extensions != null) {
+            var port = extensions.getExtensionTcpListenPort();
+            if (port != null && port > 0 && port <= 65535 && address.getAddress() != null) {
+                return new InetSocketAddress(address.getAddress(), port);
+            }
+        }
+        return address;
+    }
+
     public @NotNull Extensions getClientExtensions() {
         return client.getExtensions();
     }
@@ -85,10 +154,20 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
         return extensions;
     }
 
+    private boolean hasFlag(int flag) {
+        return (flags.get() & flag) != 0;
+    }
+
+    // Returns whether the flag changed
+    private boolean setFlag(int flag, boolean value) {
+        int previous = value
+            ? flags.getAndUpdate(current -> current | flag)
+            : flags.getAndUpdate(current -> current & ~flag);
+        return ((previous & flag) != 0) != value;
+    }
+
     public boolean isReady() {
-        synchronized (lock) {
-            return isReady;
-        }
+        return hasFlag(FLAG_READY);
     }
 
     private void assertReady() {
@@ -98,10 +177,8 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
     }
 
     public @NotNull Swarm getSwarm() {
-        synchronized (lock) {
-            assertReady();
-            return Objects.requireNonNull(swarm, "Field 'swarm'");
-        }
+        assertReady();
+        return Objects.requireNonNull(swarm, "Field 'swarm'");
     }
 
     public @NotNull Info getInfo() {
@@ -109,29 +186,34 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
     }
 
     public @NotNull BitField getClientBitfield() {
-        synchronized (lock) {
-            assertReady();
-            return Objects.requireNonNull(clientBitfield, "Field 'clientBitfield'");
-        }
+        assertReady();
+        return Objects.requireNonNull(clientBitfield, "Field 'clientBitfield'");
     }
     public @NotNull BitField getPeerBitfield() {
-        synchronized (lock) {
-            assertReady();
-            return Objects.requireNonNull(peerBitfield, "Field 'peerBitfield'");
-        }
+        assertReady();
+        return Objects.requireNonNull(peerBitfield, "Field 'peerBitfield'");
+    }
+
+    // Bytes per second of blocks received from the peer, read without the lock
+    public double getDownloadRate() {
+        return downloadRate.getRate();
+    }
+    // Bytes per second of blocks sent to the peer
+    public double getUploadRate() {
+        return uploadRate.getRate();
     }
 
     public boolean isClientChoking() {
-        synchronized (lock) { assertReady(); return isClientChoking; }
+        assertReady(); return hasFlag(FLAG_CLIENT_CHOKING);
     }
     public boolean isClientInterested() {
-        synchronized (lock) { assertReady(); return isClientInterested; }
+        assertReady(); return hasFlag(FLAG_CLIENT_INTERESTED);
     }
     public boolean isPeerChoking() {
-        synchronized (lock) { assertReady(); return isPeerChoking; }
+        assertReady(); return hasFlag(FLAG_PEER_CHOKING);
     }
     public boolean isPeerInterested() {
-        synchronized (lock) { assertReady(); return isPeerInterested; }
+        assertReady(); return hasFlag(FLAG_PEER_INTERESTED);
     }
 
     @Override
@@ -139,7 +221,7 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
         protocol.close();
     }
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(Protocol.class);
+    private static final Logger LOGGER = LoggerFactory.getLogger(Peer.class);
 
     private boolean supportsFastPeers() {
         return getPeerExtensions().hasFastPeers() && getClientExtensions().hasFastPeers();
@@ -148,6 +230,13 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
         return getPeerExtensions().hasExtensionProtocol() && getClientExtensions().hasExtensionProtocol();
     }
 
+    private boolean supportsPeerExchange() {
+        // Peer exchange is disabled for private torrents (BEP 27)
+        return isReady()
+            && !Boolean.TRUE.equals(getInfo().isPrivate())
+            && getPeerExtensions().getExtensionMessageID(PeerExchange.EXTENSION_NAME) != null;
+    }
+
     private void assertFastPeers() {
         if (!supportsFastPeers()) {
             throw new IllegalStateException("Peer does not support fast peers");
@@ -161,20 +250,22 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
 
     private void setup(@NotNull Swarm swarm) {
         synchronized (lock) {
-            isReady = true;
             this.swarm = swarm;
             this.clientBitfield = swarm.getBitField();
             this.peerBitfield = new BitField(swarm.getInfo());
+            setFlag(FLAG_READY, true);
         }
         swarm.addPeer(this);
         LOGGER.info("Peer {} ready with infohash {}", getPeerIdentity(), swarm.getInfoHash());
     }
 
-    private @NotNull CompletableFuture<Void> setChoking(boolean isChoking) {
+    @NotNull CompletableFuture<Void> setChoking(boolean isChoking) {
         synchronized (lock) {
-            if (isClientChoking != isChoking) {
-                isClientChoking = isChoking;
+            if (setFlag(FLAG_CLIENT_CHOKING, isChoking)) {
                 LOGGER.debug("Peer {} setting to {}", getPeerIdentity(), isChoking ? "choked" : "unchoked");
+                if (isChoking) {
+                    rejectIncomingRequests();
+                }
                 return protocol.send(new MessageImpl(isChoking ? MessageType.CHOKE : MessageType.UNCHOKE));
             } else {
                 return CompletableFuture.completedFuture(null);
@@ -183,8 +274,7 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
     }
     private @NotNull CompletableFuture<Void> setInterested(boolean isInterested) {
         synchronized (lock) {
-            if (isClientInterested != isInterested) {
-                isClientInterested = isInterested;
+            if (setFlag(FLAG_CLIENT_INTERESTED, isInterested)) {
                 LOGGER.debug("Peer {} setting to {}", getPeerIdentity(), isInterested ? "interested" : "not interested");
                 return protocol.send(new MessageImpl(isInterested ? MessageType.INTERESTED : MessageType.NOT_INTERESTED));
             } else {
@@ -193,62 +283,592 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
         }
     }
 
+    private static final String EXTENSION_DONT_HAVE = "lt_donthave";
+
+    // The following must be called while holding the lock
+
+    private void addPeerPiece(int index) {
+        if (!peerBitfield.getAndSet(index, true)) {
+            swarm.getAvailability().increment(index);
+            if (!clientBitfield.get(index) && swarm.getPiecePicker().isWanted(index)) interestingPieceCount++;
+        }
+    }
+    private void removePeerPiece(int index) {
+        if (peerBitfield.getAndSet(index, false)) {
+            swarm.getAvailability().decrement(index);
+            if (!clientBitfield.get(index) && swarm.getPiecePicker().isWanted(index)) interestingPieceCount--;
+            // Nothing would ever answer the requests for it, so other peers may take it over
+            releasePiece(index);
+        }
+    }
+
+    private void replacePeerPieces(BitSet pieces) {
+        var previousPieces = peerBitfield.getBitSet();
+        peerBitfield.clearAll();
+        peerBitfield.or(pieces);
+
+        var addedPieces = (BitSet) pieces.clone();
+        addedPieces.andNot(previousPieces);
+        var removedPieces = previousPieces;
+        removedPieces.andNot(pieces);
+        swarm.getAvailability().increment(addedPieces);
+        swarm.getAvailability().decrement(removedPieces);
+
+        removedPieces.and(downloadingPieces);
+        for (int i = removedPieces.nextSetBit(0); i >= 0; i = removedPieces.nextSetBit(i + 1)) {
+            releasePiece(i);
+        }
+
+        countInterestingPieces();
+    }
+
+    private void countInterestingPieces() {
+        var pieces = peerBitfield.getBitSet();
+        pieces.andNot(clientBitfield.getBitSet());
+        pieces.and(swarm.getPiecePicker().getWantedPieces());
+        interestingPieceCount = pieces.cardinality();
+    }
+
+    private void updateInterested() {
+        setInterested(interestingPieceCount > 0);
+    }
+
+    private void requestBlocks() {
+        if (!hasFlag(FLAG_READY) || !hasFlag(FLAG_CLIENT_INTERESTED)) {
+            return;
+        }
+        while (outstandingRequests.size() < MAX_OUTSTANDING_REQUESTS) {
+            var request = nextRequest();
+            if (request == null) {
+                request = nextEndgameRequest();
+                if (request == null) {
+                    break;
+                }
+                endgameRequests.add(request);
+            }
+            outstandingRequests.add(request);
+            swarm.getPiecePicker().addRequest(request, this);
+            protocol.send(new MessageImpl(MessageType.REQUEST, request.toPayload()));
+        }
+    }
+
+    private BlockRequest nextEndgameRequest() {
+        // Every missing block is already requested from some peer, so a few of them are requested
+        // again from this one, and whichever copy arrives last is cancelled
+        if (endgameRequests.size() >= MAX_ENDGAME_REQUESTS) {
+            return null;
+        }
+        var peerPieces = peerBitfield.getBitSet();
+        peerPieces.andNot(rejectedPieces);
+        if (hasFlag(FLAG_PEER_CHOKING)) {
+            peerPieces.and(allowedFastPieces);
+        }
+        return swarm.getPiecePicker().pickDuplicate(this, peerPieces, outstandingRequests);
+    }
+
+    private boolean removeOutstandingRequest(BlockRequest request) {
+        if (outstandingRequests.remove(request)) {
+            endgameRequests.remove(request);
+            swarm.getPiecePicker().removeRequest(request, this);
+            return true;
+        }
+        return false;
+    }
+
+    private void removeOutstandingRequests() {
+        for (var request : outstandingRequests) {
+            swarm.getPiecePicker().removeRequest(request, this);
+        }
+        outstandingRequests.clear();
+        endgameRequests.clear();
+    }
+
+    private BlockRequest nextRequest() {
+        var picker = swarm.getPiecePicker();
+        // While choked only blocks of allowed fast pieces may be requested
+        boolean isPeerChoking = hasFlag(FLAG_PEER_CHOKING);
+        while (true) {
+            for (var iterator = pendingRequests.iterator(); iterator.hasNext(); ) {
+                var request = iterator.next();
+                if (!isPeerChoking || allowedFastPieces.get(request.pieceIndex())) {
+                    iterator.remove();
+                    // Blocks taken over by another peer during endgame are left to that peer
+                    if (!picker.takePending(request, this)) {
+                        updatePieceDone(request.pieceIndex());
+                        continue;
+                    }
+                    return request;
+                }
+            }
+
+            var peerPieces = peerBitfield.getBitSet();
+            peerPieces.andNot(rejectedPieces);
+            if (isPeerChoking) {
+                peerPieces.and(allowedFastPieces);
+            }
+            var orphan = picker.pickOrphan(peerPieces);
+            if (orphan != null) {
+                return orphan;
+            }
+
+            var suggested = suggestedPieces.stream().mapToInt(Integer::intValue).toArray();
+            int index = picker.pick(peerPieces, allowedFastPieces, suggested, isPeerChoking, downloadRate.getRate());
+            if (index < 0) {
+                return null;
+            }
+
+            downloadingPieces.set(index);
+            var blocks = new ArrayList<BlockRequest>(BlockRequest.getBlockCount(getInfo(), index));
+            for (int i = 0, count = BlockRequest.getBlockCount(getInfo(), index); i < count; i++) {
+                blocks.add(BlockRequest.forBlock(getInfo(), index, i));
+            }
+            picker.addPending(blocks, this);
+            pendingRequests.addAll(blocks);
+        }
+    }
+
+    private void releasePiece(int index) {
+        if (downloadingPieces.get(index)) {
+            downloadingPieces.clear(index);
+            pendingRequests.removeIf(request -> request.pieceIndex() == index);
+            for (var request : outstandingRequests.toArray(BlockRequest[]::new)) {
+                if (request.pieceIndex() == index && !endgameRequests.contains(request)) removeOutstandingRequest(request);
+            }
+            swarm.getPiecePicker().release(index);
+        }
+    }
+
+    private void releasePieces(boolean keepAllowedFast) {
+        for (int i = downloadingPieces.nextSetBit(0); i >= 0; i = downloadingPieces.nextSetBit(i + 1)) {
+            if (!keepAllowedFast || !allowedFastPieces.get(i)) releasePiece(i);
+        }
+    }
+
+    // Takes the lock only for the request bookkeeping, the block is handed to the swarm without it
+    private void receiveBlock(int pieceIndex, int offset, ByteBuffer block) {
+        var request = new BlockRequest(pieceIndex, offset, block.remaining());
+        List<Peer> losers;
+        synchronized (lock) {
+            if (!outstandingRequests.remove(request)) {
+                LOGGER.debug("Peer {} sent unrequested block {}", getPeerIdentity(), request);
+                return;
+            }
+            endgameRequests.remove(request);
+            losers = swarm.getPiecePicker().completeRequest(request, this);
+            updatePieceDone(pieceIndex);
+        }
+        downloadRate.add(request.length());
+        swarm.receiveBlock(this, request, block);
+
+        // Cancelled outside of this peer's lock, since the losers may be cancelling to this peer at the same time
+        for (var loser : losers) {
+            try {
+                client.getExecutors().getProtocolExecutor().execute(() -> loser.cancelRequest(request));
+            } catch (RejectedExecutionException ignored) {
+            }
+        }
+    }
+
+    private void updatePieceDone(int pieceIndex) {
+        if (!downloadingPieces.get(pieceIndex)) {
+            return;
+        }
+        boolean isPieceDone = pendingRequests.stream().noneMatch(other -> other.pieceIndex() == pieceIndex)
+            && outstandingRequests.stream().noneMatch(other -> other.pieceIndex() == pieceIndex);
+        if (isPieceDone) {
+            // The claim is kept, the swarm releases it once the piece is verified
+            downloadingPieces.clear(pieceIndex);
+        }
+    }
+
+    // Another peer delivered this block first
+    void cancelRequest(@NotNull BlockRequest request) {
+        synchronized (lock) {
+            if (!hasFlag(FLAG_READY) || !removeOutstandingRequest(request)) {
+                return;
+            }
+            LOGGER.debug("Peer {} cancelling request {}", getPeerIdentity(), request);
+            protocol.send(new MessageImpl(MessageType.CANCEL, request.toPayload()));
+            updatePieceDone(request.pieceIndex());
+            requestBlocks();
+        }
+    }
+
+    private void receiveReject(BlockRequest request) {
+        if (endgameRequests.contains(request)) {
+            LOGGER.debug("Peer {} rejected duplicate request {}", getPeerIdentity(), request);
+            rejectedPieces.set(request.pieceIndex());
+            removeOutstandingRequest(request);
+        } else if (outstandingRequests.contains(request)) {
+            LOGGER.debug("Peer {} rejected request {}", getPeerIdentity(), request);
+            rejectedPieces.set(request.pieceIndex());
+            releasePiece(request.pieceIndex());
+        }
+    }
+
+    private void receiveRequest(BlockRequest request) {
+        if (!request.isValid(getInfo())) {
+            throw new IllegalStateException("Invalid request " + request);
+        }
+        boolean isAllowed = clientBitfield.get(request.pieceIndex())
+            && (!hasFlag(FLAG_CLIENT_CHOKING) || clientAllowedFastPieces.get(request.pieceIndex()))
+            && request.length() <= MAX_UPLOAD_BLOCK_LENGTH
+            && incomingRequests.size() < MAX_INCOMING_REQUESTS;
+        if (!isAllowed) {
+            rejectRequest(request);
+        } else if (!incomingRequests.contains(request)) {
+            incomingRequests.add(request);
+            scheduleUpload();
+        }
+    }
+
+    private void scheduleUpload() {
+        if (isUploading || incomingRequests.isEmpty() || !hasFlag(FLAG_READY)) {
+            return;
+        }
+        isUploading = true;
+        submitUpload();
+    }
+
+    // Called with the lock held, often on a network thread, so the read is never run inline when the
+    // disk queue is full, the submission is retried after a short delay instead
+    private void submitUpload() {
+        var executors = client.getExecutors();
+        try {
+            executors.getDiskExecutor().execute((ClientExecutors.DeferrableTask) this::uploadNext);
+            return;
+        } catch (RejectedExecutionException ignored) {
+        }
+        if (!executors.isClosed() && hasFlag(FLAG_READY)) {
+            try {
+                executors.schedule(this::retryUpload, UPLOAD_RETRY_DELAY_MS);
+                return;
+            } catch (RejectedExecutionException ignored) {
+            }
+        }
+        isUploading = false;
+    }
+
+    private void retryUpload() {
+        synchronized (lock) {
+            if (!hasFlag(FLAG_READY) || incomingRequests.isEmpty()) {
+                isUploading = false;
+            } else {
+                submitUpload();
+            }
+        }
+    }
+
+    private void uploadNext() {
+        var request = pollIncomingRequest();
+        if (request == null) {
+            synchronized (lock) {
+                isUploading = false;
+                scheduleUpload();
+            }
+            return;
+        }
+
+        var swarm = this.swarm;
+        ReadCache.Slice slice;
+        try {
+            slice = swarm.getReadCache().read(request.pieceIndex(), request.offset(), request.length());
+        } catch (IOException | RuntimeException cause) {
+            LOGGER.warn("Peer {} failed to read block {}", getPeerIdentity(), request, cause);
+            synchronized (lock) {
+                rejectRequest(request);
+                isUploading = false;
+                scheduleUpload();
+            }
+            return;
+        }
+
+        CompletableFuture<Void> future;
+        try {
+            future = protocol.send(new PieceMessage(request, slice.getBuffer()));
+        } catch (RuntimeException cause) {
+            // Closed between polling the request and sending the block
+            slice.close();
+            synchronized (lock) {
+                isUploading = false;
+            }
+            return;
+        }
+        future.whenComplete((result, cause) -> {
+            slice.close();
+            if (cause == null) {
+                uploadRate.add(request.length());
+                swarm.addBytesUploaded(request.length());
+            }
+            synchronized (lock) {
+                isUploading = false;
+                scheduleUpload();
+            }
+        });
+    }
+
+    private void rejectRequest(BlockRequest request) {
+        // Without the fast extension requests are silently dropped instead
+        if (supportsFastPeers()) {
+            LOGGER.debug("Peer {} rejecting request {}", getPeerIdentity(), request);
+            protocol.send(new MessageImpl(MessageType.REJECT_REQUEST, request.toPayload()));
+        }
+    }
+
+    private void rejectIncomingRequests() {
+        for (var iterator = incomingRequests.iterator(); iterator.hasNext(); ) {
+            var request = iterator.next();
+            if (!clientAllowedFastPieces.get(request.pieceIndex())) {
+                iterator.remove();
+                rejectRequest(request);
+            }
+        }
+    }
+
+    private void sendAllowedFastPieces(@NotNull Identity identity) {
+        var address = identity.getSocketAddress().getAddress();
+        if (address == null) {
+            return;
+        }
+        var pieces = AllowedFastSet.generate(address, swarm.getInfoHash(), getInfo().getPieceCount(), AllowedFastSet.DEFAULT_SIZE);
+        for (int index : pieces) {
+            clientAllowedFastPieces.set(index);
+            protocol.send(new MessageImpl(MessageType.ALLOWED_FAST, ByteBuffer.allocate(4).putInt(index).flip()));
+        }
+        LOGGER.debug("Peer {} sent allowed fast pieces {}", getPeerIdentity(), Arrays.toString(pieces));
+    }
+
+    private int readPieceIndex(@NotNull ByteBuffer payload) {
+        int pieceIndex = payload.getInt();
+        if (pieceIndex < 0 || pieceIndex >= getInfo().getPieceCount()) {
+            throw new IllegalStateException("Invalid piece index, expected [0, " + getInfo().getPieceCount() + "), actual " + pieceIndex);
+        }
+        return pieceIndex;
+    }
+
+    // Pops the next request the peer is allowed to be served, for the upload path
+    @Nullable BlockRequest pollIncomingRequest() {
+        synchronized (lock) {
+            return incomingRequests.poll();
+        }
+    }
+
+    // File priorities changed, pieces may have become wanted or skipped
+    void onWantedPiecesChanged() {
+        synchronized (lock) {
+            if (!hasFlag(FLAG_READY)) {
+                return;
+            }
+            // Skipped pieces stop being downloaded right away, their requests are dropped
+            var skippedPieces = (BitSet) downloadingPieces.clone();
+            skippedPieces.andNot(swarm.getPiecePicker().getWantedPieces());
+            for (int i = skippedPieces.nextSetBit(0); i >= 0; i = skippedPieces.nextSetBit(i + 1)) {
+                releasePiece(i);
+            }
+            countInterestingPieces();
+            updateInterested();
+            requestBlocks();
+        }
+    }
+
+    void onClientPieceAdded(int index) {
+        synchronized (lock) {
+            if (!hasFlag(FLAG_READY)) {
+                return;
+            }
+            countInterestingPieces();
+            updateInterested();
+            protocol.send(new MessageImpl(MessageType.HAVE, ByteBuffer.allocate(4).putInt(index).flip()));
+        }
+    }
+
+    void onClientPieceDropped(int index) {
+        synchronized (lock) {
+            if (!hasFlag(FLAG_READY)) {
+                return;
+            }
+            // Client bitfield may change concurrently with incoming messages, so recount instead of adjusting
+            countInterestingPieces();
+            updateInterested();
+
+            var messageID = getPeerExtensions().getExtensionMessageID(EXTENSION_DONT_HAVE);
+            if (messageID != null && supportsExtensionProtocol()) {
+                LOGGER.debug("Peer {} sending don't have for piece {}", getPeerIdentity(), index);
+                var payload = ByteBuffer.allocate(5).put(messageID.byteValue()).putInt(index).flip();
+                protocol.send(new MessageImpl(MessageType.EXTENDED, payload));
+            }
+        }
+    }
+
+    // Messages are handled one at a time by the protocol, so the lock is only taken around the request
+    // pipeline and fast extension state, choker, storage and peer exchange calls are made without it
     @Override
     public void onReceive(@NotNull MessageImpl message) throws Exception {
-        synchronized (lock) {
-            switch (message.getType()) {
-                case CHOKE -> {
-                    isPeerChoking = true;
-                    LOGGER.debug("Peer {} choked us", getPeerIdentity());
+        switch (message.getType()) {
+            case CHOKE -> {
+                setFlag(FLAG_PEER_CHOKING, true);
+                LOGGER.debug("Peer {} choked us", getPeerIdentity());
+                if (hasFlag(FLAG_READY) && !supportsFastPeers()) {
+                    synchronized (lock) {
+                        // Without the fast extension outstanding requests are implicitly discarded
+                        removeOutstandingRequests();
+                        releasePieces(false);
+                    }
                 }
-                case UNCHOKE -> {
-                    isPeerChoking = false;
-                    LOGGER.debug("Peer {} unchoked us", getPeerIdentity());
+            }
+            case UNCHOKE -> {
+                setFlag(FLAG_PEER_CHOKING, false);
+                LOGGER.debug("Peer {} unchoked us", getPeerIdentity());
+                if (hasFlag(FLAG_READY)) {
+                    synchronized (lock) {
+                        rejectedPieces.clear();
+                        requestBlocks();
+                    }
                 }
-                case INTERESTED -> {
-                    isPeerInterested = true;
-                    LOGGER.debug("Peer {} interested in us", getPeerIdentity());
+            }
+            case INTERESTED -> {
+                setFlag(FLAG_PEER_INTERESTED, true);
+                LOGGER.debug("Peer {} interested in us", getPeerIdentity());
+                if (hasFlag(FLAG_READY) && swarm.getChoker().tryUnchoke(this)) {
+                    setChoking(false);
+                }
+            }
+            case NOT_INTERESTED -> {
+                setFlag(FLAG_PEER_INTERESTED, false);
+                LOGGER.debug("Peer {} not interested in us", getPeerIdentity());
+                if (hasFlag(FLAG_READY)) {
+                    // Frees the slot for the next interested peer, the peer stays unchoked until the next rechoke
+                    swarm.getChoker().remove(this);
+                }
+            }
+            case HAVE -> {
+                assertReady();
+                int pieceIndex = readPieceIndex(message.getPayload());
+                synchronized (lock) {
+                    addPeerPiece(pieceIndex);
+                    updateInterested();
+                    requestBlocks();
+                }
+                LOGGER.debug("Peer {} has piece {}, {}%", getPeerIdentity(), pieceIndex, peerBitfield.getPercentageInteger());
+            }
+            case BITFIELD -> {
+                assertReady();
+                int expectedByteCount = peerBitfield.byteLength();
+                int actualByteCount = message.getPayload().remaining();
+                if (actualByteCount != expectedByteCount) {
+                    throw new IllegalStateException("Invalid bitfield length, expected " + expectedByteCount + ", actual " + actualByteCount);
                 }
-                case NOT_INTERESTED -> {
-                    isPeerInterested = false;
-                    LOGGER.debug("Peer {} not interested in us", getPeerIdentity());
+                var pieces = peerBitfield.fromArray(message.getPayload());
+                synchronized (lock) {
+                    replacePeerPieces(pieces);
+                    updateInterested();
+                    requestBlocks();
+                }
+                LOGGER.debug("Peer {} updated bitfield, {}%", getPeerIdentity(), peerBitfield.getPercentageInteger());
+            }
+            case HAVE_ALL -> {
+                assertReady(); assertFastPeers();
+                var pieces = new BitSet(getInfo().getPieceCount());
+                pieces.set(0, getInfo().getPieceCount());
+                synchronized (lock) {
+                    replacePeerPieces(pieces);
+                    updateInterested();
+                    requestBlocks();
+                }
+                LOGGER.debug("Peer {} has all pieces", getPeerIdentity());
+            }
+            case HAVE_NONE -> {
+                assertReady(); assertFastPeers();
+                synchronized (lock) {
+                    replacePeerPieces(new BitSet());
+                    updateInterested();
+                    requestBlocks();
+                }
+                LOGGER.debug("Peer {} has no pieces", getPeerIdentity());
+            }
+            case REQUEST -> {
+                assertReady();
+                var request = BlockRequest.fromPayload(message.getPayload());
+                synchronized (lock) {
+                    receiveRequest(request);
                 }
-                case HAVE -> {
-                    assertReady();
-                    int pieceIndex = message.getPayload().getInt();
-                    if (pieceIndex < 0 || pieceIndex >= getInfo().getPieceCount()) {
-                        throw new IllegalStateException("Invalid piece index, expected [0, " + getInfo().getPieceCount() + "), actual " + pieceIndex);
+            }
+            case PIECE -> {
+                assertReady();
+                var payload = message.getPayload();
+                int pieceIndex = readPieceIndex(payload);
+                int offset = payload.getInt();
+                receiveBlock(pieceIndex, offset, payload);
+                synchronized (lock) {
+                    requestBlocks();
+                }
+            }
+            case CANCEL -> {
+                assertReady();
+                var request = BlockRequest.fromPayload(message.getPayload());
+                synchronized (lock) {
+                    // With the fast extension every request is answered exactly once, a cancelled one with a reject
+                    if (incomingRequests.remove(request)) {
+                        rejectRequest(request);
                     }
-                    peerBitfield.set(pieceIndex);
-                    LOGGER.debug("Peer {} has piece {}, {}%", getPeerIdentity(), pieceIndex, peerBitfield.getPercentageInteger());
                 }
-                case BITFIELD -> {
-                    assertReady();
-                    int expectedByteCount = peerBitfield.byteLength();
-                    int actualByteCount = message.getPayload().remaining();
-                    if (actualByteCount != expectedByteCount) {
-                        throw new IllegalStateException("Invalid bitfield length, expected " + expectedByteCount + ", actual " + actualByteCount);
+            }
+            case SUGGEST_PIECE -> {
+                assertReady(); assertFastPeers();
+                int pieceIndex = readPieceIndex(message.getPayload());
+                synchronized (lock) {
+                    suggestedPieces.remove(pieceIndex);
+                    suggestedPieces.addFirst(pieceIndex);
+                    while (suggestedPieces.size() > MAX_SUGGESTED_PIECES) {
+                        suggestedPieces.removeLast();
                     }
-                    peerBitfield.or(BitSet.valueOf(message.getPayload()));
-                    LOGGER.debug("Peer {} updated bitfield, {}%", getPeerIdentity(), peerBitfield.getPercentageInteger());
+                    requestBlocks();
                 }
-                case HAVE_ALL -> {
-                    assertReady(); assertFastPeers();
-                    peerBitfield.setAll();
-                    LOGGER.debug("Peer {} has all pieces", getPeerIdentity());
+                LOGGER.debug("Peer {} suggested piece {}", getPeerIdentity(), pieceIndex);
+            }
+            case REJECT_REQUEST -> {
+                assertReady(); assertFastPeers();
+                var request = BlockRequest.fromPayload(message.getPayload());
+                synchronized (lock) {
+                    receiveReject(request);
+                    requestBlocks();
                 }
-                case HAVE_NONE -> {
-                    assertReady(); assertFastPeers();
-                    peerBitfield.clearAll();
-                    LOGGER.debug("Peer {} has no pieces", getPeerIdentity());
+            }
+            case ALLOWED_FAST -> {
+                assertReady(); assertFastPeers();
+                int pieceIndex = readPieceIndex(message.getPayload());
+                synchronized (lock) {
+                    allowedFastPieces.set(pieceIndex);
+                    requestBlocks();
                 }
-                case EXTENDED -> {
-                    assertExtensionProtocol();
-                    var messageID = message.getPayload().get();
-                    if (messageID == 0) {
-                        var handshake = BencodeDecoder.decodeFromStream(IO.getInputStream(message.getPayload()));
-                        getPeerExtensions().fromHandshake(handshake);
-                        LOGGER.debug("Peer {} received extended handshake: {}", getPeerIdentity(), handshake);
+                LOGGER.debug("Peer {} allowed fast piece {}", getPeerIdentity(), pieceIndex);
+            }
+            case EXTENDED -> {
+                assertExtensionProtocol();
+                var messageID = message.getPayload().get() & 0xFF;
+                if (messageID == 0) {
+                    var handshake = BencodeDecoder.decodeFromStream(IO.getInputStream(message.getPayload()));
+                    getPeerExtensions().fromHandshake(handshake);
+                    LOGGER.debug("Peer {} received extended handshake: {}", getPeerIdentity(), handshake);
+                    if (supportsPeerExchange()) {
+                        peerExchange.start();
+                    }
+                } else {
+                    var messageName = getClientExtensions().getExtensionMessageName(messageID);
+                    if (PeerExchange.EXTENSION_NAME.equals(messageName)) {
+                        assertReady();
+                        if (supportsPeerExchange()) {
+                            peerExchange.receive(message.getPayload());
+                        }
+                    } else if (EXTENSION_DONT_HAVE.equals(messageName)) {
+                        assertReady();
+                        int pieceIndex = readPieceIndex(message.getPayload());
+                        synchronized (lock) {
+                            removePeerPiece(pieceIndex);
+                            updateInterested();
+                            requestBlocks();
+                        }
+                        LOGGER.debug("Peer {} no longer has piece {}, {}%", getPeerIdentity(), pieceIndex, peerBitfield.getPercentageInteger());
                     } else {
                         LOGGER.warn("Peer {} received unknown extended message {}", getPeerIdentity(), messageID);
                     }
@@ -282,18 +902,11 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
                 clientExtensions.setExtensionYourIP(peerIPAddress.getAddress());
             }
 
-            try (var stream = new ByteArrayOutputStream(256)) {
-                stream.write(0);
-
-                var handshake = clientExtensions.toHandshake();
-                BencodeEncoder.encodeToStream(handshake, stream);
+            var handshake = clientExtensions.toHandshake();
 
-                LOGGER.debug("Peer {} sending extension handshake: {}", getPeerIdentity(), handshake);
+            LOGGER.debug("Peer {} sending extension handshake: {}", getPeerIdentity(), handshake);
 
-                protocol.send(new MessageImpl(MessageType.EXTENDED, ByteBuffer.wrap(stream.toByteArray())));
-            } catch (IOException cause) {
-                throw new RuntimeException(cause);
-            }
+            protocol.send(new ExtendedMessage(0, handshake));
         }
 
         if (supportsFastPeers()) {
@@ -305,6 +918,9 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
             } else {
                 protocol.send(new MessageImpl(MessageType.BITFIELD, ByteBuffer.wrap(clientBitfield.toArray())));
             }
+            synchronized (lock) {
+                sendAllowedFastPieces(identity);
+            }
         } else {
             LOGGER.debug("Peer {} sending bitfield", getPeerIdentity());
             protocol.send(new MessageImpl(MessageType.BITFIELD, ByteBuffer.wrap(clientBitfield.toArray())));
@@ -313,9 +929,15 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
 
     @Override
     public void onClose(@NotNull Throwable throwable) {
+        peerExchange.stop();
         Swarm swarm;
         synchronized (lock) {
-            isReady = false;
+            if (setFlag(FLAG_READY, false)) {
+                this.swarm.getAvailability().decrement(peerBitfield.getBitSet());
+                releasePieces(false);
+                removeOutstandingRequests();
+                incomingRequests.clear();
+            }
             swarm = this.swarm;
         }
         if (swarm != null) {
@@ -325,7 +947,7 @@ public final class Peer implements Protocol.Listener, AutoCloseable {
 
     @Override
     public @NotNull String toString() {
-        return "Peer{protocol=" + getProtocol() + ", isReady=" + isReady + "}";
+        return "Peer{protocol=" + getProtocol() + ", isReady=" + isReady() + "}";
     }
 
 }
@@ -0,0 +1,269 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.bencode.BencodeReader;
+import dev.foxgirl.torrent.util.IO;
+import dev.foxgirl.torrent.util.Throwables;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+
+final class PeerExchange {
+
+    static final String EXTENSION_NAME = "ut_pex";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeerExchange.class);
+
+    private static final long INITIAL_DELAY_MS = 5 * 1000;
+    private static final long INTERVAL_MS = 60 * 1000;
+
+    private static final int MAX_PEERS = 50;
+
+    private static final int FLAG_SEED = 0x02;
+
+    private final @NotNull Peer peer;
+
+    // Peers that the remote peer has been told about, used to compute deltas
+    private final Set<InetSocketAddress> sentPeers = new HashSet<>(64);
+
+    private ScheduledFuture<?> future;
+    private boolean isStopped;
+
+    PeerExchange(@NotNull Peer peer) {
+        Objects.requireNonNull(peer, "Argument 'peer'");
+        this.peer = peer;
+    }
+
+    synchronized void start() {
+        if (future != null || isStopped) {
+            return;
+        }
+        try {
+            future = peer.getClient().getExecutors().scheduleWithFixedDelay(this::update, INITIAL_DELAY_MS, INTERVAL_MS);
+        } catch (RejectedExecutionException ignored) {
+            // Client closed
+        }
+    }
+
+    synchronized void stop() {
+        isStopped = true;
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+        sentPeers.clear();
+    }
+
+    private record Entry(@NotNull InetSocketAddress address, int flags) {}
+
+    private void update() {
+        try {
+            var messageID = peer.getPeerExtensions().getExtensionMessageID(EXTENSION_NAME);
+            if (messageID == null || !peer.isReady()) {
+                return;
+            }
+
+            var currentPeers = new LinkedHashMap<InetSocketAddress, Entry>();
+            for (var other : peer.getSwarm().getPeers()) {
+                if (other == peer || !other.isReady()) continue;
+                var address = other.getPeerListenAddress();
+                if (address == null || address.isUnresolved()) continue;
+                currentPeers.put(address, new Entry(address, other.getPeerBitfield().isComplete() ? FLAG_SEED : 0));
+            }
+
+            var added = new ArrayList<Entry>();
+            var dropped = new ArrayList<InetSocketAddress>();
+            synchronized (this) {
+                if (isStopped) {
+                    return;
+                }
+                for (var entry : currentPeers.values()) {
+                    if (added.size() >= MAX_PEERS) break;
+                    if (!sentPeers.contains(entry.address)) added.add(entry);
+                }
+                for (var address : sentPeers) {
+                    if (dropped.size() >= MAX_PEERS) break;
+                    if (!currentPeers.containsKey(address)) dropped.add(address);
+                }
+                if (added.isEmpty() && dropped.isEmpty()) {
+                    return;
+                }
+                for (var entry : added) sentPeers.add(entry.address);
+                dropped.forEach(sentPeers::remove);
+            }
+
+            LOGGER.debug("Peer {} sending PEX, {} added, {} dropped", peer.getPeerIdentity(), added.size(), dropped.size());
+
+            peer.getProtocol().send(new PexMessage(messageID, added, dropped));
+        } catch (Throwable cause) {
+            LOGGER.debug("Peer exchange update failed: {}", Throwables.getMessage(cause));
+        }
+    }
+
+    void receive(@NotNull ByteBuffer payload) throws IOException {
+        // Only the added peers are wanted, so the payload is walked instead of decoded into a map
+        var reader = new BencodeReader(payload);
+        if (reader.next() != BencodeReader.Token.MAP_START) {
+            throw new IllegalStateException("PEX message is not a map");
+        }
+
+        var candidates = new ArrayList<InetSocketAddress>();
+        while (reader.next() == BencodeReader.Token.KEY) {
+            int addressLength;
+            if (reader.stringEquals(PexMessage.KEY_ADDED)) {
+                addressLength = 4;
+            } else if (reader.stringEquals(PexMessage.KEY_ADDED6)) {
+                addressLength = 16;
+            } else {
+                reader.skipValue();
+                continue;
+            }
+            if (reader.next() != BencodeReader.Token.STRING) {
+                throw new IllegalStateException("PEX message '" + (addressLength == 4 ? "added" : "added6") + "' is not a string");
+            }
+            decodeCompact(reader.getStringSlice(), addressLength, candidates);
+        }
+
+        int count = peer.getSwarm().addPeerCandidates(candidates);
+        LOGGER.debug("Peer {} received PEX with {} peers, {} new", peer.getPeerIdentity(), candidates.size(), count);
+    }
+
+    private static void decodeCompact(ByteBuffer buffer, int addressLength, List<InetSocketAddress> addresses) throws IOException {
+        var addressBytes = new byte[addressLength];
+        int count = 0;
+        while (buffer.remaining() >= addressLength + 2 && count++ < MAX_PEERS) {
+            buffer.get(addressBytes);
+            int port = buffer.getShort() & 0xFFFF;
+            if (port == 0) continue;
+            addresses.add(new InetSocketAddress(InetAddress.getByAddress(addressBytes), port));
+        }
+    }
+
+    // Writes the bencoded PEX dictionary directly into the protocol write buffer
+    private static final class PexMessage extends Message {
+        private static final byte[] KEY_ADDED = "added".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] KEY_ADDED_FLAGS = "added.f".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] KEY_ADDED6 = "added6".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] KEY_ADDED6_FLAGS = "added6.f".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] KEY_DROPPED = "dropped".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] KEY_DROPPED6 = "dropped6".getBytes(StandardCharsets.ISO_8859_1);
+
+        private final int messageID;
+
+        private final List<Entry> added4 = new ArrayList<>();
+        private final List<Entry> added6 = new ArrayList<>();
+        private final List<InetSocketAddress> dropped4 = new ArrayList<>();
+        private final List<InetSocketAddress> dropped6 = new ArrayList<>();
+
+        private final int length;
+
+        private PexMessage(int messageID, List<Entry> added, List<InetSocketAddress> dropped) {
+            this.messageID = messageID;
+            for (var entry : added) {
+                if (entry.address.getAddress() instanceof Inet6Address) added6.add(entry); else added4.add(entry);
+            }
+            for (var address : dropped) {
+                if (address.getAddress() instanceof Inet6Address) dropped6.add(address); else dropped4.add(address);
+            }
+
+            int length = 1 + 2;
+            length += stringLength(KEY_ADDED.length) + stringLength(added4.size() * 6);
+            length += stringLength(KEY_ADDED_FLAGS.length) + stringLength(added4.size());
+            if (!added6.isEmpty()) {
+                length += stringLength(KEY_ADDED6.length) + stringLength(added6.size() * 18);
+                length += stringLength(KEY_ADDED6_FLAGS.length) + stringLength(added6.size());
+            }
+            length += stringLength(KEY_DROPPED.length) + stringLength(dropped4.size() * 6);
+            if (!dropped6.isEmpty()) {
+                length += stringLength(KEY_DROPPED6.length) + stringLength(dropped6.size() * 18);
+            }
+            this.length = length;
+        }
+
+        private static int stringLength(int length) {
+            return Integer.toString(length).length() + 1 + length;
+        }
+
+        private static void putStringHeader(ByteBuffer buffer, int length) {
+            var digits = Integer.toString(length);
+            for (int i = 0; i < digits.length(); i++) {
+                buffer.put((byte) digits.charAt(i));
+            }
+            buffer.put((byte) ':');
+        }
+
+        private static void putKey(ByteBuffer buffer, byte[] key) {
+            putStringHeader(buffer, key.length);
+            buffer.put(key);
+        }
+
+        private static void putAddress(ByteBuffer buffer, InetSocketAddress address) {
+            buffer.put(address.getAddress().getAddress());
+            buffer.putShort((short) address.getPort());
+        }
+
+        @Override
+        public @NotNull MessageType getType() {
+            return MessageType.EXTENDED;
+        }
+
+        @Override
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public @Nullable ByteBuffer getPayload() {
+            return null;
+        }
+
+        @Override
+        public @Nullable CompletableFuture<Void> writePayloadTo(@NotNull ByteBuffer buffer) {
+            buffer.put((byte) messageID);
+            buffer.put((byte) 'd');
+
+            putKey(buffer, KEY_ADDED);
+            putStringHeader(buffer, added4.size() * 6);
+            for (var entry : added4) putAddress(buffer, entry.address);
+
+            putKey(buffer, KEY_ADDED_FLAGS);
+            putStringHeader(buffer, added4.size());
+            for (var entry : added4) buffer.put((byte) entry.flags);
+
+            if (!added6.isEmpty()) {
+                putKey(buffer, KEY_ADDED6);
+                putStringHeader(buffer, added6.size() * 18);
+                for (var entry : added6) putAddress(buffer, entry.address);
+
+                putKey(buffer, KEY_ADDED6_FLAGS);
+                putStringHeader(buffer, added6.size());
+                for (var entry : added6) buffer.put((byte) entry.flags);
+            }
+
+            putKey(buffer, KEY_DROPPED);
+            putStringHeader(buffer, dropped4.size() * 6);
+            for (var address : dropped4) putAddress(buffer, address);
+
+            if (!dropped6.isEmpty()) {
+                putKey(buffer, KEY_DROPPED6);
+                putStringHeader(buffer, dropped6.size() * 18);
+                for (var address : dropped6) putAddress(buffer, address);
+            }
+
+            buffer.put((byte) 'e');
+            return null;
+        }
+    }
+
+}
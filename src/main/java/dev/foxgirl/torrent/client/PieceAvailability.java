@@ -0,0 +1,53 @@
+package dev.foxgirl.torrent.client;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public final class PieceAvailability {
+
+    private final AtomicIntegerArray counts;
+
+    public PieceAvailability(int pieceCount) {
+        if (pieceCount < 0) {
+            throw new IllegalArgumentException("Piece count is negative");
+        }
+        this.counts = new AtomicIntegerArray(pieceCount);
+    }
+
+    public int getPieceCount() {
+        return counts.length();
+    }
+
+    public int get(int index) {
+        return counts.get(index);
+    }
+
+    public void increment(int index) {
+        counts.incrementAndGet(index);
+    }
+    public void decrement(int index) {
+        counts.decrementAndGet(index);
+    }
+
+    public void increment(@NotNull BitSet pieces) {
+        Objects.requireNonNull(pieces, "Argument 'pieces'");
+        for (int i = pieces.nextSetBit(0); i >= 0 && i < counts.length(); i = pieces.nextSetBit(i + 1)) {
+            counts.incrementAndGet(i);
+        }
+    }
+    public void decrement(@NotNull BitSet pieces) {
+        Objects.requireNonNull(pieces, "Argument 'pieces'");
+        for (int i = pieces.nextSetBit(0); i >= 0 && i < counts.length(); i = pieces.nextSetBit(i + 1)) {
+            counts.decrementAndGet(i);
+        }
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "PieceAvailability{pieceCount=" + getPieceCount() + "}";
+    }
+
+}
@@ -0,0 +1,386 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.metainfo.Info;
+import dev.foxgirl.torrent.storage.BufferPool;
+import dev.foxgirl.torrent.storage.Storage;
+import dev.foxgirl.torrent.util.Hash;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Assembles downloaded blocks into whole pieces in pooled off-heap buffers, verifies them, and
+// writes each verified piece to storage with a single sequential write. When the pool runs dry
+// the least recently written piece of any cache in the client is flushed to storage to free its
+// buffer, and blocks that still don't fit are written through, so a piece may end up partly in
+// storage before it's done.
+public final class PieceCache implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PieceCache.class);
+
+    private static final long DISK_RETRY_DELAY_MS = 10;
+
+    private static final int BLOCK_LENGTH = BlockRequest.BLOCK_LENGTH;
+
+    public interface Listener {
+        void onPieceVerified(int pieceIndex);
+        void onPieceFailed(int pieceIndex);
+    }
+
+    private static final class Entry {
+        private final int pieceIndex;
+        private final long pieceOffset;
+        private final int length;
+        private final int blockCount;
+        private final BitSet receivedBlocks;
+        // Received blocks that are in storage rather than in the buffer
+        private final BitSet flushedBlocks;
+        private @Nullable ByteBuffer buffer;
+        private long lastUse;
+        private CompletableFuture<Void> pendingWrites = CompletableFuture.completedFuture(null);
+
+        private Entry(Info info, int pieceIndex) {
+            this.pieceIndex = pieceIndex;
+            this.pieceOffset = (long) pieceIndex * info.getPieceLength();
+            this.length = (int) info.getPieceLength(pieceIndex);
+            this.blockCount = BlockRequest.getBlockCount(info, pieceIndex);
+            this.receivedBlocks = new BitSet(blockCount);
+            this.flushedBlocks = new BitSet(blockCount);
+        }
+    }
+
+    private final @NotNull Info info;
+    private final @NotNull Storage storage;
+    private final @NotNull BufferPool bufferPool;
+    private final @NotNull ClientExecutors executors;
+    private final @NotNull Listener listener;
+
+    // Access ordered, so iteration starts at the least recently written piece
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+    private final BitSet verifyingPieces = new BitSet();
+
+    // Last use of the least recently written piece that still has a buffer, read by the pool without the lock
+    private volatile long oldestUse = Long.MAX_VALUE;
+    private final BufferPool.Reclaimer reclaimer = new BufferPool.Reclaimer() {
+        @Override
+        public long getOldestUse() {
+            return oldestUse;
+        }
+
+        @Override
+        public void reclaim() {
+            reclaimBuffer();
+        }
+    };
+
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    public PieceCache(
+            @NotNull Info info,
+            @NotNull Storage storage,
+            @NotNull BufferPool bufferPool,
+            @NotNull ClientExecutors executors,
+            @NotNull Listener listener
+    ) {
+        Objects.requireNonNull(info, "Argument 'info'");
+        Objects.requireNonNull(storage, "Argument 'storage'");
+        Objects.requireNonNull(bufferPool, "Argument 'bufferPool'");
+        Objects.requireNonNull(executors, "Argument 'executors'");
+        Objects.requireNonNull(listener, "Argument 'listener'");
+        this.info = info;
+        this.storage = storage;
+        this.bufferPool = bufferPool;
+        this.executors = executors;
+        this.listener = listener;
+        bufferPool.addReclaimer(reclaimer);
+    }
+
+    public @NotNull Storage getStorage() {
+        return storage;
+    }
+
+    public synchronized int getPieceCount() {
+        return entries.size();
+    }
+
+    public synchronized boolean isVerifying(int pieceIndex) {
+        return verifyingPieces.get(pieceIndex);
+    }
+
+    public boolean isClosed() {
+        return isClosed.get();
+    }
+
+    // Copies the block into the cache, returns false if it was a duplicate or the piece is already complete
+    public synchronized boolean write(int pieceIndex, int offset, @NotNull ByteBuffer block) {
+        Objects.requireNonNull(block, "Argument 'block'");
+        Objects.checkIndex(pieceIndex, info.getPieceCount());
+        if (isClosed() || verifyingPieces.get(pieceIndex)) {
+            return false;
+        }
+
+        var entry = entries.get(pieceIndex);
+        if (entry == null) {
+            entry = new Entry(info, pieceIndex);
+            entries.put(pieceIndex, entry);
+        }
+        entry.lastUse = System.nanoTime();
+
+        if (offset < 0 || offset % BLOCK_LENGTH != 0 || offset >= entry.length || block.remaining() != Math.min(BLOCK_LENGTH, entry.length - offset)) {
+            throw new IllegalArgumentException("Block at offset " + offset + " with length " + block.remaining() + " is not aligned to piece " + pieceIndex);
+        }
+        int blockIndex = offset / BLOCK_LENGTH;
+        if (entry.receivedBlocks.get(blockIndex)) {
+            return false;
+        }
+
+        if (entry.buffer == null) {
+            entry.buffer = acquireBuffer(entry);
+        }
+        if (entry.buffer != null) {
+            entry.buffer.put(offset, block, block.position(), block.remaining());
+        } else {
+            var copy = ByteBuffer.allocate(block.remaining()).put(block.duplicate()).flip();
+            entry.flushedBlocks.set(blockIndex);
+            submitWrite(entry, entry.pieceOffset + offset, copy);
+        }
+        entry.receivedBlocks.set(blockIndex);
+
+        if (entry.receivedBlocks.cardinality() == entry.blockCount) {
+            entries.remove(pieceIndex);
+            verifyingPieces.set(pieceIndex);
+            var completed = entry;
+            // May complete right here under the lock, so verification is never run inline
+            entry.pendingWrites.whenComplete((ignored, cause) -> {
+                executeOnDisk(() -> verify(completed, cause), () -> abandon(completed));
+            });
+        }
+        updateOldestUse();
+        return true;
+    }
+
+    private @Nullable ByteBuffer acquireBuffer(Entry entry) {
+        var buffer = bufferPool.acquire(entry.length);
+        if (buffer == null) {
+            // The evicted buffer only returns to the pool once its flush is done, so this block is
+            // written through, but the next one will likely find room
+            bufferPool.reclaim();
+        }
+        return buffer;
+    }
+
+    // The pool may ask while another cache's lock is held, so the flush is only started right away
+    // when this cache asked itself, otherwise it runs on the disk executor
+    private void reclaimBuffer() {
+        if (Thread.holdsLock(this)) {
+            evictOldest();
+            return;
+        }
+        try {
+            executors.getDiskExecutor().execute((ClientExecutors.DeferrableTask) () -> {
+                synchronized (this) {
+                    if (!isClosed()) evictOldest();
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    private void evictOldest() {
+        for (var entry : entries.values()) {
+            if (entry.buffer == null) continue;
+            LOGGER.debug("Evicting piece {} from cache", entry.pieceIndex);
+            flushBuffer(entry);
+            break;
+        }
+        updateOldestUse();
+    }
+
+    private void updateOldestUse() {
+        long use = Long.MAX_VALUE;
+        for (var entry : entries.values()) {
+            if (entry.buffer != null) {
+                use = entry.lastUse;
+                break;
+            }
+        }
+        oldestUse = use;
+    }
+
+    // Writes the buffered blocks of a partial piece to storage in contiguous runs, then gives up the buffer
+    private void flushBuffer(Entry entry) {
+        var buffer = entry.buffer;
+        var blocks = (BitSet) entry.receivedBlocks.clone();
+        blocks.andNot(entry.flushedBlocks);
+        entry.flushedBlocks.or(blocks);
+        entry.buffer = null;
+
+        var offset = entry.pieceOffset;
+        var length = entry.length;
+        entry.pendingWrites = entry.pendingWrites.thenCombine(runOnDisk(() -> {
+            try {
+                for (int start = blocks.nextSetBit(0), end; start >= 0; start = blocks.nextSetBit(end)) {
+                    end = blocks.nextClearBit(start);
+                    int from = start * BLOCK_LENGTH;
+                    int to = Math.min(end * BLOCK_LENGTH, length);
+                    storage.write(offset + from, buffer.slice(from, to - from));
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }), (a, b) -> null);
+    }
+
+    private void submitWrite(Entry entry, long offset, ByteBuffer data) {
+        entry.pendingWrites = entry.pendingWrites.thenCombine(runOnDisk(() -> storage.write(offset, data)), (a, b) -> null);
+    }
+
+    private interface DiskTask {
+        void run() throws IOException;
+    }
+
+    private CompletableFuture<Void> runOnDisk(DiskTask task) {
+        var future = new CompletableFuture<Void>();
+        executeOnDisk(() -> {
+            try {
+                task.run();
+                future.complete(null);
+            } catch (Throwable cause) {
+                future.completeExceptionally(cause);
+            }
+        }, () -> future.completeExceptionally(new RejectedExecutionException("Disk executor closed")));
+        return future;
+    }
+
+    // Callers usually hold the lock on a network thread, so a full disk queue never runs the task
+    // inline, the submission is retried after a short delay instead, and gives up once the client is closed
+    private void executeOnDisk(Runnable task, Runnable onRejected) {
+        try {
+            executors.getDiskExecutor().execute((ClientExecutors.DeferrableTask) task::run);
+            return;
+        } catch (RejectedExecutionException ignored) {
+        }
+        if (!executors.isClosed()) {
+            try {
+                executors.schedule(() -> executeOnDisk(task, onRejected), DISK_RETRY_DELAY_MS);
+                return;
+            } catch (RejectedExecutionException ignored) {
+            }
+        }
+        onRejected.run();
+    }
+
+    // The piece could not be verified because the client is shutting down, its buffer goes back
+    // without reporting to the listener
+    private void abandon(Entry entry) {
+        LOGGER.debug("Piece {} not verified, disk executor closed", entry.pieceIndex);
+        synchronized (this) {
+            if (entry.buffer != null) {
+                bufferPool.release(entry.buffer);
+                entry.buffer = null;
+            }
+            verifyingPieces.clear(entry.pieceIndex);
+        }
+    }
+
+    private void verify(Entry entry, @Nullable Throwable writeFailure) {
+        boolean isValid = false;
+        var buffer = entry.buffer;
+        try {
+            if (writeFailure != null) {
+                throw writeFailure;
+            }
+            Hash hash;
+            if (buffer != null) {
+                // Pull in the blocks that went to storage, then write the whole piece at once
+                var flushed = entry.flushedBlocks;
+                for (int start = flushed.nextSetBit(0), end; start >= 0; start = flushed.nextSetBit(end)) {
+                    end = flushed.nextClearBit(start);
+                    int from = start * BLOCK_LENGTH;
+                    int to = Math.min(end * BLOCK_LENGTH, entry.length);
+                    storage.read(entry.pieceOffset + from, buffer.slice(from, to - from));
+                }
+                hash = Hash.digest(Hash.Algorithm.SHA1, buffer.clear());
+                isValid = hash.equals(info.getPieces().get(entry.pieceIndex));
+                if (isValid) {
+                    storage.write(entry.pieceOffset, buffer.clear());
+                }
+            } else {
+                // Every block is already in storage
+                var stream = Hash.digestOutputStream(Hash.Algorithm.SHA1);
+                var chunk = ByteBuffer.allocate(Math.min(64 * 1024, entry.length));
+                for (int position = 0; position < entry.length; position += chunk.limit()) {
+                    chunk.clear().limit(Math.min(chunk.capacity(), entry.length - position));
+                    storage.read(entry.pieceOffset + position, chunk);
+                    stream.write(chunk.array(), 0, chunk.limit());
+                }
+                hash = stream.complete();
+                isValid = hash.equals(info.getPieces().get(entry.pieceIndex));
+            }
+            if (!isValid) {
+                LOGGER.warn("Piece {} failed verification, expected {}, actual {}", entry.pieceIndex, info.getPieces().get(entry.pieceIndex), hash);
+            }
+        } catch (Throwable cause) {
+            if (isClosed()) {
+                LOGGER.debug("Piece {} not stored, cache closed", entry.pieceIndex, cause);
+            } else {
+                LOGGER.warn("Failed to store piece {}", entry.pieceIndex, cause);
+            }
+            isValid = false;
+        } finally {
+            if (buffer != null) {
+                entry.buffer = null;
+                bufferPool.release(buffer);
+            }
+        }
+
+        if (isClosed()) {
+            return;
+        }
+        // Listener runs while the piece still counts as verifying, so no stray blocks can restart
+        // it before the bitfield is updated, but a failed piece is reopened first so it can be picked again
+        if (isValid) {
+            listener.onPieceVerified(entry.pieceIndex);
+            synchronized (this) {
+                verifyingPieces.clear(entry.pieceIndex);
+            }
+        } else {
+            synchronized (this) {
+                verifyingPieces.clear(entry.pieceIndex);
+            }
+            listener.onPieceFailed(entry.pieceIndex);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (isClosed.getAndSet(true)) {
+            return;
+        }
+        bufferPool.removeReclaimer(reclaimer);
+        oldestUse = Long.MAX_VALUE;
+        // Pieces that are verifying or flushing give their buffers back when they finish
+        for (var entry : entries.values()) {
+            if (entry.buffer != null) {
+                bufferPool.release(entry.buffer);
+                entry.buffer = null;
+            }
+        }
+        entries.clear();
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "PieceCache{infoHash=" + info.getInfoHash() + ", pieces=" + getPieceCount() + ", isClosed=" + isClosed() + "}";
+    }
+
+}
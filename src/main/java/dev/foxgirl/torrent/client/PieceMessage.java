@@ -0,0 +1,50 @@
+package dev.foxgirl.torrent.client;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+// PIECE message that copies its block straight into the protocol's write buffer,
+// so blocks served from the read cache are never copied into a payload first
+final class PieceMessage extends Message {
+
+    private final @NotNull BlockRequest request;
+    private final @NotNull ByteBuffer block;
+
+    PieceMessage(@NotNull BlockRequest request, @NotNull ByteBuffer block) {
+        Objects.requireNonNull(request, "Argument 'request'");
+        Objects.requireNonNull(block, "Argument 'block'");
+        if (block.remaining() != request.length()) {
+            throw new IllegalArgumentException("Block length is not equal to request length");
+        }
+        this.request = request;
+        this.block = block;
+    }
+
+    @Override
+    public @NotNull MessageType getType() {
+        return MessageType.PIECE;
+    }
+
+    @Override
+    public int getLength() {
+        return 8 + request.length();
+    }
+
+    @Override
+    public @Nullable ByteBuffer getPayload() {
+        return null;
+    }
+
+    @Override
+    public @Nullable CompletableFuture<Void> writePayloadTo(@NotNull ByteBuffer buffer) {
+        buffer.putInt(request.pieceIndex());
+        buffer.putInt(request.offset());
+        buffer.put(block.duplicate());
+        return null;
+    }
+
+}
@@ -0,0 +1,367 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.metainfo.Info;
+import dev.foxgirl.torrent.util.Clock;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public final class PiecePicker {
+
+    public enum Priority {
+        SKIP, LOW, NORMAL, HIGH
+    }
+
+    // What the picker reads from the swarm, implemented by Swarm and by simulations
+    public interface Context {
+        @NotNull Info getInfo();
+        @NotNull BitField getBitField();
+        @NotNull PieceAvailability getAvailability();
+        // Download rates of the connected peers, used to tell fast peers from slow ones
+        double @NotNull [] getPeerRates();
+        @NotNull Clock getClock();
+        // Breaks ties between equally rare pieces
+        @NotNull Random getRandom();
+    }
+
+    private final @NotNull Context context;
+
+    // Pieces are picked from the highest priority that has candidates, skipped pieces never are
+    private final Priority[] priorities;
+    private final BitSet skippedPieces;
+
+    // Pieces currently being downloaded by some peer, not offered to other peers
+    private final BitSet claimedPieces;
+
+    // Deadlines closer than this are urgent
+    private static final long URGENT_WINDOW_MS = 5 * 1000;
+
+    // Deadlines by piece index, as context clock values
+    private final Map<Integer, Long> deadlines = new HashMap<>();
+
+    private volatile boolean isSequential = false;
+
+    // Endgame duplicates a block to at most this many peers in total
+    private static final int MAX_BLOCK_REQUESTERS = 2;
+
+    // Outstanding block requests and the peers they were sent to, oldest first
+    private final Map<BlockRequest, List<Peer>> requests = new LinkedHashMap<>();
+
+    // Blocks of claimed pieces that the claiming peer hasn't requested yet. In endgame other peers
+    // take them over, and a taken block that ends up with no requesters is orphaned, so that any peer
+    // with the piece picks it up instead of the piece stalling.
+    private final Map<BlockRequest, Peer> pendingBlocks = new LinkedHashMap<>();
+    private final Set<BlockRequest> takenBlocks = new HashSet<>();
+    private final Set<BlockRequest> orphanedBlocks = new LinkedHashSet<>();
+
+    public PiecePicker(@NotNull Context context) {
+        Objects.requireNonNull(context, "Argument 'context'");
+        this.context = context;
+        this.claimedPieces = new BitSet(context.getInfo().getPieceCount());
+        this.priorities = new Priority[context.getInfo().getPieceCount()];
+        this.skippedPieces = new BitSet(context.getInfo().getPieceCount());
+        Arrays.fill(priorities, Priority.NORMAL);
+    }
+
+    public @NotNull Context getContext() {
+        return context;
+    }
+
+    public synchronized boolean isClaimed(int index) {
+        return claimedPieces.get(index);
+    }
+
+    public synchronized int getClaimedCount() {
+        return claimedPieces.cardinality();
+    }
+
+    public synchronized void release(int index) {
+        claimedPieces.clear(index);
+        if (!pendingBlocks.isEmpty()) pendingBlocks.keySet().removeIf(request -> request.pieceIndex() == index);
+        if (!takenBlocks.isEmpty()) takenBlocks.removeIf(request -> request.pieceIndex() == index);
+        if (!orphanedBlocks.isEmpty()) orphanedBlocks.removeIf(request -> request.pieceIndex() == index);
+    }
+
+    public synchronized @NotNull Priority getPriority(int index) {
+        return priorities[index];
+    }
+
+    public synchronized void setPriority(int index, @NotNull Priority priority) {
+        Objects.requireNonNull(priority, "Argument 'priority'");
+        priorities[index] = priority;
+        skippedPieces.set(index, priority == Priority.SKIP);
+    }
+
+    public synchronized boolean isWanted(int index) {
+        return !skippedPieces.get(index);
+    }
+
+    // Copy of the pieces that aren't skipped
+    public synchronized @NotNull BitSet getWantedPieces() {
+        var wanted = new BitSet(priorities.length);
+        wanted.set(0, priorities.length);
+        wanted.andNot(skippedPieces);
+        return wanted;
+    }
+
+    public boolean isSequential() {
+        return isSequential;
+    }
+
+    // Sequential mode picks the lowest missing piece instead of the rarest
+    public void setSequential(boolean isSequential) {
+        this.isSequential = isSequential;
+    }
+
+    // Pieces with a deadline are picked before anything else, earliest deadline first
+    public synchronized void setDeadline(int index, long delayMs) {
+        Objects.checkIndex(index, context.getInfo().getPieceCount());
+        deadlines.put(index, context.getClock().nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMs, 0)));
+    }
+
+    public synchronized void clearDeadline(int index) {
+        deadlines.remove(index);
+    }
+
+    public synchronized boolean hasDeadline(int index) {
+        return deadlines.containsKey(index);
+    }
+
+    // Picks and claims a piece the peer has that the client still needs, returns -1 if there is none.
+    // Pieces with a deadline come first, then suggested pieces, then allowed fast pieces, then the
+    // rarest piece in the swarm, or the lowest one in sequential mode. Pieces whose deadline is close
+    // are only given to the faster half of the peers, so a slow peer can't hold up a streaming reader.
+    // When the peer is choking the client only allowed fast pieces may be requested.
+    public synchronized int pick(
+            @NotNull BitSet peerPieces,
+            @NotNull BitSet allowedFastPieces,
+            int @NotNull [] suggestedPieces,
+            boolean isChoked,
+            double peerRate
+    ) {
+        Objects.requireNonNull(peerPieces, "Argument 'peerPieces'");
+        Objects.requireNonNull(allowedFastPieces, "Argument 'allowedFastPieces'");
+        Objects.requireNonNull(suggestedPieces, "Argument 'suggestedPieces'");
+
+        var candidates = (BitSet) peerPieces.clone();
+        candidates.andNot(context.getBitField().getBitSet());
+        candidates.andNot(claimedPieces);
+        candidates.andNot(skippedPieces);
+        if (isChoked) {
+            candidates.and(allowedFastPieces);
+        }
+        if (candidates.isEmpty()) {
+            return -1;
+        }
+
+        int index = deadlines.isEmpty() ? -1 : pickDeadline(candidates, peerRate);
+        for (int i = 0; index < 0 && i < suggestedPieces.length; i++) {
+            int suggested = suggestedPieces[i];
+            if (suggested >= 0 && candidates.get(suggested)) {
+                index = suggested;
+                break;
+            }
+        }
+        if (index < 0) {
+            retainHighestPriority(candidates);
+            var filter = candidates.intersects(allowedFastPieces) ? allowedFastPieces : null;
+            index = isSequential ? pickFirst(candidates, filter) : pickRarest(candidates, filter);
+        }
+
+        claimedPieces.set(index);
+        return index;
+    }
+
+    private int pickDeadline(BitSet candidates, double peerRate) {
+        var now = context.getClock().nanoTime();
+        var urgentDeadline = now + TimeUnit.MILLISECONDS.toNanos(URGENT_WINDOW_MS);
+        boolean isFast = isFastPeer(peerRate);
+
+        int earliestIndex = -1;
+        long earliestDeadline = Long.MAX_VALUE;
+        for (var entry : deadlines.entrySet()) {
+            int index = entry.getKey();
+            long deadline = entry.getValue();
+            if (!candidates.get(index)) continue;
+            if (earliestIndex >= 0 && deadline - earliestDeadline >= 0) continue;
+            // Overdue pieces go to whoever is available
+            if (!isFast && deadline - urgentDeadline < 0 && deadline - now > 0) continue;
+            earliestIndex = index;
+            earliestDeadline = deadline;
+        }
+        return earliestIndex;
+    }
+
+    private void retainHighestPriority(BitSet candidates) {
+        var highest = Priority.LOW;
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (priorities[i].compareTo(highest) > 0) highest = priorities[i];
+        }
+        if (highest == Priority.LOW) {
+            return;
+        }
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (priorities[i] != highest) candidates.clear(i);
+        }
+    }
+
+    private boolean isFastPeer(double peerRate) {
+        int count = 0;
+        int fasterCount = 0;
+        for (double rate : context.getPeerRates()) {
+            if (rate <= 0.0) continue;
+            count++;
+            if (rate > peerRate) fasterCount++;
+        }
+        return fasterCount < Math.max(1, (count + 1) / 2);
+    }
+
+    private static int pickFirst(BitSet candidates, BitSet filter) {
+        if (filter == null) {
+            return candidates.nextSetBit(0);
+        }
+        var filtered = (BitSet) candidates.clone();
+        filtered.and(filter);
+        return filtered.nextSetBit(0);
+    }
+
+    private int pickRarest(BitSet candidates, BitSet filter) {
+        var availability = context.getAvailability();
+        var random = context.getRandom();
+
+        int rarestIndex = -1;
+        int rarestCount = Integer.MAX_VALUE;
+        int ties = 0;
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (filter != null && !filter.get(i)) continue;
+            int count = availability.get(i);
+            if (count < rarestCount) {
+                rarestIndex = i;
+                rarestCount = count;
+                ties = 1;
+            } else if (count == rarestCount && random.nextInt(++ties) == 0) {
+                // Break ties randomly so peers don't all start on the same piece
+                rarestIndex = i;
+            }
+        }
+        return rarestIndex;
+    }
+
+    // Endgame starts once every missing wanted piece is claimed, so there is nothing left to pick
+    public synchronized boolean isEndgame() {
+        if (claimedPieces.isEmpty()) {
+            return false;
+        }
+        var needed = context.getBitField().getBitSet();
+        needed.or(claimedPieces);
+        needed.or(skippedPieces);
+        return needed.nextClearBit(0) >= context.getInfo().getPieceCount();
+    }
+
+    synchronized void addRequest(@NotNull BlockRequest request, @NotNull Peer peer) {
+        var requesters = requests.computeIfAbsent(request, key -> new ArrayList<>(MAX_BLOCK_REQUESTERS));
+        if (!requesters.contains(peer)) {
+            requesters.add(peer);
+        }
+    }
+
+    synchronized void removeRequest(@NotNull BlockRequest request, @NotNull Peer peer) {
+        var requesters = requests.get(request);
+        if (requesters != null && requesters.remove(peer) && requesters.isEmpty()) {
+            requests.remove(request);
+            if (takenBlocks.remove(request)) {
+                orphanedBlocks.add(request);
+            }
+        }
+    }
+
+    // Publishes the blocks of a piece the peer just claimed, before it requests any of them
+    synchronized void addPending(@NotNull Collection<@NotNull BlockRequest> blocks, @NotNull Peer peer) {
+        for (var request : blocks) {
+            pendingBlocks.put(request, peer);
+        }
+    }
+
+    // Called by the claiming peer before requesting one of its pending blocks, returns false if
+    // another peer has taken it over, in which case it is no longer this peer's to request
+    synchronized boolean takePending(@NotNull BlockRequest request, @NotNull Peer peer) {
+        return pendingBlocks.remove(request, peer);
+    }
+
+    // Picks a block that was taken over and then dropped by every peer it was requested from, any
+    // peer with the piece may request it, returns null if there is none
+    synchronized @Nullable BlockRequest pickOrphan(@NotNull BitSet peerPieces) {
+        if (orphanedBlocks.isEmpty()) {
+            return null;
+        }
+        for (var iterator = orphanedBlocks.iterator(); iterator.hasNext(); ) {
+            var request = iterator.next();
+            if (peerPieces.get(request.pieceIndex())) {
+                iterator.remove();
+                takenBlocks.add(request);
+                return request;
+            }
+        }
+        return null;
+    }
+
+    // Called when a peer delivers a block, returns the other peers the block was requested from
+    synchronized @NotNull List<@NotNull Peer> completeRequest(@NotNull BlockRequest request, @NotNull Peer peer) {
+        takenBlocks.remove(request);
+        var requesters = requests.remove(request);
+        if (requesters == null) {
+            return List.of();
+        }
+        requesters.remove(peer);
+        return requesters;
+    }
+
+    // In endgame, picks a block of a piece claimed by another peer that the peer has. Blocks the other
+    // peer hasn't requested yet come first, they are taken over and counted as requested by this peer
+    // only. Then blocks already outstanding, fewest requesters first and then the oldest. Returns
+    // null if there is none.
+    synchronized @Nullable BlockRequest pickDuplicate(
+            @NotNull Peer peer,
+            @NotNull BitSet peerPieces,
+            @NotNull Set<@NotNull BlockRequest> excludedRequests
+    ) {
+        if (!isEndgame()) {
+            return null;
+        }
+        for (var iterator = pendingBlocks.entrySet().iterator(); iterator.hasNext(); ) {
+            var entry = iterator.next();
+            var request = entry.getKey();
+            if (entry.getValue() == peer || !peerPieces.get(request.pieceIndex()) || requests.containsKey(request)) continue;
+            iterator.remove();
+            takenBlocks.add(request);
+            var requesters = new ArrayList<Peer>(MAX_BLOCK_REQUESTERS);
+            requesters.add(peer);
+            requests.put(request, requesters);
+            return request;
+        }
+        BlockRequest picked = null;
+        List<Peer> pickedRequesters = null;
+        for (var entry : requests.entrySet()) {
+            var request = entry.getKey();
+            var requesters = entry.getValue();
+            if (requesters.size() >= MAX_BLOCK_REQUESTERS || requesters.contains(peer)) continue;
+            if (!peerPieces.get(request.pieceIndex()) || excludedRequests.contains(request)) continue;
+            if (pickedRequesters == null || requesters.size() < pickedRequesters.size()) {
+                picked = request;
+                pickedRequesters = requesters;
+            }
+        }
+        if (picked != null) {
+            pickedRequesters.add(peer);
+        }
+        return picked;
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "PiecePicker{infoHash=" + context.getInfo().getInfoHash() + ", claimed=" + getClaimedCount() + "}";
+    }
+
+}
@@ -0,0 +1,80 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.util.Hash;
+import dev.foxgirl.torrent.util.IO;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+// Handshake encoding shared by the protocol implementations
+final class ProtocolHandshake {
+
+    static final int LENGTH = 68;
+
+    private static final byte[] PROTOCOL_STRING = "BitTorrent protocol".getBytes(StandardCharsets.ISO_8859_1);
+
+    private ProtocolHandshake() {
+    }
+
+    record PeerHandshake(
+            @NotNull Extensions peerExtensions,
+            @NotNull Hash peerInfoHash,
+            @NotNull Identity peerIdentity
+    ) {}
+
+    static void write(
+            @NotNull ByteBuffer buffer,
+            @NotNull Extensions clientExtensions,
+            @NotNull Hash infoHash,
+            @NotNull Identity clientIdentity
+    ) {
+        /* clientPstrLen       */ buffer.put((byte) PROTOCOL_STRING.length);
+        /* clientPstr          */ buffer.put(PROTOCOL_STRING);
+        /* clientReservedBytes */ buffer.put(clientExtensions.getBits());
+        /* clientInfoHashBytes */ buffer.put(infoHash.getBytes());
+        /* clientIdentityBytes */ buffer.put(clientIdentity.getID());
+    }
+
+    // Reads and validates a handshake, checking the infohash against the expected one if given
+    static @NotNull PeerHandshake read(
+            @NotNull ByteBuffer buffer,
+            @NotNull InetSocketAddress peerAddress,
+            @Nullable Hash expectedInfoHash
+    ) {
+        var peerPstrLen = buffer.get();
+        if (peerPstrLen != PROTOCOL_STRING.length) {
+            throw new IllegalStateException(String.format(
+                "Handshake protocol string length mismatch, expected %d, actual %d",
+                PROTOCOL_STRING.length, peerPstrLen
+            ));
+        }
+        var peerPstr = IO.getArray(buffer, PROTOCOL_STRING.length);
+        if (!Arrays.equals(peerPstr, PROTOCOL_STRING)) {
+            throw new IllegalStateException(String.format(
+                "Handshake protocol string mismatch, expected \"%s\", actual \"%s\"",
+                new String(PROTOCOL_STRING, StandardCharsets.ISO_8859_1),
+                new String(peerPstr, StandardCharsets.ISO_8859_1)
+            ));
+        }
+
+        var peerExtensionsBytes = IO.getArray(buffer, 8);
+        var peerInfoHashBytes = IO.getArray(buffer, 20);
+        var peerIdentityBytes = IO.getArray(buffer, 20);
+
+        var peerExtensions = new Extensions(peerExtensionsBytes);
+        var peerInfoHash = Hash.of(peerInfoHashBytes);
+        var peerIdentity = new Identity(peerIdentityBytes, peerAddress);
+
+        if (expectedInfoHash != null && !Objects.equals(expectedInfoHash, peerInfoHash)) {
+            throw new IllegalStateException("Handshake infohash mismatch, expected " + expectedInfoHash + ", actual " + peerInfoHash);
+        }
+
+        return new PeerHandshake(peerExtensions, peerInfoHash, peerIdentity);
+    }
+
+}
@@ -1,37 +1,140 @@
 package dev.foxgirl.torrent.client;
 
+import dev.foxgirl.torrent.metainfo.FileInfo;
 import dev.foxgirl.torrent.metainfo.Info;
+import dev.foxgirl.torrent.storage.MemoryStorage;
+import dev.foxgirl.torrent.storage.ReadCache;
+import dev.foxgirl.torrent.storage.Storage;
+import dev.foxgirl.torrent.util.Clock;
 import dev.foxgirl.torrent.util.Hash;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-public final class Swarm implements AutoCloseable {
+public final class Swarm implements AutoCloseable, PieceCache.Listener, PiecePicker.Context, Storage.Listener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Swarm.class);
 
     private final @NotNull Client client;
     private final @NotNull BitField bitfield;
+    private final @NotNull PieceAvailability availability;
+    private final @NotNull PiecePicker piecePicker;
+    private final @NotNull Storage storage;
+    private final @NotNull PieceCache pieceCache;
+    private final @NotNull ReadCache readCache;
+    private final @NotNull Choker<Peer> choker = new Choker<>();
+
+    private static final long RECHOKE_INTERVAL_MS = 10 * 1000;
+    private final @NotNull ScheduledFuture<?> rechokeFuture;
 
     private final AtomicBoolean isClosed = new AtomicBoolean();
-    private final Set<Peer> peers = new LinkedHashSet<>(32);
+    // Concurrent set so handshakes and scans never serialize on the swarm, iteration is weakly consistent
+    private final Set<Peer> peers = ConcurrentHashMap.newKeySet(32);
+    private final Set<Peer> peersView = Collections.unmodifiableSet(peers);
+    private final Set<InetSocketAddress> peerCandidates = new LinkedHashSet<>(32);
+
+    // Futures completed when a piece is verified, for streaming readers
+    private final Map<Integer, CompletableFuture<Void>> pieceWaiters = new ConcurrentHashMap<>();
+
+    private final long[] fileOffsets;
+    private final PiecePicker.Priority[] filePriorities;
+
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
 
     public Swarm(@NotNull Client client, @NotNull Info info) {
+        this(client, info, new MemoryStorage(info));
+    }
+
+    public Swarm(@NotNull Client client, @NotNull Info info, @NotNull Storage storage) {
         Objects.requireNonNull(client, "Argument 'client'");
         Objects.requireNonNull(info, "Argument 'info'");
+        Objects.requireNonNull(storage, "Argument 'storage'");
+        if (storage.getLength() != info.getTotalLength()) {
+            throw new IllegalArgumentException("Storage length does not match info");
+        }
         this.client = client;
+        // Scheduled first, close() cancels it as soon as the swarm is in the client
+        this.rechokeFuture = client.getExecutors().scheduleWithFixedDelay(this::rechoke, RECHOKE_INTERVAL_MS, RECHOKE_INTERVAL_MS);
         this.bitfield = new BitField(info);
-        if (!client.addSwarm(this)) {
-            throw new IllegalStateException("Swarm already exists");
+        this.availability = new PieceAvailability(info.getPieceCount());
+        this.piecePicker = new PiecePicker(this);
+        this.storage = storage;
+        this.pieceCache = new PieceCache(info, storage, client.getBufferPool(), client.getExecutors(), this);
+        this.readCache = new ReadCache(info, storage, client.getReadBufferPool());
+        var files = info.getFiles();
+        this.fileOffsets = new long[files.size()];
+        this.filePriorities = new PiecePicker.Priority[files.size()];
+        long offset = 0;
+        for (int i = 0; i < files.size(); i++) {
+            fileOffsets[i] = offset;
+            filePriorities[i] = PiecePicker.Priority.NORMAL;
+            offset += files.get(i).getLength();
+        }
+        try {
+            if (!client.addSwarm(this)) {
+                throw new IllegalStateException("Swarm already exists");
+            }
+        } catch (RuntimeException cause) {
+            // The caches are registered with the client's pools, they must not outlive a swarm that was never added
+            rechokeFuture.cancel(false);
+            pieceCache.close();
+            readCache.close();
+            throw cause;
+        }
+        // Same lock as close(), which clears the listener, in case the swarm was closed right after being added
+        synchronized (this) {
+            if (!isClosed()) storage.setListener(this);
         }
     }
 
     public @NotNull Client getClient() {
         return client;
     }
+    @Override
     public @NotNull BitField getBitField() {
         return bitfield;
     }
 
+    @Override
+    public @NotNull PieceAvailability getAvailability() {
+        return availability;
+    }
+
+    public @NotNull PiecePicker getPiecePicker() {
+        return piecePicker;
+    }
+
+    public @NotNull Storage getStorage() {
+        return storage;
+    }
+
+    public @NotNull PieceCache getPieceCache() {
+        return pieceCache;
+    }
+
+    // Serves uploads, its budget can be changed while the swarm is running
+    public @NotNull ReadCache getReadCache() {
+        return readCache;
+    }
+
+    public @NotNull Choker<Peer> getChoker() {
+        return choker;
+    }
+
+    @Override
     public @NotNull Info getInfo() {
         return bitfield.getInfo();
     }
@@ -39,6 +142,98 @@ public final class Swarm implements AutoCloseable {
         return getInfo().getInfoHash();
     }
 
+    @Override
+    public double @NotNull [] getPeerRates() {
+        return peers.stream().mapToDouble(Peer::getDownloadRate).toArray();
+    }
+
+    @Override
+    public @NotNull Clock getClock() {
+        return Clock.SYSTEM;
+    }
+
+    @Override
+    public @NotNull Random getRandom() {
+        return ThreadLocalRandom.current();
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    public void addBytesDownloaded(long count) {
+        bytesDownloaded.addAndGet(count);
+    }
+    public void addBytesUploaded(long count) {
+        bytesUploaded.addAndGet(count);
+    }
+
+    void receiveBlock(@NotNull Peer peer, @NotNull BlockRequest request, @NotNull ByteBuffer block) {
+        addBytesDownloaded(block.remaining());
+        if (bitfield.get(request.pieceIndex())) {
+            return;
+        }
+        // The piece stays claimed until the cache has verified it
+        pieceCache.write(request.pieceIndex(), request.offset(), block);
+    }
+
+    @Override
+    public void onPieceVerified(int pieceIndex) {
+        LOGGER.debug("Swarm {} verified piece {}", getInfoHash(), pieceIndex);
+        bitfield.set(pieceIndex, true);
+        piecePicker.release(pieceIndex);
+        piecePicker.clearDeadline(pieceIndex);
+        var waiter = pieceWaiters.remove(pieceIndex);
+        if (waiter != null) {
+            waiter.complete(null);
+        }
+        for (var peer : getPeers()) {
+            peer.onClientPieceAdded(pieceIndex);
+        }
+    }
+
+    // Completes once the client has the piece, or fails when the swarm is closed
+    public @NotNull CompletableFuture<Void> awaitPiece(int index) {
+        Objects.checkIndex(index, getInfo().getPieceCount());
+        if (bitfield.get(index)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        var waiter = pieceWaiters.computeIfAbsent(index, key -> new CompletableFuture<>());
+        // Verified or closed between the check and registering the waiter
+        if (bitfield.get(index)) {
+            waiter.complete(null);
+        } else if (isClosed()) {
+            waiter.completeExceptionally(new IllegalStateException("Swarm is closed"));
+        }
+        return waiter;
+    }
+
+    // Blocking channel over one file of the torrent, reads wait for the pieces they need
+    // and give the pieces ahead of the reader deadlines so they are downloaded first
+    public @NotNull TorrentFileChannel openFile(@NotNull FileInfo file) {
+        Objects.requireNonNull(file, "Argument 'file'");
+        assertNotClosed();
+        return new TorrentFileChannel(this, file);
+    }
+
+    @Override
+    public void onPieceFailed(int pieceIndex) {
+        piecePicker.release(pieceIndex);
+    }
+
+    public long getBytesLeft() {
+        var info = getInfo();
+        var bitset = bitfield.getBitSet();
+        var left = 0L;
+        for (int i = bitset.nextClearBit(0), count = info.getPieceCount(); i < count; i = bitset.nextClearBit(i + 1)) {
+            left += info.getPieceLength(i);
+        }
+        return left;
+    }
+
     public boolean isClosed() {
         return isClosed.get();
     }
@@ -49,33 +244,202 @@ public final class Swarm implements AutoCloseable {
         }
     }
 
-    @SuppressWarnings({"unchecked", "rawtypes"})
-    public @NotNull List<@NotNull Peer> getPeers() {
-        return (List) Arrays.asList(peers.toArray());
+    // Live view of the connected peers, not a copy
+    public @NotNull Collection<@NotNull Peer> getPeers() {
+        return peersView;
+    }
+
+    public int getPeerCount() {
+        return peers.size();
     }
 
-    public synchronized void addPeer(@NotNull Peer peer) {
+    public void addPeer(@NotNull Peer peer) {
         Objects.requireNonNull(peer, "Argument 'peer'");
         assertNotClosed();
         peers.add(peer);
+        // Closed concurrently, close() may have already swept the set
+        if (isClosed() && peers.remove(peer)) {
+            peer.close();
+        }
     }
 
-    public synchronized void removePeer(@NotNull Peer peer) {
+    public void removePeer(@NotNull Peer peer) {
         Objects.requireNonNull(peer, "Argument 'peer'");
-        if (!isClosed()) {
-            peers.remove(peer);
+        peers.remove(peer);
+        choker.remove(peer);
+    }
+
+    // Leeching rewards the peers the client downloads from fastest, seeding the peers it uploads to fastest
+    void rechoke() {
+        if (isClosed()) {
+            return;
+        }
+        var interested = new ArrayList<Peer>();
+        for (var peer : peers) {
+            if (peer.isReady() && peer.isPeerInterested()) interested.add(peer);
+        }
+        var unchoked = bitfield.isComplete()
+            ? choker.rechoke(interested, Peer::getUploadRate)
+            : choker.rechoke(interested, Peer::getDownloadRate);
+        for (var peer : peers) {
+            if (!peer.isReady()) continue;
+            try {
+                peer.setChoking(!unchoked.contains(peer));
+            } catch (IllegalStateException ignored) {
+                // Closed concurrently
+            }
+        }
+    }
+
+    public @NotNull PiecePicker.Priority getFilePriority(@NotNull FileInfo file) {
+        synchronized (filePriorities) {
+            return filePriorities[getFileIndex(file)];
+        }
+    }
+
+    // Pieces take the highest priority of the files they overlap, so a piece shared by a skipped file
+    // and a wanted one is still downloaded in full, and the storage keeps the skipped file's bytes aside
+    public void setFilePriority(@NotNull FileInfo file, @NotNull PiecePicker.Priority priority) throws IOException {
+        Objects.requireNonNull(file, "Argument 'file'");
+        Objects.requireNonNull(priority, "Argument 'priority'");
+        assertNotClosed();
+        int fileIndex = getFileIndex(file);
+        var info = getInfo();
+        var files = info.getFiles();
+
+        synchronized (filePriorities) {
+            if (filePriorities[fileIndex] == priority) {
+                return;
+            }
+            filePriorities[fileIndex] = priority;
+            storage.setFileSkipped(fileIndex, priority == PiecePicker.Priority.SKIP);
+
+            long fileLength = files.get(fileIndex).getLength();
+            if (fileLength > 0) {
+                int firstPiece = info.getPieceIndex(fileOffsets[fileIndex]);
+                int lastPiece = info.getPieceIndex(fileOffsets[fileIndex] + fileLength - 1);
+                for (int piece = firstPiece; piece <= lastPiece; piece++) {
+                    piecePicker.setPriority(piece, getPiecePriority(piece, fileIndex));
+                }
+            }
+        }
+
+        for (var peer : getPeers()) {
+            peer.onWantedPiecesChanged();
+        }
+    }
+
+    private PiecePicker.Priority getPiecePriority(int pieceIndex, int fileIndex) {
+        var info = getInfo();
+        var files = info.getFiles();
+        long pieceStart = (long) pieceIndex * info.getPieceLength();
+        long pieceEnd = pieceStart + info.getPieceLength(pieceIndex);
+
+        var priority = PiecePicker.Priority.SKIP;
+        // File ranges are sorted, so only neighbours of a file overlapping the piece can overlap it too
+        for (int i = fileIndex; i >= 0 && fileOffsets[i] + files.get(i).getLength() > pieceStart; i--) {
+            if (files.get(i).getLength() > 0 && filePriorities[i].compareTo(priority) > 0) priority = filePriorities[i];
+        }
+        for (int i = fileIndex + 1; i < files.size() && fileOffsets[i] < pieceEnd; i++) {
+            if (files.get(i).getLength() > 0 && filePriorities[i].compareTo(priority) > 0) priority = filePriorities[i];
+        }
+        return priority;
+    }
+
+    private int getFileIndex(FileInfo file) {
+        int index = getInfo().getFiles().indexOf(file);
+        if (index < 0) {
+            throw new IllegalArgumentException("File not found in info");
+        }
+        return index;
+    }
+
+    public void dropPiece(int index) {
+        Objects.checkIndex(index, getInfo().getPieceCount());
+        if (!bitfield.getAndSet(index, false)) {
+            return;
+        }
+        readCache.invalidate(index);
+        for (var peer : getPeers()) {
+            peer.onClientPieceDropped(index);
         }
     }
 
+    @Override
+    public void onRangeDiscarded(long offset, long length) {
+        if (length <= 0 || isClosed()) {
+            return;
+        }
+        var info = getInfo();
+        int lastPiece = info.getPieceIndex(offset + length - 1);
+        for (int piece = info.getPieceIndex(offset); piece <= lastPiece; piece++) {
+            dropPiece(piece);
+        }
+    }
+
+    private boolean isPeerConnected(InetSocketAddress address) {
+        for (var peer : peers) {
+            if (address.equals(peer.getPeerListenAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean addPeerCandidate(@NotNull InetSocketAddress address) {
+        Objects.requireNonNull(address, "Argument 'address'");
+        if (isClosed() || address.getPort() == 0 || isPeerConnected(address)) {
+            return false;
+        }
+        return peerCandidates.add(address);
+    }
+
+    public synchronized int addPeerCandidates(@NotNull Collection<@NotNull InetSocketAddress> addresses) {
+        Objects.requireNonNull(addresses, "Argument 'addresses'");
+        int count = 0;
+        for (var address : addresses) {
+            if (addPeerCandidate(address)) count++;
+        }
+        return count;
+    }
+
+    public synchronized @Nullable InetSocketAddress pollPeerCandidate() {
+        var iterator = peerCandidates.iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        var address = iterator.next();
+        iterator.remove();
+        return address;
+    }
+
+    public synchronized int getPeerCandidateCount() {
+        return peerCandidates.size();
+    }
+
     @Override
     public synchronized void close() {
         if (isClosed.getAndSet(true)) {
             return;
         }
-        for (var peer : getPeers()) {
+        rechokeFuture.cancel(false);
+        for (var peer : peers) {
+            peers.remove(peer);
             peer.close();
         }
-        peers.clear();
+        peerCandidates.clear();
+        pieceCache.close();
+        readCache.close();
+        for (var waiter : pieceWaiters.values()) {
+            waiter.completeExceptionally(new IllegalStateException("Swarm is closed"));
+        }
+        pieceWaiters.clear();
+        storage.setListener(null);
+        try {
+            storage.close();
+        } catch (IOException cause) {
+            LOGGER.warn("Failed to close storage for swarm {}", getInfoHash(), cause);
+        }
         client.removeSwarm(this);
     }
 
@@ -0,0 +1,193 @@
+package dev.foxgirl.torrent.client;
+
+import dev.foxgirl.torrent.metainfo.FileInfo;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Read-only channel over one file of a torrent for streaming while it downloads. Each read gives
+// the pieces just ahead of the position staggered deadlines, then blocks until the current piece
+// has been verified. Deadlines are moved along as the reader advances and cleared on close.
+public final class TorrentFileChannel implements SeekableByteChannel {
+
+    private static final int READ_AHEAD_PIECES = 8;
+    private static final long DEADLINE_STEP_MS = 1000;
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final @NotNull Swarm swarm;
+    private final @NotNull FileInfo file;
+    private final long fileOffset;
+    private final long fileLength;
+
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+    private long position;
+
+    // Pieces this channel has given a deadline
+    private final BitSet deadlinePieces = new BitSet();
+
+    TorrentFileChannel(@NotNull Swarm swarm, @NotNull FileInfo file) {
+        Objects.requireNonNull(swarm, "Argument 'swarm'");
+        Objects.requireNonNull(file, "Argument 'file'");
+        this.swarm = swarm;
+        this.file = file;
+        this.fileOffset = swarm.getInfo().getFileOffset(file);
+        this.fileLength = file.getLength();
+    }
+
+    public @NotNull FileInfo getFile() {
+        return file;
+    }
+
+    public @NotNull InputStream newInputStream() {
+        return Channels.newInputStream(this);
+    }
+
+    @Override
+    public synchronized int read(@NotNull ByteBuffer buffer) throws IOException {
+        Objects.requireNonNull(buffer, "Argument 'buffer'");
+        assertOpen();
+        if (position >= fileLength) {
+            return -1;
+        }
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+
+        var info = swarm.getInfo();
+        long offset = fileOffset + position;
+        int pieceIndex = info.getPieceIndex(offset);
+        updateDeadlines(pieceIndex);
+        awaitPiece(pieceIndex);
+
+        long pieceEnd = (long) pieceIndex * info.getPieceLength() + info.getPieceLength(pieceIndex);
+        int count = (int) Math.min(buffer.remaining(), Math.min(pieceEnd - offset, fileLength - position));
+        var target = buffer.slice(buffer.position(), count);
+        swarm.getStorage().read(offset, target);
+        buffer.position(buffer.position() + count);
+        position += count;
+        return count;
+    }
+
+    private void updateDeadlines(int pieceIndex) {
+        var info = swarm.getInfo();
+        var picker = swarm.getPiecePicker();
+        int lastIndex = info.getPieceIndex(fileOffset + fileLength - 1);
+        int endIndex = Math.min(lastIndex + 1, pieceIndex + READ_AHEAD_PIECES);
+
+        synchronized (deadlinePieces) {
+            if (isClosed()) {
+                return;
+            }
+            // Drop deadlines the reader has moved away from, like after a seek
+            for (int i = deadlinePieces.nextSetBit(0); i >= 0; i = deadlinePieces.nextSetBit(i + 1)) {
+                if (i < pieceIndex || i >= endIndex) {
+                    picker.clearDeadline(i);
+                    deadlinePieces.clear(i);
+                }
+            }
+            var bitfield = swarm.getBitField();
+            for (int i = pieceIndex; i < endIndex; i++) {
+                if (!bitfield.get(i) && !deadlinePieces.get(i)) {
+                    picker.setDeadline(i, (i - pieceIndex) * DEADLINE_STEP_MS);
+                    deadlinePieces.set(i);
+                }
+            }
+        }
+    }
+
+    private void awaitPiece(int pieceIndex) throws IOException {
+        var future = swarm.awaitPiece(pieceIndex);
+        while (true) {
+            try {
+                future.get(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException ignored) {
+                if (isClosed()) {
+                    throw new AsynchronousCloseException();
+                }
+            } catch (InterruptedException cause) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new ClosedByInterruptException();
+            } catch (ExecutionException cause) {
+                throw new IOException("Failed waiting for piece " + pieceIndex, cause.getCause());
+            }
+        }
+    }
+
+    @Override
+    public int write(@NotNull ByteBuffer buffer) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        assertOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized @NotNull SeekableByteChannel position(long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Position is negative");
+        }
+        assertOpen();
+        this.position = position;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        assertOpen();
+        return fileLength;
+    }
+
+    @Override
+    public @NotNull SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    private boolean isClosed() {
+        return isClosed.get();
+    }
+
+    private void assertOpen() throws ClosedChannelException {
+        if (isClosed()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !isClosed();
+    }
+
+    @Override
+    public void close() {
+        if (isClosed.getAndSet(true)) {
+            return;
+        }
+        // May run while a read is blocked, the read notices the close within a poll interval
+        synchronized (deadlinePieces) {
+            var picker = swarm.getPiecePicker();
+            for (int i = deadlinePieces.nextSetBit(0); i >= 0; i = deadlinePieces.nextSetBit(i + 1)) {
+                picker.clearDeadline(i);
+            }
+        }
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "TorrentFileChannel{file=" + file.getPathString() + ", position=" + position + ", isClosed=" + isClosed() + "}";
+    }
+
+}
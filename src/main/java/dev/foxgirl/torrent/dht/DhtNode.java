@@ -0,0 +1,689 @@
+package dev.foxgirl.torrent.dht;
+
+import dev.foxgirl.torrent.bencode.*;
+import dev.foxgirl.torrent.client.ClientExecutors;
+import dev.foxgirl.torrent.client.Swarm;
+import dev.foxgirl.torrent.dht.RoutingTable.Contact;
+import dev.foxgirl.torrent.util.DefaultExecutors;
+import dev.foxgirl.torrent.util.Hash;
+import dev.foxgirl.torrent.util.Throwables;
+import dev.foxgirl.torrent.util.Timeout;
+import dev.foxgirl.torrent.util.TimerWheel;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public final class DhtNode implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DhtNode.class);
+
+    private static final int K = RoutingTable.K;
+    private static final int ALPHA = 3;
+
+    private static final int MAX_LOOKUP_NODES = K * 8;
+    private static final int MAX_STORED_PEERS = 1000;
+    private static final int MAX_RESPONSE_PEERS = 50;
+
+    private static final int TOKEN_LENGTH = 8;
+
+    private static final long QUERY_TIMEOUT_MS = 5 * 1000;
+    private static final long MAINTENANCE_INTERVAL_MS = 5 * 60 * 1000;
+    private static final long PEER_LIFETIME_MS = 30 * 60 * 1000;
+
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+    private final @NotNull DatagramChannel channel;
+    private final byte @NotNull [] id;
+    private final @NotNull RoutingTable table;
+
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+    private final AtomicInteger transactionCounter = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+
+    private final Map<Integer, PendingQuery> queries = new ConcurrentHashMap<>(64);
+    private final Map<Hash, LinkedHashMap<InetSocketAddress, Long>> peerStore = new HashMap<>(64);
+
+    private final Object tokenLock = new Object();
+    private byte[] tokenSecret = generateSecret();
+    private byte[] previousTokenSecret = tokenSecret;
+
+    private final @NotNull TimerWheel timerWheel;
+    private final ScheduledFuture<?> maintenanceFuture;
+
+    public DhtNode(@NotNull InetSocketAddress bindAddress) throws IOException {
+        this(generateID(), bindAddress);
+    }
+
+    public DhtNode(byte @NotNull [] id, @NotNull InetSocketAddress bindAddress) throws IOException {
+        this(id, bindAddress, DefaultExecutors.getIOExecutor());
+    }
+
+    public DhtNode(byte @NotNull [] id, @NotNull InetSocketAddress bindAddress, @NotNull Executor receiveExecutor) throws IOException {
+        this(id, bindAddress, receiveExecutor, DefaultExecutors.getTimerWheel(), task ->
+            DefaultExecutors.getScheduledExecutor().scheduleWithFixedDelay(
+                task, MAINTENANCE_INTERVAL_MS, MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS
+            )
+        );
+    }
+
+    // Receives on the blocking executor, timeouts and maintenance run on the protocol executor
+    public DhtNode(byte @NotNull [] id, @NotNull InetSocketAddress bindAddress, @NotNull ClientExecutors executors) throws IOException {
+        this(id, bindAddress, executors.getBlockingExecutor(), executors.getTimerWheel(), task ->
+            executors.scheduleWithFixedDelay(task, MAINTENANCE_INTERVAL_MS, MAINTENANCE_INTERVAL_MS)
+        );
+    }
+
+    private DhtNode(
+            byte @NotNull [] id,
+            @NotNull InetSocketAddress bindAddress,
+            @NotNull Executor receiveExecutor,
+            @NotNull TimerWheel timerWheel,
+            @NotNull Function<Runnable, ScheduledFuture<?>> maintenanceScheduler
+    ) throws IOException {
+        Objects.requireNonNull(id, "Argument 'id'");
+        Objects.requireNonNull(bindAddress, "Argument 'bindAddress'");
+        Objects.requireNonNull(receiveExecutor, "Argument 'receiveExecutor'");
+        Objects.requireNonNull(timerWheel, "Argument 'timerWheel'");
+        this.timerWheel = timerWheel;
+        this.id = id.clone();
+        this.table = new RoutingTable(id);
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            channel.bind(bindAddress);
+        } catch (IOException cause) {
+            channel.close();
+            throw cause;
+        }
+        receiveExecutor.execute(this::receiveLoop);
+        maintenanceFuture = maintenanceScheduler.apply(this::maintain);
+    }
+
+    public static byte @NotNull [] generateID() {
+        var id = new byte[RoutingTable.ID_LENGTH];
+        ThreadLocalRandom.current().nextBytes(id);
+        return id;
+    }
+
+    private static byte[] generateSecret() {
+        var secret = new byte[16];
+        ThreadLocalRandom.current().nextBytes(secret);
+        return secret;
+    }
+
+    public byte @NotNull [] getID() {
+        return id.clone();
+    }
+
+    public @NotNull RoutingTable getRoutingTable() {
+        return table;
+    }
+
+    public @NotNull InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) channel.getLocalAddress();
+        } catch (IOException cause) {
+            throw new IllegalStateException("DHT node socket closed", cause);
+        }
+    }
+
+    public boolean isClosed() {
+        return isClosed.get();
+    }
+
+    private void assertNotClosed() {
+        if (isClosed()) {
+            throw new IllegalStateException("DHT node is closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (isClosed.getAndSet(true)) {
+            return;
+        }
+        maintenanceFuture.cancel(false);
+        try {
+            channel.close();
+        } catch (IOException cause) {
+            LOGGER.debug("DHT node socket failed to close: {}", Throwables.getMessage(cause));
+        }
+        var cause = new IllegalStateException("DHT node closed");
+        for (var query : queries.values()) {
+            query.completeExceptionally(cause);
+        }
+        synchronized (peerStore) {
+            peerStore.clear();
+        }
+    }
+
+    private void maintain() {
+        if (isClosed()) {
+            return;
+        }
+        synchronized (tokenLock) {
+            previousTokenSecret = tokenSecret;
+            tokenSecret = generateSecret();
+        }
+        long now = System.nanoTime();
+        synchronized (peerStore) {
+            var iterator = peerStore.values().iterator();
+            while (iterator.hasNext()) {
+                var peers = iterator.next();
+                peers.values().removeIf(expiryTime -> now - expiryTime >= 0);
+                if (peers.isEmpty()) iterator.remove();
+            }
+        }
+        if (table.size() < K) {
+            new Lookup(id, false).start();
+        }
+    }
+
+    private byte[] createToken(InetSocketAddress address, byte[] secret) {
+        var addressBytes = address.getAddress().getAddress();
+        var bytes = Arrays.copyOf(secret, secret.length + addressBytes.length);
+        System.arraycopy(addressBytes, 0, bytes, secret.length, addressBytes.length);
+        return Arrays.copyOf(Hash.digest(Hash.Algorithm.SHA1, bytes).getBytes(), TOKEN_LENGTH);
+    }
+
+    private byte[] createToken(InetSocketAddress address) {
+        synchronized (tokenLock) {
+            return createToken(address, tokenSecret);
+        }
+    }
+
+    private boolean checkToken(InetSocketAddress address, byte[] token) {
+        synchronized (tokenLock) {
+            return Arrays.equals(token, createToken(address, tokenSecret))
+                || Arrays.equals(token, createToken(address, previousTokenSecret));
+        }
+    }
+
+    private void send(InetSocketAddress address, BencodeMap message) throws IOException {
+        channel.send(ByteBuffer.wrap(BencodeEncoder.encodeToBytes(message)), address);
+    }
+
+    private void receiveLoop() {
+        var buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+        while (!isClosed()) {
+            try {
+                buffer.clear();
+                var source = (InetSocketAddress) channel.receive(buffer);
+                if (source == null) {
+                    continue;
+                }
+                var bytes = new byte[buffer.flip().remaining()]; buffer.get(bytes);
+                receive(source, bytes);
+            } catch (ClosedChannelException cause) {
+                break;
+            } catch (Throwable cause) {
+                LOGGER.warn("DHT node failed to receive packet: {}", Throwables.getMessage(cause));
+            }
+        }
+    }
+
+    private static BencodeElement getElement(BencodeMap map, String key) throws KrpcException {
+        var element = map.get(key);
+        if (element == null) {
+            throw new KrpcException(KrpcException.PROTOCOL_ERROR, "Message '" + key + "' is missing");
+        }
+        return element;
+    }
+
+    private static BencodeMap getMap(BencodeMap map, String key) throws KrpcException {
+        var element = getElement(map, key);
+        if (!element.getType().isMap()) {
+            throw new KrpcException(KrpcException.PROTOCOL_ERROR, "Message '" + key + "' is not a map");
+        }
+        return element.asMap();
+    }
+
+    private static BencodeString getString(BencodeMap map, String key) throws KrpcException {
+        var element = getElement(map, key);
+        if (!element.getType().isString()) {
+            throw new KrpcException(KrpcException.PROTOCOL_ERROR, "Message '" + key + "' is not a string");
+        }
+        return element.asString();
+    }
+
+    private static byte[] getBytes(BencodeMap map, String key, int length) throws KrpcException {
+        var string = getString(map, key);
+        if (string.length() != length) {
+            throw new KrpcException(KrpcException.PROTOCOL_ERROR, "Message '" + key + "' length is not " + length);
+        }
+        return string.getBytes();
+    }
+
+    private static long getInteger(BencodeMap map, String key) throws KrpcException {
+        var element = getElement(map, key);
+        if (!element.getType().isInteger()) {
+            throw new KrpcException(KrpcException.PROTOCOL_ERROR, "Message '" + key + "' is not an integer");
+        }
+        return element.asInteger().getValue();
+    }
+
+    private void receive(InetSocketAddress source, byte[] bytes) {
+        BencodeMap message;
+        BencodeString transactionID;
+        String type;
+        try {
+            var element = BencodeDecoder.decodeFromBytes(bytes);
+            if (!element.getType().isMap()) {
+                throw new KrpcException(KrpcException.PROTOCOL_ERROR, "Message is not a map");
+            }
+            message = element.asMap();
+            transactionID = getString(message, "t");
+            type = getString(message, "y").getValue();
+        } catch (IOException cause) {
+            LOGGER.debug("DHT node {} sent invalid message: {}", source, Throwables.getMessage(cause));
+            return;
+        }
+        switch (type) {
+            case "q" -> receiveQuery(source, transactionID, message);
+            case "r", "e" -> receiveResponse(source, transactionID, message, type.equals("e"));
+            default -> LOGGER.debug("DHT node {} sent message with unknown type '{}'", source, type);
+        }
+    }
+
+    private void receiveResponse(InetSocketAddress source, BencodeString transactionID, BencodeMap message, boolean isError) {
+        if (transactionID.length() != 2) {
+            return;
+        }
+        var query = queries.get(((transactionID.byteAt(0) & 0xFF) << 8) | (transactionID.byteAt(1) & 0xFF));
+        if (query == null || !query.address.equals(source)) {
+            LOGGER.debug("DHT node {} sent response with unknown transaction ID", source);
+            return;
+        }
+        try {
+            if (isError) {
+                var errorValue = getElement(message, "e");
+                if (!errorValue.getType().isList() || errorValue.asList().size() < 2) {
+                    throw new KrpcException(KrpcException.PROTOCOL_ERROR, "Message 'e' is not a list of size 2");
+                }
+                var error = errorValue.asList();
+                var code = error.get(0).getType().isInteger() ? (int) error.get(0).asInteger().getValue() : KrpcException.GENERIC_ERROR;
+                var errorMessage = error.get(1).getType().isString() ? error.get(1).asString().getValue() : "";
+                throw new KrpcException(code, "DHT node " + source + " responded with error " + code + ": " + errorMessage);
+            }
+            var response = getMap(message, "r");
+            var nodeID = getBytes(response, "id", RoutingTable.ID_LENGTH);
+            table.put(nodeID, source);
+            query.complete(response);
+        } catch (Throwable cause) {
+            query.completeExceptionally(cause);
+        }
+    }
+
+    private void receiveQuery(InetSocketAddress source, BencodeString transactionID, BencodeMap message) {
+        var reply = new BencodeMap();
+        reply.put("t", transactionID);
+        try {
+            var method = getString(message, "q").getValue();
+            var arguments = getMap(message, "a");
+            var nodeID = getBytes(arguments, "id", RoutingTable.ID_LENGTH);
+
+            var response = switch (method) {
+                case "ping" -> new BencodeMap();
+                case "find_node" -> handleFindNode(arguments);
+                case "get_peers" -> handleGetPeers(source, arguments);
+                case "announce_peer" -> handleAnnouncePeer(source, arguments);
+                default -> throw new KrpcException(KrpcException.METHOD_UNKNOWN, "Method unknown");
+            };
+            response.put("id", BencodeString.of(id));
+
+            table.put(nodeID, source);
+
+            reply.putString("y", "r");
+            reply.put("r", response);
+        } catch (KrpcException cause) {
+            LOGGER.debug("DHT node {} sent invalid query: {}", source, Throwables.getMessage(cause));
+            var error = new BencodeList(2);
+            error.addInteger(cause.getCode());
+            error.addString(Throwables.getMessage(cause));
+            reply.putString("y", "e");
+            reply.put("e", error);
+        }
+        try {
+            send(source, reply);
+        } catch (IOException cause) {
+            LOGGER.debug("DHT node failed to reply to {}: {}", source, Throwables.getMessage(cause));
+        }
+    }
+
+    private BencodeMap handleFindNode(BencodeMap arguments) throws KrpcException {
+        var target = getBytes(arguments, "target", RoutingTable.ID_LENGTH);
+        var response = new BencodeMap();
+        response.put("nodes", BencodeString.of(table.closestCompact(target, K)));
+        return response;
+    }
+
+    private BencodeMap handleGetPeers(InetSocketAddress source, BencodeMap arguments) throws KrpcException {
+        var infoHash = Hash.of(getBytes(arguments, "info_hash", 20));
+        var response = new BencodeMap();
+        response.put("token", BencodeString.of(createToken(source)));
+        var values = new BencodeList();
+        long now = System.nanoTime();
+        synchronized (peerStore) {
+            var peers = peerStore.get(infoHash);
+            if (peers != null) {
+                for (var entry : peers.entrySet()) {
+                    if (values.size() >= MAX_RESPONSE_PEERS) break;
+                    if (now - entry.getValue() >= 0) continue;
+                    values.add(BencodeString.of(RoutingTable.encodeCompactPeer(entry.getKey())));
+                }
+            }
+        }
+        if (values.isEmpty()) {
+            response.put("nodes", BencodeString.of(table.closestCompact(infoHash.getBytes(), K)));
+        } else {
+            response.put("values", values);
+        }
+        return response;
+    }
+
+    private BencodeMap handleAnnouncePeer(InetSocketAddress source, BencodeMap arguments) throws KrpcException {
+        var infoHash = Hash.of(getBytes(arguments, "info_hash", 20));
+        var token = getString(arguments, "token").getBytes();
+        if (!checkToken(source, token)) {
+            throw new KrpcException(KrpcException.PROTOCOL_ERROR, "Bad token");
+        }
+        int port;
+        var impliedPortValue = arguments.get("implied_port");
+        if (impliedPortValue != null && impliedPortValue.getType().isInteger() && impliedPortValue.asInteger().getValue() != 0) {
+            port = source.getPort();
+        } else {
+            port = (int) getInteger(arguments, "port");
+        }
+        if (port <= 0 || port > 65535) {
+            throw new KrpcException(KrpcException.PROTOCOL_ERROR, "Port is out of range");
+        }
+        var address = new InetSocketAddress(source.getAddress(), port);
+        var expiryTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PEER_LIFETIME_MS);
+        synchronized (peerStore) {
+            var peers = peerStore.computeIfAbsent(infoHash, __ -> new LinkedHashMap<>());
+            peers.remove(address);
+            peers.put(address, expiryTime);
+            if (peers.size() > MAX_STORED_PEERS) {
+                var iterator = peers.keySet().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        return new BencodeMap();
+    }
+
+    private final class PendingQuery extends CompletableFuture<BencodeMap> {
+        private final int transactionID;
+        private final InetSocketAddress address;
+        private final byte @Nullable [] nodeID;
+
+        private final Timeout timeout = new Timeout(timerWheel, () -> {
+            completeExceptionally(new TimeoutException("DHT node query timed out"));
+        });
+
+        private PendingQuery(int transactionID, InetSocketAddress address, byte @Nullable [] nodeID) {
+            this.transactionID = transactionID;
+            this.address = address;
+            this.nodeID = nodeID;
+        }
+    }
+
+    private @NotNull CompletableFuture<@NotNull BencodeMap> query(
+            @NotNull InetSocketAddress address,
+            byte @Nullable [] nodeID,
+            @NotNull String method,
+            @NotNull BencodeMap arguments
+    ) {
+        if (isClosed()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("DHT node closed"));
+        }
+
+        PendingQuery query;
+        do {
+            int transactionID = transactionCounter.getAndIncrement() & 0xFFFF;
+            query = new PendingQuery(transactionID, address, nodeID);
+        } while (queries.putIfAbsent(query.transactionID, query) != null);
+
+        var finalQuery = query;
+        query.whenComplete((response, cause) -> {
+            finalQuery.timeout.cancel();
+            queries.remove(finalQuery.transactionID, finalQuery);
+            if (cause instanceof TimeoutException && nodeID != null) {
+                table.fail(nodeID);
+            }
+        });
+
+        arguments.put("id", BencodeString.of(id));
+
+        var message = new BencodeMap();
+        message.put("t", BencodeString.of(new byte[] { (byte) (query.transactionID >> 8), (byte) query.transactionID }));
+        message.putString("y", "q");
+        message.putString("q", method);
+        message.put("a", arguments);
+
+        try {
+            send(address, message);
+            query.timeout.start(QUERY_TIMEOUT_MS);
+        } catch (Throwable cause) {
+            query.completeExceptionally(cause);
+        }
+
+        return query;
+    }
+
+    public @NotNull CompletableFuture<Void> ping(@NotNull InetSocketAddress address) {
+        Objects.requireNonNull(address, "Argument 'address'");
+        assertNotClosed();
+        return query(address, null, "ping", new BencodeMap()).thenApply(__ -> null);
+    }
+
+    private enum LookupState {
+        QUEUED, INFLIGHT, RESPONDED, FAILED
+    }
+
+    private static final class LookupNode {
+        private final Contact contact;
+        private LookupState state = LookupState.QUEUED;
+        private byte[] token;
+
+        private LookupNode(Contact contact) {
+            this.contact = contact;
+        }
+    }
+
+    private final class Lookup extends CompletableFuture<Lookup> {
+        private final byte[] target;
+        private final boolean isGetPeers;
+
+        private final TreeMap<byte[], LookupNode> nodes = new TreeMap<>(this::compareDistance);
+        private final Set<InetSocketAddress> peers = new LinkedHashSet<>();
+
+        private int inflightCount;
+
+        private Lookup(byte[] target, boolean isGetPeers) {
+            this.target = target;
+            this.isGetPeers = isGetPeers;
+        }
+
+        private int compareDistance(byte[] a, byte[] b) {
+            for (int i = 0; i < RoutingTable.ID_LENGTH; i++) {
+                int distanceA = (a[i] ^ target[i]) & 0xFF;
+                int distanceB = (b[i] ^ target[i]) & 0xFF;
+                if (distanceA != distanceB) return distanceA < distanceB ? -1 : 1;
+            }
+            return 0;
+        }
+
+        private void add(Contact contact) {
+            if (Arrays.equals(contact.id(), id) || !(contact.address().getAddress() instanceof Inet4Address)) {
+                return;
+            }
+            nodes.putIfAbsent(contact.id(), new LookupNode(contact));
+            if (nodes.size() > MAX_LOOKUP_NODES) {
+                nodes.pollLastEntry();
+            }
+        }
+
+        private synchronized Lookup start() {
+            for (var contact : table.closest(target, K)) {
+                add(contact);
+            }
+            step();
+            return this;
+        }
+
+        private synchronized void step() {
+            if (isDone()) {
+                return;
+            }
+            // Sent after the loop, a query that fails immediately re-enters receive and changes the nodes
+            var sending = new ArrayList<LookupNode>(ALPHA);
+            int rank = 0;
+            for (var node : nodes.values()) {
+                if (inflightCount >= ALPHA || rank >= K) break;
+                if (node.state == LookupState.FAILED) continue;
+                rank++;
+                if (node.state == LookupState.QUEUED) {
+                    node.state = LookupState.INFLIGHT;
+                    inflightCount++;
+                    sending.add(node);
+                }
+            }
+            if (inflightCount == 0) {
+                complete(this);
+            }
+            for (var node : sending) {
+                send(node);
+            }
+        }
+
+        private void send(LookupNode node) {
+            var arguments = new BencodeMap();
+            if (isGetPeers) {
+                arguments.put("info_hash", BencodeString.of(target));
+            } else {
+                arguments.put("target", BencodeString.of(target));
+            }
+            query(node.contact.address(), node.contact.id(), isGetPeers ? "get_peers" : "find_node", arguments)
+                    .whenComplete((response, cause) -> receive(node, response, cause));
+        }
+
+        private synchronized void receive(LookupNode node, BencodeMap response, Throwable cause) {
+            inflightCount--;
+            if (cause != null) {
+                node.state = LookupState.FAILED;
+            } else {
+                node.state = LookupState.RESPONDED;
+                var nodesValue = response.get("nodes");
+                if (nodesValue != null && nodesValue.getType().isString()) {
+                    for (var contact : RoutingTable.decodeCompact(nodesValue.asString().getBytes())) {
+                        add(contact);
+                    }
+                }
+                if (isGetPeers) {
+                    var tokenValue = response.get("token");
+                    if (tokenValue != null && tokenValue.getType().isString()) {
+                        node.token = tokenValue.asString().getBytes();
+                    }
+                    var valuesValue = response.get("values");
+                    if (valuesValue != null && valuesValue.getType().isList()) {
+                        for (var value : valuesValue.asList()) {
+                            if (!value.getType().isString()) continue;
+                            var peer = RoutingTable.decodeCompactPeer(value.asString().getBytes());
+                            if (peer != null && peer.getPort() != 0) peers.add(peer);
+                        }
+                    }
+                }
+            }
+            step();
+        }
+
+        private synchronized List<InetSocketAddress> getPeers() {
+            return List.copyOf(peers);
+        }
+
+        private synchronized List<LookupNode> getClosestRespondedNodes() {
+            var closest = new ArrayList<LookupNode>(K);
+            for (var node : nodes.values()) {
+                if (closest.size() >= K) break;
+                if (node.state == LookupState.RESPONDED && node.token != null) {
+                    closest.add(node);
+                }
+            }
+            return closest;
+        }
+    }
+
+    public @NotNull CompletableFuture<Integer> bootstrap(@NotNull Collection<@NotNull InetSocketAddress> addresses) {
+        Objects.requireNonNull(addresses, "Argument 'addresses'");
+        assertNotClosed();
+        var futures = addresses.stream()
+                .map(address -> ping(address).exceptionally(cause -> null))
+                .toArray(CompletableFuture<?>[]::new);
+        return CompletableFuture.allOf(futures)
+                .thenCompose(__ -> new Lookup(id, false).start())
+                .thenApply(__ -> table.size());
+    }
+
+    public @NotNull CompletableFuture<@NotNull List<@NotNull InetSocketAddress>> getPeers(@NotNull Hash infoHash) {
+        Objects.requireNonNull(infoHash, "Argument 'infoHash'");
+        if (infoHash.length() != 20) {
+            throw new IllegalArgumentException("Infohash length is not 20 bytes");
+        }
+        assertNotClosed();
+        return new Lookup(infoHash.getBytes(), true).start().thenApply(Lookup::getPeers);
+    }
+
+    public @NotNull CompletableFuture<@NotNull List<@NotNull InetSocketAddress>> announce(@NotNull Hash infoHash, int port) {
+        Objects.requireNonNull(infoHash, "Argument 'infoHash'");
+        if (infoHash.length() != 20) {
+            throw new IllegalArgumentException("Infohash length is not 20 bytes");
+        }
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("Port is out of range");
+        }
+        assertNotClosed();
+        return new Lookup(infoHash.getBytes(), true).start().thenApply(lookup -> {
+            for (var node : lookup.getClosestRespondedNodes()) {
+                var arguments = new BencodeMap();
+                arguments.put("info_hash", BencodeString.of(infoHash.getBytes()));
+                arguments.putInteger("port", port);
+                arguments.put("token", BencodeString.of(node.token));
+                arguments.putInteger("implied_port", 0);
+                query(node.contact.address(), node.contact.id(), "announce_peer", arguments);
+            }
+            return lookup.getPeers();
+        });
+    }
+
+    public @NotNull CompletableFuture<@NotNull List<@NotNull InetSocketAddress>> announce(@NotNull Swarm swarm) {
+        Objects.requireNonNull(swarm, "Argument 'swarm'");
+        var port = swarm.getClient().getIdentity().getSocketAddress().getPort();
+        return announce(swarm.getInfoHash(), port).whenComplete((peers, cause) -> {
+            if (cause != null) {
+                LOGGER.debug("DHT announce for infohash {} failed: {}", swarm.getInfoHash(), Throwables.getMessage(cause));
+            } else if (!swarm.isClosed()) {
+                int count = swarm.addPeerCandidates(peers);
+                LOGGER.debug("DHT announce for infohash {} returned {} peers, {} new", swarm.getInfoHash(), peers.size(), count);
+            }
+        });
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "DhtNode{id=" + Hash.of(id) + ", table=" + table + ", queries=" + queries.size() + ", isClosed=" + isClosed() + "}";
+    }
+
+}
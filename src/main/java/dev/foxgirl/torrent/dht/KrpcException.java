@@ -0,0 +1,32 @@
+package dev.foxgirl.torrent.dht;
+
+import java.io.IOException;
+import java.io.Serial;
+
+public class KrpcException extends IOException {
+
+    @Serial
+    private static final long serialVersionUID = -2360127795315148603L;
+
+    public static final int GENERIC_ERROR = 201;
+    public static final int SERVER_ERROR = 202;
+    public static final int PROTOCOL_ERROR = 203;
+    public static final int METHOD_UNKNOWN = 204;
+
+    private final int code;
+
+    public KrpcException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    public KrpcException(int code, String message, Throwable cause) {
+        super(message, cause);
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+}
@@ -0,0 +1,273 @@
+package dev.foxgirl.torrent.dht;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+public final class RoutingTable {
+
+    public record Contact(byte @NotNull [] id, @NotNull InetSocketAddress address) {}
+
+    public static final int K = 8;
+
+    public static final int ID_LENGTH = 20;
+    public static final int COMPACT_NODE_LENGTH = ID_LENGTH + 6;
+
+    private static final int BUCKET_COUNT = ID_LENGTH * 8;
+    private static final int MAX_FAILURE_COUNT = 3;
+    private static final long STALE_NS = TimeUnit.MINUTES.toNanos(15);
+
+    private final byte[] localID;
+
+    // Contact slots are stored in flat arrays, bucket b owns slots [b * K, b * K + bucketSizes[b])
+    private final byte[] ids = new byte[BUCKET_COUNT * K * ID_LENGTH];
+    private final int[] addresses = new int[BUCKET_COUNT * K];
+    private final int[] ports = new int[BUCKET_COUNT * K];
+    private final long[] lastSeenTimes = new long[BUCKET_COUNT * K];
+    private final byte[] failureCounts = new byte[BUCKET_COUNT * K];
+    private final int[] bucketSizes = new int[BUCKET_COUNT];
+
+    private int size;
+
+    public RoutingTable(byte @NotNull [] localID) {
+        Objects.requireNonNull(localID, "Argument 'localID'");
+        if (localID.length != ID_LENGTH) {
+            throw new IllegalArgumentException("Local ID length is not 20");
+        }
+        this.localID = localID.clone();
+    }
+
+    public byte @NotNull [] getLocalID() {
+        return localID.clone();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private static void checkID(byte[] id) {
+        Objects.requireNonNull(id, "Argument 'id'");
+        if (id.length != ID_LENGTH) {
+            throw new IllegalArgumentException("ID length is not 20");
+        }
+    }
+
+    // Bucket index is the length of the prefix shared with the local ID, or -1 for the local ID itself
+    private int bucketIndex(byte[] id) {
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int distance = (id[i] ^ localID[i]) & 0xFF;
+            if (distance != 0) {
+                return i * 8 + Integer.numberOfLeadingZeros(distance) - 24;
+            }
+        }
+        return -1;
+    }
+
+    private int findSlot(int bucket, byte[] id) {
+        for (int slot = bucket * K, end = slot + bucketSizes[bucket]; slot < end; slot++) {
+            int offset = slot * ID_LENGTH;
+            if (Arrays.equals(ids, offset, offset + ID_LENGTH, id, 0, ID_LENGTH)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void writeSlot(int slot, byte[] id, int address, int port, long now) {
+        System.arraycopy(id, 0, ids, slot * ID_LENGTH, ID_LENGTH);
+        addresses[slot] = address;
+        ports[slot] = port;
+        lastSeenTimes[slot] = now;
+        failureCounts[slot] = 0;
+    }
+
+    private void removeSlot(int bucket, int slot) {
+        int last = bucket * K + bucketSizes[bucket] - 1;
+        if (slot != last) {
+            System.arraycopy(ids, last * ID_LENGTH, ids, slot * ID_LENGTH, ID_LENGTH);
+            addresses[slot] = addresses[last];
+            ports[slot] = ports[last];
+            lastSeenTimes[slot] = lastSeenTimes[last];
+            failureCounts[slot] = failureCounts[last];
+        }
+        bucketSizes[bucket]--;
+        size--;
+    }
+
+    private static int encodeAddress(InetAddress address) {
+        return ByteBuffer.wrap(address.getAddress()).getInt();
+    }
+
+    private static InetAddress decodeAddress(int address) {
+        try {
+            return InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(address).array());
+        } catch (UnknownHostException cause) {
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public boolean put(byte @NotNull [] id, @NotNull InetSocketAddress address) {
+        checkID(id);
+        Objects.requireNonNull(address, "Argument 'address'");
+        if (!(address.getAddress() instanceof Inet4Address) || address.getPort() == 0) {
+            return false;
+        }
+        return put(id, encodeAddress(address.getAddress()), address.getPort());
+    }
+
+    private synchronized boolean put(byte[] id, int address, int port) {
+        int bucket = bucketIndex(id);
+        if (bucket < 0) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+
+        int slot = findSlot(bucket, id);
+        if (slot >= 0) {
+            writeSlot(slot, id, address, port, now);
+            return true;
+        }
+
+        if (bucketSizes[bucket] < K) {
+            writeSlot(bucket * K + bucketSizes[bucket]++, id, address, port, now);
+            size++;
+            return true;
+        }
+
+        // Bucket is full, replace the worst contact if it has failed or gone stale
+        int worstSlot = -1;
+        for (int i = bucket * K, end = i + K; i < end; i++) {
+            if (failureCounts[i] > 0 || now - lastSeenTimes[i] > STALE_NS) {
+                if (worstSlot < 0 || failureCounts[i] > failureCounts[worstSlot] || lastSeenTimes[i] < lastSeenTimes[worstSlot]) {
+                    worstSlot = i;
+                }
+            }
+        }
+        if (worstSlot >= 0) {
+            writeSlot(worstSlot, id, address, port, now);
+            return true;
+        }
+
+        return false;
+    }
+
+    public synchronized void fail(byte @NotNull [] id) {
+        checkID(id);
+        int bucket = bucketIndex(id);
+        if (bucket < 0) {
+            return;
+        }
+        int slot = findSlot(bucket, id);
+        if (slot >= 0 && ++failureCounts[slot] >= MAX_FAILURE_COUNT) {
+            removeSlot(bucket, slot);
+        }
+    }
+
+    public synchronized boolean contains(byte @NotNull [] id) {
+        checkID(id);
+        int bucket = bucketIndex(id);
+        return bucket >= 0 && findSlot(bucket, id) >= 0;
+    }
+
+    private int compareDistance(int slotA, int slotB, byte[] target) {
+        int offsetA = slotA * ID_LENGTH;
+        int offsetB = slotB * ID_LENGTH;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int a = (ids[offsetA + i] ^ target[i]) & 0xFF;
+            int b = (ids[offsetB + i] ^ target[i]) & 0xFF;
+            if (a != b) return a < b ? -1 : 1;
+        }
+        return 0;
+    }
+
+    // Returns up to count slots sorted by distance to the target, must be called while synchronized
+    private int[] closestSlots(byte[] target, int count) {
+        var slots = new int[Math.min(count, size)];
+        int found = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            for (int slot = bucket * K, end = slot + bucketSizes[bucket]; slot < end; slot++) {
+                if (failureCounts[slot] >= MAX_FAILURE_COUNT) continue;
+                int position = found < slots.length ? found++ : slots.length;
+                while (position > 0 && compareDistance(slot, slots[position - 1], target) < 0) {
+                    if (position < slots.length) slots[position] = slots[position - 1];
+                    position--;
+                }
+                if (position < slots.length) slots[position] = slot;
+            }
+        }
+        return found < slots.length ? Arrays.copyOf(slots, found) : slots;
+    }
+
+    public synchronized @NotNull List<@NotNull Contact> closest(byte @NotNull [] target, int count) {
+        checkID(target);
+        var slots = closestSlots(target, count);
+        var contacts = new ArrayList<Contact>(slots.length);
+        for (int slot : slots) {
+            var id = Arrays.copyOfRange(ids, slot * ID_LENGTH, (slot + 1) * ID_LENGTH);
+            contacts.add(new Contact(id, new InetSocketAddress(decodeAddress(addresses[slot]), ports[slot])));
+        }
+        return contacts;
+    }
+
+    public synchronized byte @NotNull [] closestCompact(byte @NotNull [] target, int count) {
+        checkID(target);
+        var slots = closestSlots(target, count);
+        var buffer = ByteBuffer.allocate(slots.length * COMPACT_NODE_LENGTH);
+        for (int slot : slots) {
+            buffer.put(ids, slot * ID_LENGTH, ID_LENGTH);
+            buffer.putInt(addresses[slot]);
+            buffer.putShort((short) ports[slot]);
+        }
+        return buffer.array();
+    }
+
+    public static @NotNull List<@NotNull Contact> decodeCompact(byte @NotNull [] bytes) {
+        Objects.requireNonNull(bytes, "Argument 'bytes'");
+        var buffer = ByteBuffer.wrap(bytes);
+        var contacts = new ArrayList<Contact>(bytes.length / COMPACT_NODE_LENGTH);
+        while (buffer.remaining() >= COMPACT_NODE_LENGTH) {
+            var id = new byte[ID_LENGTH]; buffer.get(id);
+            var address = decodeAddress(buffer.getInt());
+            var port = buffer.getShort() & 0xFFFF;
+            contacts.add(new Contact(id, new InetSocketAddress(address, port)));
+        }
+        return contacts;
+    }
+
+    public static @Nullable InetSocketAddress decodeCompactPeer(byte @NotNull [] bytes) {
+        Objects.requireNonNull(bytes, "Argument 'bytes'");
+        if (bytes.length != 6) {
+            return null;
+        }
+        var buffer = ByteBuffer.wrap(bytes);
+        return new InetSocketAddress(decodeAddress(buffer.getInt()), buffer.getShort() & 0xFFFF);
+    }
+
+    public static byte @NotNull [] encodeCompactPeer(@NotNull InetSocketAddress address) {
+        Objects.requireNonNull(address, "Argument 'address'");
+        if (!(address.getAddress() instanceof Inet4Address)) {
+            throw new IllegalArgumentException("Address is not IPv4");
+        }
+        return ByteBuffer.allocate(6)
+                .put(address.getAddress().getAddress())
+                .putShort((short) address.getPort())
+                .array();
+    }
+
+    @Override
+    public synchronized @NotNull String toString() {
+        return "RoutingTable{size=" + size + "}";
+    }
+
+}
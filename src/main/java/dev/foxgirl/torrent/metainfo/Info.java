@@ -383,7 +383,7 @@ public final class Info extends InfoContainer {
             throw new IndexOutOfBoundsException("Piece index is out of bounds");
         }
         return pieceIndex == pieces.size() - 1
-                ? totalLength % pieceLength
+                ? totalLength - (long) pieceIndex * pieceLength
                 : pieceLength;
     }
 
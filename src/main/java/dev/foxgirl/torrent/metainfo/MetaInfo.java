@@ -115,7 +115,7 @@ public final class MetaInfo extends InfoContainer {
                 if (port < 0 || port > 65535) {
                     throw new InvalidBencodeException("Metainfo nodes element port is out of range");
                 }
-                nodeList.add(new InetSocketAddress(address, (short) port));
+                nodeList.add(new InetSocketAddress(address, (int) port));
             }
         }
 
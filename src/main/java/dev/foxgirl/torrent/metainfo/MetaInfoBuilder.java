@@ -0,0 +1,355 @@
+package dev.foxgirl.torrent.metainfo;
+
+import dev.foxgirl.torrent.util.BatchHasher;
+import dev.foxgirl.torrent.util.DefaultExecutors;
+import dev.foxgirl.torrent.util.Hash;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Creates torrents from a file or a directory. Content is read sequentially on the calling thread
+// in large chunks, which are hashed in parallel on the executor while the next chunks are read.
+// The name defaults to the source's file name, so the result can be seeded straight away with
+// new FileStorage(source.getParent(), metaInfo.getInfo()) and every piece marked as present.
+public final class MetaInfoBuilder {
+
+    @FunctionalInterface
+    public interface ProgressListener {
+        // Called from the hashing threads, possibly concurrently, after each chunk is hashed
+        void onProgress(long hashedBytes, long totalBytes);
+    }
+
+    public static final long MIN_PIECE_LENGTH = 16 * 1024;
+    public static final long MAX_PIECE_LENGTH = 16 * 1024 * 1024;
+
+    // Automatic piece lengths aim for about this many pieces
+    private static final long TARGET_PIECE_COUNT = 1500;
+
+    private static final int CHUNK_LENGTH = 8 * 1024 * 1024;
+
+    // Direct memory for chunks being read or hashed, however many cores there are
+    private static final long READ_AHEAD_BUDGET = 64 * 1024 * 1024;
+
+    private final @NotNull Path source;
+
+    private @Nullable String name;
+    private long pieceLength;
+    private @Nullable Boolean isPrivate;
+    private @Nullable String announce;
+    private @Nullable List<@NotNull List<@NotNull String>> announceList;
+    private @Nullable List<@NotNull String> urlList;
+    private @Nullable String comment;
+    private @Nullable String createdBy;
+    private @Nullable Instant creationDate;
+
+    private @NotNull Executor executor = DefaultExecutors.getDefaultExecutor();
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private @Nullable ProgressListener progressListener;
+
+    public MetaInfoBuilder(@NotNull Path source) {
+        Objects.requireNonNull(source, "Argument 'source'");
+        this.source = source;
+    }
+
+    public @NotNull MetaInfoBuilder setName(@Nullable String name) {
+        this.name = name;
+        return this;
+    }
+
+    // Zero picks a length from the total size, see choosePieceLength
+    public @NotNull MetaInfoBuilder setPieceLength(long pieceLength) {
+        if (pieceLength != 0 && (pieceLength < MIN_PIECE_LENGTH || pieceLength > MAX_PIECE_LENGTH || Long.bitCount(pieceLength) != 1)) {
+            throw new IllegalArgumentException("Piece length is not a power of two between " + MIN_PIECE_LENGTH + " and " + MAX_PIECE_LENGTH + ": " + pieceLength);
+        }
+        this.pieceLength = pieceLength;
+        return this;
+    }
+
+    public @NotNull MetaInfoBuilder setPrivate(@Nullable Boolean isPrivate) {
+        this.isPrivate = isPrivate;
+        return this;
+    }
+
+    public @NotNull MetaInfoBuilder setAnnounce(@Nullable String announce) {
+        this.announce = announce;
+        return this;
+    }
+
+    public @NotNull MetaInfoBuilder setAnnounceList(@Nullable List<@NotNull List<@NotNull String>> announceList) {
+        this.announceList = announceList;
+        return this;
+    }
+
+    public @NotNull MetaInfoBuilder setUrlList(@Nullable List<@NotNull String> urlList) {
+        this.urlList = urlList;
+        return this;
+    }
+
+    public @NotNull MetaInfoBuilder setComment(@Nullable String comment) {
+        this.comment = comment;
+        return this;
+    }
+
+    public @NotNull MetaInfoBuilder setCreatedBy(@Nullable String createdBy) {
+        this.createdBy = createdBy;
+        return this;
+    }
+
+    public @NotNull MetaInfoBuilder setCreationDate(@Nullable Instant creationDate) {
+        this.creationDate = creationDate;
+        return this;
+    }
+
+    public @NotNull MetaInfoBuilder setExecutor(@NotNull Executor executor) {
+        Objects.requireNonNull(executor, "Argument 'executor'");
+        this.executor = executor;
+        return this;
+    }
+
+    // Number of chunks hashed at once, one more chunk is read ahead while they are. The read-ahead
+    // budget caps this further for large pieces.
+    public @NotNull MetaInfoBuilder setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism is less than one");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public @NotNull MetaInfoBuilder setProgressListener(@Nullable ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    // Smallest power of two that keeps the piece count near the target, within the allowed range
+    public static long choosePieceLength(long totalLength) {
+        if (totalLength < 0) {
+            throw new IllegalArgumentException("Total length is negative");
+        }
+        long pieceLength = MIN_PIECE_LENGTH;
+        while (pieceLength < MAX_PIECE_LENGTH && totalLength / pieceLength > TARGET_PIECE_COUNT) {
+            pieceLength <<= 1;
+        }
+        return pieceLength;
+    }
+
+    private record SourceFile(@NotNull Path path, @NotNull List<@NotNull String> relativePath, long length) {
+    }
+
+    private List<SourceFile> collectFiles() throws IOException {
+        if (Files.isRegularFile(source)) {
+            return List.of(new SourceFile(source, List.of(source.getFileName().toString()), Files.size(source)));
+        }
+        if (!Files.isDirectory(source)) {
+            throw new IOException("Source is not a file or directory: " + source);
+        }
+
+        var files = new ArrayList<SourceFile>();
+        try (var stream = Files.walk(source)) {
+            for (var path : (Iterable<Path>) stream::iterator) {
+                // Symbolic links are skipped, the walk doesn't follow them either
+                if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) continue;
+                var relativePath = new ArrayList<String>();
+                for (var element : source.relativize(path)) {
+                    relativePath.add(element.toString());
+                }
+                files.add(new SourceFile(path, List.copyOf(relativePath), Files.size(path)));
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IOException("Source directory has no files: " + source);
+        }
+
+        // Sorted by path elements so that the same content always makes the same torrent
+        files.sort((a, b) -> {
+            var x = a.relativePath();
+            var y = b.relativePath();
+            for (int i = 0; i < Math.min(x.size(), y.size()); i++) {
+                int result = x.get(i).compareTo(y.get(i));
+                if (result != 0) return result;
+            }
+            return Integer.compare(x.size(), y.size());
+        });
+        return files;
+    }
+
+    public @NotNull MetaInfo build() throws IOException {
+        var files = collectFiles();
+        long totalLength = files.stream().mapToLong(SourceFile::length).sum();
+        if (totalLength == 0) {
+            throw new IOException("Source has no content: " + source);
+        }
+
+        long pieceLength = this.pieceLength != 0 ? this.pieceLength : choosePieceLength(totalLength);
+        var pieces = hashPieces(files, totalLength, (int) pieceLength);
+
+        var name = this.name != null ? this.name : source.getFileName().toString();
+        Info info;
+        if (Files.isRegularFile(source)) {
+            info = new Info(name, totalLength, pieces, pieceLength, isPrivate, null);
+        } else {
+            var fileInfos = files.stream().map(file -> new FileInfo(file.relativePath(), file.length(), null)).toList();
+            info = new Info(name, pieces, pieceLength, fileInfos, isPrivate, null);
+        }
+
+        return new MetaInfo(info, announce, announceList, urlList, null, null, comment, createdBy, creationDate, null);
+    }
+
+    private List<Hash> hashPieces(List<SourceFile> files, long totalLength, int pieceLength) throws IOException {
+        int pieceCount = Math.toIntExact((totalLength + pieceLength - 1) / pieceLength);
+        var pieces = new Hash[pieceCount];
+
+        // Chunks hold whole lane batches where pieces are small enough, as in StorageVerifier
+        int laneCount = new BatchHasher(Hash.Algorithm.SHA1).getLaneCount();
+        int piecesPerChunk = Math.max(1, CHUNK_LENGTH / pieceLength);
+        if (piecesPerChunk >= laneCount) {
+            piecesPerChunk -= piecesPerChunk % laneCount;
+        }
+        int chunkLength = (int) Math.min((long) piecesPerChunk * pieceLength, totalLength);
+
+        // One buffer more than the hashing parallelism so that the next chunk is read meanwhile, but
+        // never more than the budget allows, and always at least two so reading and hashing overlap
+        int bufferCount = (int) Math.max(2, Math.min(parallelism + 1, READ_AHEAD_BUDGET / chunkLength));
+        BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(chunkLength));
+        }
+
+        var hashedBytes = new AtomicLong();
+        var failure = new AtomicReference<Throwable>();
+        var tasks = new ArrayList<CompletableFuture<Void>>();
+        var progressListener = this.progressListener;
+
+        try (var reader = new SourceReader(files)) {
+            for (int first = 0; first < pieceCount && failure.get() == null; first += piecesPerChunk) {
+                ByteBuffer buffer;
+                try {
+                    buffer = freeBuffers.take();
+                } catch (InterruptedException cause) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while hashing " + source);
+                }
+
+                long offset = (long) first * pieceLength;
+                buffer.clear().limit((int) Math.min(buffer.capacity(), totalLength - offset));
+                reader.read(offset, buffer);
+                buffer.flip();
+
+                int firstPiece = first;
+                tasks.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        var hashes = new BatchHasher(Hash.Algorithm.SHA1).digest(buffer, pieceLength);
+                        System.arraycopy(hashes, 0, pieces, firstPiece, hashes.length);
+                        long hashed = hashedBytes.addAndGet(buffer.remaining());
+                        if (progressListener != null) {
+                            progressListener.onProgress(hashed, totalLength);
+                        }
+                    } catch (Throwable cause) {
+                        failure.compareAndSet(null, cause);
+                    } finally {
+                        freeBuffers.add(buffer);
+                    }
+                }, executor));
+            }
+        } finally {
+            try {
+                CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+            } catch (CompletionException cause) {
+                failure.compareAndSet(null, cause.getCause());
+            }
+        }
+
+        var cause = failure.get();
+        if (cause != null) {
+            throw new IOException("Failed to hash " + source, cause);
+        }
+        return Arrays.asList(pieces);
+    }
+
+    // Reads the concatenated content of the source files, channels are opened as reading reaches them
+    private static final class SourceReader implements AutoCloseable {
+        private final List<SourceFile> files;
+        private final long[] offsets;
+        private final FileChannel[] channels;
+
+        private SourceReader(List<SourceFile> files) {
+            this.files = files;
+            this.offsets = new long[files.size()];
+            this.channels = new FileChannel[files.size()];
+            long offset = 0;
+            for (int i = 0; i < files.size(); i++) {
+                offsets[i] = offset;
+                offset += files.get(i).length();
+            }
+        }
+
+        private void read(long offset, ByteBuffer buffer) throws IOException {
+            int limit = buffer.limit();
+            int index = Arrays.binarySearch(offsets, offset);
+            if (index < 0) index = -index - 2;
+            for (; buffer.hasRemaining(); index++) {
+                var file = files.get(index);
+                long fileOffset = offset - offsets[index];
+                int count = (int) Math.min(buffer.remaining(), file.length() - fileOffset);
+                if (count <= 0) continue;
+                buffer.limit(buffer.position() + count);
+                var channel = channels[index];
+                if (channel == null) {
+                    channel = channels[index] = FileChannel.open(file.path(), StandardOpenOption.READ);
+                    // Earlier files are finished with since reading is sequential
+                    for (int i = 0; i < index; i++) {
+                        if (channels[i] != null) {
+                            channels[i].close();
+                            channels[i] = null;
+                        }
+                    }
+                }
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, fileOffset);
+                    if (read < 0) {
+                        throw new EOFException("File shrank while hashing: " + file.path());
+                    }
+                    fileOffset += read;
+                }
+                buffer.limit(limit);
+                offset += count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException exception = null;
+            for (int i = 0; i < channels.length; i++) {
+                if (channels[i] == null) continue;
+                try {
+                    channels[i].close();
+                } catch (IOException cause) {
+                    if (exception == null) exception = cause; else exception.addSuppressed(cause);
+                }
+                channels[i] = null;
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+
+}
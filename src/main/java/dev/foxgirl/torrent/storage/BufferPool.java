@@ -0,0 +1,150 @@
+package dev.foxgirl.torrent.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Pool of reusable off-heap buffers under a fixed memory budget, shared by everything in a client.
+// Buffers are kept on free lists by capacity, since most of them are piece sized and pieces
+// within a torrent are all the same length. Caches holding buffers register as reclaimers, so
+// when the budget runs out the least recently used buffer of the whole client can be given back,
+// whichever cache it is in.
+public final class BufferPool {
+
+    public interface Reclaimer {
+        // System.nanoTime() of the last use of this reclaimer's coldest buffer, Long.MAX_VALUE if it has none to give
+        long getOldestUse();
+
+        // Gives the coldest buffer back to the pool. Called on a thread that may hold the locks of
+        // other reclaimers, so a reclaimer that can't free it without taking its own lock hands the
+        // work off instead, and the buffer comes back later.
+        void reclaim();
+    }
+
+    public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+    private final long budget;
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong inUse = new AtomicLong();
+    private final ConcurrentHashMap<Integer, Queue<ByteBuffer>> freeBuffers = new ConcurrentHashMap<>();
+    private final List<Reclaimer> reclaimers = new CopyOnWriteArrayList<>();
+
+    public BufferPool() {
+        this(DEFAULT_BUDGET);
+    }
+
+    public BufferPool(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Budget is negative");
+        }
+        this.budget = budget;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    // Bytes held by the pool, both in use and on the free lists
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    public long getInUse() {
+        return inUse.get();
+    }
+
+    // Returns a cleared buffer with exactly the given capacity, or null if the budget is exhausted
+    public @Nullable ByteBuffer acquire(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity is not positive");
+        }
+        var free = freeBuffers.get(capacity);
+        var buffer = free != null ? free.poll() : null;
+        if (buffer == null) {
+            if (!reserve(capacity) && !(trim(capacity) && reserve(capacity))) {
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        inUse.addAndGet(capacity);
+        return buffer.clear();
+    }
+
+    public void release(@NotNull ByteBuffer buffer) {
+        Objects.requireNonNull(buffer, "Argument 'buffer'");
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer is not from this pool");
+        }
+        inUse.addAndGet(-buffer.capacity());
+        freeBuffers.computeIfAbsent(buffer.capacity(), key -> new ConcurrentLinkedQueue<>()).add(buffer);
+    }
+
+    public void addReclaimer(@NotNull Reclaimer reclaimer) {
+        Objects.requireNonNull(reclaimer, "Argument 'reclaimer'");
+        reclaimers.add(reclaimer);
+    }
+
+    public void removeReclaimer(@NotNull Reclaimer reclaimer) {
+        Objects.requireNonNull(reclaimer, "Argument 'reclaimer'");
+        reclaimers.remove(reclaimer);
+    }
+
+    // Asks the reclaimer holding the least recently used buffer to give it back, for callers that
+    // failed to acquire one, returns false if no reclaimer had a buffer to give
+    public boolean reclaim() {
+        Reclaimer oldest = null;
+        long oldestUse = Long.MAX_VALUE;
+        for (var reclaimer : reclaimers) {
+            long use = reclaimer.getOldestUse();
+            if (use != Long.MAX_VALUE && (oldest == null || use - oldestUse < 0)) {
+                oldest = reclaimer;
+                oldestUse = use;
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        oldest.reclaim();
+        return true;
+    }
+
+    private boolean reserve(int capacity) {
+        while (true) {
+            long current = allocated.get();
+            if (current + capacity > budget) {
+                return false;
+            }
+            if (allocated.compareAndSet(current, current + capacity)) {
+                return true;
+            }
+        }
+    }
+
+    // Drops free buffers of other sizes until there is room, their memory is reclaimed by the GC
+    private boolean trim(int capacity) {
+        for (var entry : freeBuffers.entrySet()) {
+            if (entry.getKey() == capacity) continue;
+            ByteBuffer buffer;
+            while ((buffer = entry.getValue().poll()) != null) {
+                if (allocated.addAndGet(-buffer.capacity()) + capacity <= budget) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "BufferPool{budget=" + budget + ", allocated=" + allocated.get() + ", inUse=" + inUse.get() + ", reclaimers=" + reclaimers.size() + "}";
+    }
+
+}
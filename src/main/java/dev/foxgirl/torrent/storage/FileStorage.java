@@ -0,0 +1,383 @@
+package dev.foxgirl.torrent.storage;
+
+import dev.foxgirl.torrent.metainfo.Info;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public final class FileStorage implements Storage {
+
+    private final @NotNull Info info;
+    private final @NotNull Path[] paths;
+    private final long[] offsets;
+    private final long[] lengths;
+    private final FileChannel[] channels;
+
+    // Skipped files that don't exist on disk keep the bytes of pieces they share with wanted files
+    // in the parts file, one piece sized slot per piece, so the skipped file is never created.
+    // Each slot starts with the index of its piece plus one, zero for a free slot, so the slots
+    // are found again when the storage is reopened.
+    private final @NotNull Path partsPath;
+    private final boolean[] partedFiles;
+    private volatile int partedFileCount;
+    private final Map<Integer, Integer> partsSlots = new HashMap<>();
+    private final BitSet usedSlots = new BitSet();
+    private FileChannel partsChannel;
+
+    private static final int PARTS_MAGIC = 0x50525453;
+    private static final int PARTS_HASH_LENGTH = 32;
+    private static final int PARTS_HEADER_LENGTH = 4 + 4 + PARTS_HASH_LENGTH;
+    private static final int SLOT_HEADER_LENGTH = 4;
+
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    // Single file torrents are stored as directory/name, multi file torrents under directory/name/
+    public FileStorage(@NotNull Path directory, @NotNull Info info) {
+        Objects.requireNonNull(directory, "Argument 'directory'");
+        Objects.requireNonNull(info, "Argument 'info'");
+        this.info = info;
+
+        var files = info.getFiles();
+        var root = info.isSingleFile() ? directory : directory.resolve(sanitize(info.getName()));
+
+        paths = new Path[files.size()];
+        offsets = new long[files.size()];
+        lengths = new long[files.size()];
+        channels = new FileChannel[files.size()];
+        partedFiles = new boolean[files.size()];
+        partsPath = directory.resolve("." + sanitize(info.getName()) + ".parts");
+
+        long offset = 0;
+        for (int i = 0; i < files.size(); i++) {
+            var file = files.get(i);
+            var path = root;
+            for (var element : file.getPath()) {
+                path = path.resolve(sanitize(element));
+            }
+            paths[i] = path;
+            offsets[i] = offset;
+            lengths[i] = file.getLength();
+            offset += file.getLength();
+        }
+    }
+
+    private static String sanitize(String element) {
+        if (element.isEmpty() || element.equals(".") || element.equals("..") || element.indexOf('/') >= 0 || element.indexOf('\\') >= 0 || element.indexOf('\0') >= 0) {
+            throw new IllegalArgumentException("Invalid path element: " + element);
+        }
+        return element;
+    }
+
+    public @NotNull Info getInfo() {
+        return info;
+    }
+
+    public @NotNull Path getPath(int fileIndex) {
+        return paths[fileIndex];
+    }
+
+    @Override
+    public long getLength() {
+        return info.getTotalLength();
+    }
+
+    private void assertNotClosed() {
+        if (isClosed.get()) {
+            throw new IllegalStateException("Storage is closed");
+        }
+    }
+
+    private synchronized FileChannel getChannel(int fileIndex) throws IOException {
+        assertNotClosed();
+        var channel = channels[fileIndex];
+        if (channel == null) {
+            var path = paths[fileIndex];
+            var parent = path.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channels[fileIndex] = channel;
+        }
+        return channel;
+    }
+
+    public @NotNull Path getPartsPath() {
+        return partsPath;
+    }
+
+    @Override
+    public synchronized void setFileSkipped(int fileIndex, boolean isSkipped) throws IOException {
+        Objects.checkIndex(fileIndex, paths.length);
+        assertNotClosed();
+        if (isSkipped) {
+            // Files that already have data keep it where it is
+            if (!partedFiles[fileIndex] && channels[fileIndex] == null && !Files.exists(paths[fileIndex])) {
+                partedFiles[fileIndex] = true;
+                partedFileCount++;
+            }
+        } else if (partedFiles[fileIndex]) {
+            movePartsToFile(fileIndex);
+            partedFiles[fileIndex] = false;
+            partedFileCount--;
+            releaseParts(fileIndex);
+        } else if (channels[fileIndex] == null && !Files.exists(paths[fileIndex]) && Files.exists(partsPath)) {
+            // Parted before the storage was reopened and not skipped again since
+            movePartsToFile(fileIndex);
+            releaseParts(fileIndex);
+        }
+    }
+
+    private boolean overlapsFile(int pieceIndex, int fileIndex) {
+        long pieceStart = (long) pieceIndex * info.getPieceLength();
+        long pieceEnd = pieceStart + info.getPieceLength(pieceIndex);
+        return lengths[fileIndex] > 0 && offsets[fileIndex] < pieceEnd && offsets[fileIndex] + lengths[fileIndex] > pieceStart;
+    }
+
+    private long getSlotPosition(int slot) {
+        return PARTS_HEADER_LENGTH + (long) slot * (SLOT_HEADER_LENGTH + info.getPieceLength());
+    }
+
+    private void movePartsToFile(int fileIndex) throws IOException {
+        if (lengths[fileIndex] == 0) {
+            return;
+        }
+        long fileStart = offsets[fileIndex];
+        long fileEnd = fileStart + lengths[fileIndex];
+        var partsChannel = getPartsChannel();
+        for (var entry : partsSlots.entrySet()) {
+            if (!overlapsFile(entry.getKey(), fileIndex)) continue;
+            long pieceStart = (long) entry.getKey() * info.getPieceLength();
+            long start = Math.max(pieceStart, fileStart);
+            long end = Math.min(pieceStart + info.getPieceLength(entry.getKey()), fileEnd);
+            var buffer = ByteBuffer.allocate((int) (end - start));
+            readFully(partsChannel, buffer, getSlotPosition(entry.getValue()) + SLOT_HEADER_LENGTH + (start - pieceStart));
+            buffer.flip();
+            writeFully(getChannel(fileIndex), buffer, start - fileStart);
+        }
+    }
+
+    // Frees the slots of pieces that no longer overlap any parted file, and shrinks the parts file
+    private void releaseParts(int fileIndex) throws IOException {
+        var partsChannel = getPartsChannel();
+        var header = ByteBuffer.allocate(SLOT_HEADER_LENGTH);
+        for (var iterator = partsSlots.entrySet().iterator(); iterator.hasNext(); ) {
+            var entry = iterator.next();
+            int pieceIndex = entry.getKey();
+            if (!overlapsFile(pieceIndex, fileIndex)) continue;
+            boolean isStillParted = false;
+            for (int i = 0; i < paths.length && !isStillParted; i++) {
+                isStillParted = partedFiles[i] && overlapsFile(pieceIndex, i);
+            }
+            if (isStillParted) continue;
+            iterator.remove();
+            usedSlots.clear(entry.getValue());
+            writeFully(partsChannel, header.clear().putInt(0).flip(), getSlotPosition(entry.getValue()));
+        }
+        if (usedSlots.isEmpty()) {
+            partsChannel.close();
+            this.partsChannel = null;
+            Files.deleteIfExists(partsPath);
+        } else {
+            partsChannel.truncate(getSlotPosition(usedSlots.length()));
+        }
+    }
+
+    private FileChannel getPartsChannel() throws IOException {
+        if (partsChannel == null) {
+            var parent = partsPath.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            var channel = FileChannel.open(partsPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                loadParts(channel);
+            } catch (IOException | RuntimeException cause) {
+                channel.close();
+                throw cause;
+            }
+            partsChannel = channel;
+        }
+        return partsChannel;
+    }
+
+    private void loadParts(FileChannel channel) throws IOException {
+        partsSlots.clear();
+        usedSlots.clear();
+
+        var hash = info.getInfoHash().getBytes();
+        var expected = ByteBuffer.allocate(PARTS_HEADER_LENGTH).putInt(PARTS_MAGIC).putInt((int) info.getPieceLength());
+        expected.put(hash, 0, Math.min(hash.length, PARTS_HASH_LENGTH)).clear();
+        var actual = ByteBuffer.allocate(PARTS_HEADER_LENGTH);
+        readFully(channel, actual, 0);
+        if (!actual.flip().equals(expected)) {
+            // New, or left behind by another torrent with the same name
+            channel.truncate(0);
+            writeFully(channel, expected, 0);
+            return;
+        }
+
+        var header = ByteBuffer.allocate(SLOT_HEADER_LENGTH);
+        long slotLength = SLOT_HEADER_LENGTH + info.getPieceLength();
+        long slotCount = (channel.size() - PARTS_HEADER_LENGTH + slotLength - 1) / slotLength;
+        for (int slot = 0; slot < slotCount; slot++) {
+            readFully(channel, header.clear(), getSlotPosition(slot));
+            int pieceIndex = header.flip().getInt() - 1;
+            if (pieceIndex >= 0 && pieceIndex < info.getPieceCount() && !partsSlots.containsKey(pieceIndex)) {
+                partsSlots.put(pieceIndex, slot);
+                usedSlots.set(slot);
+            }
+        }
+    }
+
+    // Returns false if the file is no longer parted, and the caller should use the file itself
+    private synchronized boolean accessParts(int fileIndex, long offset, ByteBuffer buffer, boolean isWrite) throws IOException {
+        assertNotClosed();
+        if (!partedFiles[fileIndex]) {
+            return false;
+        }
+        var partsChannel = getPartsChannel();
+        int limit = buffer.limit();
+        while (buffer.hasRemaining()) {
+            int pieceIndex = info.getPieceIndex(offset);
+            long pieceStart = (long) pieceIndex * info.getPieceLength();
+            int count = (int) Math.min(buffer.remaining(), pieceStart + info.getPieceLength(pieceIndex) - offset);
+            buffer.limit(buffer.position() + count);
+            var slot = partsSlots.get(pieceIndex);
+            if (isWrite) {
+                if (slot == null) {
+                    slot = usedSlots.nextClearBit(0);
+                    var header = ByteBuffer.allocate(SLOT_HEADER_LENGTH).putInt(pieceIndex + 1).flip();
+                    writeFully(partsChannel, header, getSlotPosition(slot));
+                    partsSlots.put(pieceIndex, slot);
+                    usedSlots.set(slot);
+                }
+                writeFully(partsChannel, buffer, getSlotPosition(slot) + SLOT_HEADER_LENGTH + (offset - pieceStart));
+            } else if (slot != null) {
+                readFully(partsChannel, buffer, getSlotPosition(slot) + SLOT_HEADER_LENGTH + (offset - pieceStart));
+            } else {
+                while (buffer.hasRemaining()) buffer.put((byte) 0);
+            }
+            buffer.limit(limit);
+            offset += count;
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                // Past the end of a sparse file
+                while (buffer.hasRemaining()) buffer.put((byte) 0);
+            } else {
+                position += read;
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private int getFileIndex(long offset) {
+        int index = Arrays.binarySearch(offsets, offset);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        // Skip over empty files that share their offset with the next file
+        while (index < lengths.length - 1 && offset - offsets[index] >= lengths[index]) {
+            index++;
+        }
+        return index;
+    }
+
+    private void checkRange(long offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > getLength()) {
+            throw new IndexOutOfBoundsException("Range [" + offset + ", " + (offset + length) + ") out of bounds for length " + getLength());
+        }
+    }
+
+    @Override
+    public void read(long offset, @NotNull ByteBuffer buffer) throws IOException {
+        Objects.requireNonNull(buffer, "Argument 'buffer'");
+        checkRange(offset, buffer.remaining());
+        int limit = buffer.limit();
+        for (int index = getFileIndex(offset); buffer.hasRemaining(); index++) {
+            long fileOffset = offset - offsets[index];
+            int count = (int) Math.min(buffer.remaining(), lengths[index] - fileOffset);
+            if (count <= 0) continue;
+            buffer.limit(buffer.position() + count);
+            if (partedFileCount == 0 || !accessParts(index, offset, buffer, false)) {
+                readFully(getChannel(index), buffer, fileOffset);
+            }
+            buffer.limit(limit);
+            offset += count;
+        }
+    }
+
+    @Override
+    public void write(long offset, @NotNull ByteBuffer buffer) throws IOException {
+        Objects.requireNonNull(buffer, "Argument 'buffer'");
+        checkRange(offset, buffer.remaining());
+        int limit = buffer.limit();
+        for (int index = getFileIndex(offset); buffer.hasRemaining(); index++) {
+            long fileOffset = offset - offsets[index];
+            int count = (int) Math.min(buffer.remaining(), lengths[index] - fileOffset);
+            if (count <= 0) continue;
+            buffer.limit(buffer.position() + count);
+            if (partedFileCount == 0 || !accessParts(index, offset, buffer, true)) {
+                writeFully(getChannel(index), buffer, fileOffset);
+            }
+            buffer.limit(limit);
+            offset += count;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (isClosed.getAndSet(true)) {
+            return;
+        }
+        IOException exception = null;
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] == null) continue;
+            try {
+                channels[i].close();
+            } catch (IOException cause) {
+                if (exception == null) exception = cause; else exception.addSuppressed(cause);
+            }
+            channels[i] = null;
+        }
+        if (partsChannel != null) {
+            try {
+                partsChannel.close();
+            } catch (IOException cause) {
+                if (exception == null) exception = cause; else exception.addSuppressed(cause);
+            }
+            partsChannel = null;
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "FileStorage{infoHash=" + info.getInfoHash() + ", files=" + paths.length + ", isClosed=" + isClosed.get() + "}";
+    }
+
+}
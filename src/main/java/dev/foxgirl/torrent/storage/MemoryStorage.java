@@ -0,0 +1,95 @@
+package dev.foxgirl.torrent.storage;
+
+import dev.foxgirl.torrent.metainfo.Info;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Sparse in-memory storage, only pieces that were written take up memory
+public final class MemoryStorage implements Storage {
+
+    private final @NotNull Info info;
+    private final ConcurrentHashMap<Integer, byte[]> pieces = new ConcurrentHashMap<>();
+    private volatile @Nullable Listener listener;
+
+    public MemoryStorage(@NotNull Info info) {
+        Objects.requireNonNull(info, "Argument 'info'");
+        this.info = info;
+    }
+
+    @Override
+    public long getLength() {
+        return info.getTotalLength();
+    }
+
+    private void checkRange(long offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > getLength()) {
+            throw new IndexOutOfBoundsException("Range [" + offset + ", " + (offset + length) + ") out of bounds for length " + getLength());
+        }
+    }
+
+    @Override
+    public void read(long offset, @NotNull ByteBuffer buffer) {
+        Objects.requireNonNull(buffer, "Argument 'buffer'");
+        checkRange(offset, buffer.remaining());
+        while (buffer.hasRemaining()) {
+            int pieceIndex = info.getPieceIndex(offset);
+            int pieceOffset = (int) (offset - pieceIndex * info.getPieceLength());
+            int count = (int) Math.min(buffer.remaining(), info.getPieceLength(pieceIndex) - pieceOffset);
+            var piece = pieces.get(pieceIndex);
+            if (piece != null) {
+                buffer.put(piece, pieceOffset, count);
+            } else {
+                for (int i = 0; i < count; i++) buffer.put((byte) 0);
+            }
+            offset += count;
+        }
+    }
+
+    @Override
+    public void write(long offset, @NotNull ByteBuffer buffer) {
+        Objects.requireNonNull(buffer, "Argument 'buffer'");
+        checkRange(offset, buffer.remaining());
+        while (buffer.hasRemaining()) {
+            int pieceIndex = info.getPieceIndex(offset);
+            int pieceOffset = (int) (offset - pieceIndex * info.getPieceLength());
+            int count = (int) Math.min(buffer.remaining(), info.getPieceLength(pieceIndex) - pieceOffset);
+            var piece = pieces.computeIfAbsent(pieceIndex, index -> new byte[(int) info.getPieceLength(index)]);
+            synchronized (piece) {
+                buffer.get(piece, pieceOffset, count);
+            }
+            offset += count;
+        }
+    }
+
+    @Override
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    // Frees the memory held by a piece, it reads as zeros again until it is rewritten
+    public void discard(int pieceIndex) {
+        Objects.checkIndex(pieceIndex, info.getPieceCount());
+        if (pieces.remove(pieceIndex) == null) {
+            return;
+        }
+        var listener = this.listener;
+        if (listener != null) {
+            listener.onRangeDiscarded((long) pieceIndex * info.getPieceLength(), info.getPieceLength(pieceIndex));
+        }
+    }
+
+    @Override
+    public void close() {
+        pieces.clear();
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "MemoryStorage{infoHash=" + info.getInfoHash() + ", pieces=" + pieces.size() + "}";
+    }
+
+}
@@ -0,0 +1,355 @@
+package dev.foxgirl.torrent.storage;
+
+import dev.foxgirl.torrent.metainfo.Info;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Caches whole verified pieces in pooled off-heap buffers so that blocks of popular pieces are
+// served from memory. Eviction is segmented LRU, pieces start out in a probationary segment and
+// only move to the protected segment when hit again, so a peer reading straight through the
+// torrent can only churn the probationary pieces and never pushes out the hot ones. Read caches
+// should get a pool of their own, the caches sharing it give up their coldest pieces to each other.
+public final class ReadCache implements AutoCloseable {
+
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    // Share of the budget the protected segment may take up
+    private static final double PROTECTED_RATIO = 0.8;
+
+    // Block of a cached piece, the piece stays in memory until every slice of it is closed
+    public final class Slice implements AutoCloseable {
+        private final @Nullable Entry entry;
+        private final @NotNull ByteBuffer buffer;
+        private final AtomicBoolean isClosed = new AtomicBoolean();
+
+        private Slice(@Nullable Entry entry, @NotNull ByteBuffer buffer) {
+            this.entry = entry;
+            this.buffer = buffer;
+        }
+
+        public @NotNull ByteBuffer getBuffer() {
+            return buffer.duplicate();
+        }
+
+        public int length() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public void close() {
+            if (!isClosed.getAndSet(true) && entry != null) {
+                unpin(entry);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final int pieceIndex;
+        private final int length;
+        private @Nullable ByteBuffer buffer;
+        private boolean isProtected;
+        private boolean isEvicted;
+        private int references;
+        private long lastUse;
+
+        private Entry(int pieceIndex, int length) {
+            this.pieceIndex = pieceIndex;
+            this.length = length;
+        }
+    }
+
+    private final @NotNull Info info;
+    private final @NotNull Storage storage;
+    private final @NotNull BufferPool bufferPool;
+    private volatile long budget;
+
+    // Both access ordered, iteration starts at the least recently used piece
+    private final LinkedHashMap<Integer, Entry> probationEntries = new LinkedHashMap<>(16, 0.75F, true);
+    private final LinkedHashMap<Integer, Entry> protectedEntries = new LinkedHashMap<>(16, 0.75F, true);
+    private long probationBytes;
+    private long protectedBytes;
+
+    // Last use of the piece this cache would evict first, read by the pool without the lock
+    private volatile long oldestUse = Long.MAX_VALUE;
+    private final BufferPool.Reclaimer reclaimer = new BufferPool.Reclaimer() {
+        @Override
+        public long getOldestUse() {
+            return oldestUse;
+        }
+
+        @Override
+        public void reclaim() {
+            reclaimOldest();
+        }
+    };
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    public ReadCache(@NotNull Info info, @NotNull Storage storage, @NotNull BufferPool bufferPool) {
+        this(info, storage, bufferPool, DEFAULT_BUDGET);
+    }
+
+    public ReadCache(@NotNull Info info, @NotNull Storage storage, @NotNull BufferPool bufferPool, long budget) {
+        Objects.requireNonNull(info, "Argument 'info'");
+        Objects.requireNonNull(storage, "Argument 'storage'");
+        Objects.requireNonNull(bufferPool, "Argument 'bufferPool'");
+        if (budget < 0) {
+            throw new IllegalArgumentException("Budget is negative");
+        }
+        this.info = info;
+        this.storage = storage;
+        this.bufferPool = bufferPool;
+        this.budget = budget;
+        bufferPool.addReclaimer(reclaimer);
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized void setBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Budget is negative");
+        }
+        this.budget = budget;
+        evict();
+        updateOldestUse();
+    }
+
+    public synchronized long getCachedBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    public boolean isClosed() {
+        return isClosed.get();
+    }
+
+    private void assertNotClosed() {
+        if (isClosed()) {
+            throw new IllegalStateException("Read cache is closed");
+        }
+    }
+
+    // Reads a block, loading the whole piece it's in on a miss, the returned slice must be closed
+    public @NotNull Slice read(int pieceIndex, int offset, int length) throws IOException {
+        Objects.checkIndex(pieceIndex, info.getPieceCount());
+        var pieceLength = (int) info.getPieceLength(pieceIndex);
+        Objects.checkFromIndexSize(offset, length, pieceLength);
+        assertNotClosed();
+
+        Entry entry;
+        synchronized (this) {
+            entry = probationEntries.get(pieceIndex);
+            if (entry != null) {
+                hitCount.incrementAndGet();
+                promote(entry);
+            } else if ((entry = protectedEntries.get(pieceIndex)) != null) {
+                hitCount.incrementAndGet();
+            } else {
+                missCount.incrementAndGet();
+                entry = new Entry(pieceIndex, pieceLength);
+                probationEntries.put(pieceIndex, entry);
+                probationBytes += pieceLength;
+            }
+            entry.references++;
+            entry.lastUse = System.nanoTime();
+            evict();
+            updateOldestUse();
+        }
+
+        // Readers of a piece that's still loading wait here for the first one to finish
+        ByteBuffer buffer;
+        try {
+            synchronized (entry) {
+                if (entry.buffer == null) {
+                    entry.buffer = load(entry);
+                }
+                buffer = entry.buffer;
+            }
+        } catch (IOException | RuntimeException cause) {
+            remove(entry);
+            unpin(entry);
+            throw cause;
+        }
+        if (buffer == null) {
+            // Pool is exhausted, read just this block without caching it
+            remove(entry);
+            unpin(entry);
+            var block = ByteBuffer.allocate(length);
+            storage.read((long) pieceIndex * info.getPieceLength() + offset, block);
+            return new Slice(null, block.flip().asReadOnlyBuffer());
+        }
+        return new Slice(entry, buffer.slice(offset, length).asReadOnlyBuffer());
+    }
+
+    private @Nullable ByteBuffer load(Entry entry) throws IOException {
+        var buffer = bufferPool.acquire(entry.length);
+        if (buffer == null) {
+            // Another cache's coldest piece may go back to the pool right away, so try once more
+            if (!bufferPool.reclaim() || (buffer = bufferPool.acquire(entry.length)) == null) {
+                return null;
+            }
+        }
+        try {
+            storage.read((long) entry.pieceIndex * info.getPieceLength(), buffer);
+        } catch (IOException | RuntimeException cause) {
+            bufferPool.release(buffer);
+            throw cause;
+        }
+        return buffer.clear();
+    }
+
+    private void promote(Entry entry) {
+        probationEntries.remove(entry.pieceIndex);
+        probationBytes -= entry.length;
+        protectedEntries.put(entry.pieceIndex, entry);
+        protectedBytes += entry.length;
+        entry.isProtected = true;
+
+        // Demote the coldest protected pieces so the probationary segment always has room
+        long protectedBudget = (long) (budget * PROTECTED_RATIO);
+        var iterator = protectedEntries.values().iterator();
+        while (protectedBytes > protectedBudget && iterator.hasNext()) {
+            var demoted = iterator.next();
+            if (demoted == entry) continue;
+            iterator.remove();
+            protectedBytes -= demoted.length;
+            demoted.isProtected = false;
+            probationEntries.put(demoted.pieceIndex, demoted);
+            probationBytes += demoted.length;
+        }
+    }
+
+    private void evict() {
+        evict(probationEntries);
+        evict(protectedEntries);
+    }
+
+    private void evict(LinkedHashMap<Integer, Entry> entries) {
+        var iterator = entries.values().iterator();
+        while (probationBytes + protectedBytes > budget && iterator.hasNext()) {
+            var entry = iterator.next();
+            // Pieces still being loaded are left alone, their readers are waiting on them
+            if (entry.references > 0 && entry.buffer == null) continue;
+            iterator.remove();
+            discard(entry);
+        }
+    }
+
+    private synchronized void reclaimOldest() {
+        if (isClosed()) {
+            return;
+        }
+        if (!reclaimOldest(probationEntries)) {
+            reclaimOldest(protectedEntries);
+        }
+        updateOldestUse();
+    }
+
+    private boolean reclaimOldest(LinkedHashMap<Integer, Entry> entries) {
+        var iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            if (entry.references > 0 && entry.buffer == null) continue;
+            iterator.remove();
+            discard(entry);
+            return true;
+        }
+        return false;
+    }
+
+    // Probationary pieces go first whatever their age, same as when the cache is over its own budget
+    private void updateOldestUse() {
+        var entries = probationEntries.isEmpty() ? protectedEntries : probationEntries;
+        var iterator = entries.values().iterator();
+        oldestUse = iterator.hasNext() ? iterator.next().lastUse : Long.MAX_VALUE;
+    }
+
+    private void discard(Entry entry) {
+        if (entry.isProtected) {
+            protectedBytes -= entry.length;
+        } else {
+            probationBytes -= entry.length;
+        }
+        entry.isEvicted = true;
+        if (entry.references == 0) {
+            releaseBuffer(entry);
+        }
+    }
+
+    private synchronized void remove(Entry entry) {
+        var entries = entry.isProtected ? protectedEntries : probationEntries;
+        if (entries.get(entry.pieceIndex) == entry) {
+            entries.remove(entry.pieceIndex);
+            discard(entry);
+            updateOldestUse();
+        }
+    }
+
+    private synchronized void unpin(Entry entry) {
+        if (--entry.references == 0 && entry.isEvicted) {
+            releaseBuffer(entry);
+        }
+    }
+
+    private void releaseBuffer(Entry entry) {
+        synchronized (entry) {
+            if (entry.buffer != null) {
+                bufferPool.release(entry.buffer);
+                entry.buffer = null;
+            }
+        }
+    }
+
+    // Drops a piece whose contents are no longer valid, slices already handed out stay readable
+    public synchronized void invalidate(int pieceIndex) {
+        var entry = probationEntries.get(pieceIndex);
+        if (entry == null) {
+            entry = protectedEntries.get(pieceIndex);
+        }
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (isClosed.getAndSet(true)) {
+            return;
+        }
+        bufferPool.removeReclaimer(reclaimer);
+        oldestUse = Long.MAX_VALUE;
+        for (var entry : probationEntries.values()) discard(entry);
+        for (var entry : protectedEntries.values()) discard(entry);
+        probationEntries.clear();
+        protectedEntries.clear();
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "ReadCache{infoHash=" + info.getInfoHash() + ", budget=" + budget + ", cachedBytes=" + getCachedBytes() + ", hitRatio=" + getHitRatio() + ", isClosed=" + isClosed() + "}";
+    }
+
+}
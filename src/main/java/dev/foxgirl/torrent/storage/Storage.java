@@ -0,0 +1,36 @@
+package dev.foxgirl.torrent.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Torrent content addressed by absolute offset, as if all files were concatenated
+public interface Storage extends AutoCloseable {
+
+    // Told when the storage gives up bytes it had stored, so pieces covering them are no longer complete
+    interface Listener {
+        void onRangeDiscarded(long offset, long length);
+    }
+
+    long getLength();
+
+    // Fills the remaining bytes of the buffer starting at the offset, unwritten regions read as zeros
+    void read(long offset, @NotNull ByteBuffer buffer) throws IOException;
+
+    // Writes all remaining bytes of the buffer starting at the offset
+    void write(long offset, @NotNull ByteBuffer buffer) throws IOException;
+
+    // Hint that a file of the torrent is not being downloaded, storages may avoid allocating it
+    default void setFileSkipped(int fileIndex, boolean isSkipped) throws IOException {
+    }
+
+    // Storages that never discard data may ignore the listener
+    default void setListener(@Nullable Listener listener) {
+    }
+
+    @Override
+    void close() throws IOException;
+
+}
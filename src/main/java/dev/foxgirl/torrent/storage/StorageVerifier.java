@@ -0,0 +1,85 @@
+package dev.foxgirl.torrent.storage;
+
+import dev.foxgirl.torrent.metainfo.Info;
+import dev.foxgirl.torrent.util.BatchHasher;
+import dev.foxgirl.torrent.util.Hash;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Objects;
+
+// Full recheck of stored data against the piece hashes, with large sequential reads of at most
+// READ_LENGTH bytes that are hashed a batch of pieces at a time
+public final class StorageVerifier {
+
+    private static final int READ_LENGTH = 32 * 1024 * 1024;
+
+    private StorageVerifier() {
+    }
+
+    // Returns the indices of the pieces whose stored data matches their hash
+    public static @NotNull BitSet verify(@NotNull Info info, @NotNull Storage storage) throws IOException {
+        return verify(info, storage, new BatchHasher(Hash.Algorithm.SHA1));
+    }
+
+    public static @NotNull BitSet verify(@NotNull Info info, @NotNull Storage storage, @NotNull BatchHasher hasher) throws IOException {
+        Objects.requireNonNull(info, "Argument 'info'");
+        Objects.requireNonNull(storage, "Argument 'storage'");
+        Objects.requireNonNull(hasher, "Argument 'hasher'");
+        if (hasher.getAlgorithm() != Hash.Algorithm.SHA1) {
+            throw new IllegalArgumentException("Hasher algorithm is not SHA-1");
+        }
+
+        var pieces = info.getPieces();
+        int pieceCount = info.getPieceCount();
+        long pieceLength = info.getPieceLength();
+        long totalLength = info.getTotalLength();
+        var valid = new BitSet(pieceCount);
+
+        if (pieceLength > READ_LENGTH) {
+            // Pieces bigger than a read are digested incrementally, one read at a time
+            var buffer = ByteBuffer.allocateDirect(READ_LENGTH);
+            for (int index = 0; index < pieceCount; index++) {
+                var pieceHasher = Hash.Algorithm.SHA1.createHasher();
+                long start = index * pieceLength;
+                long end = Math.min(start + pieceLength, totalLength);
+                for (long offset = start; offset < end; offset += READ_LENGTH) {
+                    buffer.clear().limit((int) Math.min(READ_LENGTH, end - offset));
+                    storage.read(offset, buffer);
+                    pieceHasher.update(buffer.flip());
+                }
+                if (Hash.finish(pieceHasher).equals(pieces.get(index))) {
+                    valid.set(index);
+                }
+            }
+            return valid;
+        }
+
+        // Reads never exceed READ_LENGTH, they are rounded down to whole lane batches when they can hold
+        // at least one, and otherwise the batch hasher digests the partial batch one piece at a time
+        int laneCount = hasher.getLaneCount();
+        int piecesPerRead = (int) (READ_LENGTH / pieceLength);
+        if (piecesPerRead >= laneCount) {
+            piecesPerRead -= piecesPerRead % laneCount;
+        }
+        var buffer = ByteBuffer.allocateDirect((int) Math.min(piecesPerRead * pieceLength, totalLength));
+
+        for (int first = 0; first < pieceCount; first += piecesPerRead) {
+            long offset = first * pieceLength;
+            buffer.clear().limit((int) Math.min(buffer.capacity(), totalLength - offset));
+            storage.read(offset, buffer);
+            buffer.flip();
+
+            var hashes = hasher.digest(buffer, (int) pieceLength);
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i].equals(pieces.get(first + i))) {
+                    valid.set(first + i);
+                }
+            }
+        }
+        return valid;
+    }
+
+}
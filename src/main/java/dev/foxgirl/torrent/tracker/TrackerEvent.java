@@ -0,0 +1,20 @@
+package dev.foxgirl.torrent.tracker;
+
+public enum TrackerEvent {
+
+    NONE(0),
+    COMPLETED(1),
+    STARTED(2),
+    STOPPED(3);
+
+    private final int id;
+
+    TrackerEvent(int id) {
+        this.id = id;
+    }
+
+    public int getID() {
+        return id;
+    }
+
+}
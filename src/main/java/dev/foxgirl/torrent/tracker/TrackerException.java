@@ -0,0 +1,26 @@
+package dev.foxgirl.torrent.tracker;
+
+import java.io.IOException;
+import java.io.Serial;
+
+public class TrackerException extends IOException {
+
+    @Serial
+    private static final long serialVersionUID = 4903178225907416382L;
+
+    public TrackerException() {
+    }
+
+    public TrackerException(String message) {
+        super(message);
+    }
+
+    public TrackerException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public TrackerException(Throwable cause) {
+        super(cause);
+    }
+
+}
@@ -0,0 +1,571 @@
+package dev.foxgirl.torrent.tracker;
+
+import dev.foxgirl.torrent.client.Client;
+import dev.foxgirl.torrent.client.Swarm;
+import dev.foxgirl.torrent.util.Hash;
+import dev.foxgirl.torrent.util.Throwables;
+import dev.foxgirl.torrent.util.Timeout;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public final class UdpTracker implements AutoCloseable {
+
+    public record Announce(
+            int interval,
+            int leechers,
+            int seeders,
+            @NotNull List<@NotNull InetSocketAddress> peers
+    ) {}
+
+    public record Scrape(
+            int seeders,
+            int completed,
+            int leechers
+    ) {}
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UdpTracker.class);
+
+    private static final long PROTOCOL_ID = 0x41727101980L;
+
+    private static final int ACTION_CONNECT = 0;
+    private static final int ACTION_ANNOUNCE = 1;
+    private static final int ACTION_SCRAPE = 2;
+    private static final int ACTION_ERROR = 3;
+
+    private static final long CONNECTION_ID_LIFETIME_MS = 60 * 1000;
+    private static final long RETRANSMIT_TIMEOUT_MS = 15 * 1000;
+    private static final int RETRANSMIT_MAX_COUNT = 8;
+
+    private static final long SCRAPE_BATCH_DELAY_MS = 250;
+    private static final int SCRAPE_BATCH_SIZE = 74;
+
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+    private final @NotNull Client client;
+    private final @NotNull DatagramChannel channel;
+
+    private final int key = ThreadLocalRandom.current().nextInt();
+
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    private record Connection(long id, long expiryTime) {
+        private boolean isExpired() {
+            return System.nanoTime() - expiryTime >= 0;
+        }
+    }
+
+    private record PendingScrape(@NotNull Hash infoHash, @NotNull CompletableFuture<Scrape> future) {}
+
+    private final Map<Integer, Exchange<?>> exchanges = new ConcurrentHashMap<>(64);
+    private final Map<InetSocketAddress, Connection> connections = new ConcurrentHashMap<>(16);
+    private final Map<InetSocketAddress, List<PendingScrape>> pendingScrapes = new HashMap<>(16);
+
+    public UdpTracker(@NotNull Client client) throws IOException {
+        Objects.requireNonNull(client, "Argument 'client'");
+        this.client = client;
+        this.channel = DatagramChannel.open();
+        try {
+            channel.bind(null);
+        } catch (IOException cause) {
+            channel.close();
+            throw cause;
+        }
+        client.getExecutors().getBlockingExecutor().execute(this::receiveLoop);
+    }
+
+    public static @Nullable InetSocketAddress resolveAddress(@NotNull String url) throws UnknownHostException {
+        Objects.requireNonNull(url, "Argument 'url'");
+        URI uri;
+        try {
+            uri = URI.create(url);
+        } catch (IllegalArgumentException ignored) {
+            return null;
+        }
+        if (!"udp".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null || uri.getPort() < 0) {
+            return null;
+        }
+        return new InetSocketAddress(InetAddress.getByName(uri.getHost()), uri.getPort());
+    }
+
+    public @NotNull Client getClient() {
+        return client;
+    }
+
+    public boolean isClosed() {
+        return isClosed.get();
+    }
+
+    private void assertNotClosed() {
+        if (isClosed()) {
+            throw new IllegalStateException("Tracker is closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (isClosed.getAndSet(true)) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException cause) {
+            LOGGER.debug("UDP tracker socket failed to close: {}", Throwables.getMessage(cause));
+        }
+        var cause = new IllegalStateException("Tracker closed");
+        for (var exchange : exchanges.values()) {
+            exchange.completeExceptionally(cause);
+        }
+        List<PendingScrape> pendingScrapesList = new ArrayList<>();
+        synchronized (pendingScrapes) {
+            pendingScrapes.values().forEach(pendingScrapesList::addAll);
+            pendingScrapes.clear();
+        }
+        for (var pendingScrape : pendingScrapesList) {
+            pendingScrape.future.completeExceptionally(cause);
+        }
+        connections.clear();
+    }
+
+    private void receiveLoop() {
+        var buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+        while (!isClosed()) {
+            try {
+                buffer.clear();
+                var source = (InetSocketAddress) channel.receive(buffer);
+                if (source == null) {
+                    continue;
+                }
+                buffer.flip();
+                receive(source, buffer);
+            } catch (ClosedChannelException cause) {
+                break;
+            } catch (Throwable cause) {
+                LOGGER.warn("UDP tracker failed to receive packet: {}", Throwables.getMessage(cause));
+            }
+        }
+    }
+
+    private void receive(InetSocketAddress source, ByteBuffer buffer) {
+        if (buffer.remaining() < 8) {
+            LOGGER.debug("UDP tracker {} sent packet that is too short, length {}", source, buffer.remaining());
+            return;
+        }
+        int action = buffer.getInt();
+        int transactionID = buffer.getInt();
+        var exchange = exchanges.get(transactionID);
+        if (exchange == null) {
+            LOGGER.debug("UDP tracker {} sent packet with unknown transaction ID {}", source, transactionID);
+            return;
+        }
+        exchange.receive(source, action, buffer);
+    }
+
+    private void send(ByteBuffer packet, InetSocketAddress address) throws IOException {
+        packet.rewind();
+        channel.send(packet, address);
+    }
+
+    private abstract class Exchange<T> extends CompletableFuture<T> {
+        protected final @NotNull InetSocketAddress address;
+
+        private final Timeout timeout = new Timeout(client.getExecutors().getTimerWheel(), this::retransmit);
+
+        private ByteBuffer packet;
+        private int transactionID;
+        private int retransmitCount;
+        private Connection connection;
+
+        private Exchange(@NotNull InetSocketAddress address) {
+            Objects.requireNonNull(address, "Argument 'address'");
+            this.address = address;
+            whenComplete((result, cause) -> {
+                timeout.cancel();
+                exchanges.remove(transactionID, this);
+            });
+        }
+
+        protected abstract int getAction();
+        protected abstract int getRequestLength();
+        protected abstract void writeRequest(@NotNull ByteBuffer buffer);
+        protected abstract @NotNull T readResponse(@NotNull ByteBuffer buffer) throws TrackerException;
+
+        private synchronized void register() {
+            exchanges.remove(transactionID, this);
+            var random = ThreadLocalRandom.current();
+            do {
+                transactionID = random.nextInt();
+            } while (exchanges.putIfAbsent(transactionID, this) != null);
+        }
+
+        private synchronized void transmit() {
+            if (isDone()) {
+                return;
+            }
+            try {
+                send(packet, address);
+                timeout.start(RETRANSMIT_TIMEOUT_MS << retransmitCount);
+            } catch (Throwable cause) {
+                completeExceptionally(cause);
+            }
+        }
+
+        private synchronized void sendConnect() {
+            connection = null;
+            register();
+            packet = ByteBuffer.allocate(16)
+                    .putLong(PROTOCOL_ID)
+                    .putInt(ACTION_CONNECT)
+                    .putInt(transactionID)
+                    .flip();
+            LOGGER.debug("UDP tracker {} sending connect, transaction ID {}", address, transactionID);
+            transmit();
+        }
+
+        private synchronized void sendRequest(Connection connection) {
+            this.connection = connection;
+            register();
+            packet = ByteBuffer.allocate(16 + getRequestLength())
+                    .putLong(connection.id)
+                    .putInt(getAction())
+                    .putInt(transactionID);
+            writeRequest(packet);
+            packet.flip();
+            LOGGER.debug("UDP tracker {} sending action {}, transaction ID {}", address, getAction(), transactionID);
+            transmit();
+        }
+
+        synchronized void start() {
+            var connection = connections.get(address);
+            if (connection != null && !connection.isExpired()) {
+                sendRequest(connection);
+            } else {
+                sendConnect();
+            }
+        }
+
+        // Run by timeout when no response has arrived
+        private synchronized void retransmit() {
+            if (isDone()) {
+                return;
+            }
+            if (++retransmitCount > RETRANSMIT_MAX_COUNT) {
+                completeExceptionally(new TimeoutException("UDP tracker " + address + " did not respond"));
+                return;
+            }
+            LOGGER.debug("UDP tracker {} did not respond, retransmitting, attempt {}", address, retransmitCount);
+            if (connection != null && connection.isExpired()) {
+                connections.remove(address, connection);
+                sendConnect();
+            } else {
+                transmit();
+            }
+        }
+
+        private synchronized void receive(InetSocketAddress source, int action, ByteBuffer buffer) {
+            if (isDone()) {
+                return;
+            }
+            if (!address.equals(source)) {
+                LOGGER.debug("UDP tracker {} sent packet for transaction of tracker {}", source, address);
+                return;
+            }
+            try {
+                timeout.cancel();
+                if (action == ACTION_ERROR) {
+                    // Usually a stale or invalidated connection ID, forget it so the next exchange reconnects
+                    if (connection != null) {
+                        connections.remove(address, connection);
+                    }
+                    var message = StandardCharsets.UTF_8.decode(buffer).toString();
+                    throw new TrackerException("UDP tracker " + address + " responded with error: " + message);
+                }
+                if (connection == null) {
+                    if (action != ACTION_CONNECT || buffer.remaining() < 8) {
+                        throw new TrackerException("UDP tracker " + address + " sent invalid connect response");
+                    }
+                    var connection = new Connection(
+                        buffer.getLong(),
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECTION_ID_LIFETIME_MS)
+                    );
+                    connections.put(address, connection);
+                    sendRequest(connection);
+                } else {
+                    if (action != getAction()) {
+                        throw new TrackerException("UDP tracker " + address + " sent response with action " + action + ", expected " + getAction());
+                    }
+                    complete(readResponse(buffer));
+                }
+            } catch (Throwable cause) {
+                completeExceptionally(cause);
+            }
+        }
+    }
+
+    private final class AnnounceExchange extends Exchange<Announce> {
+        private final Hash infoHash;
+        private final byte[] peerID;
+        private final long downloaded;
+        private final long left;
+        private final long uploaded;
+        private final TrackerEvent event;
+        private final int port;
+
+        private AnnounceExchange(
+                InetSocketAddress address,
+                Hash infoHash,
+                long downloaded,
+                long left,
+                long uploaded,
+                TrackerEvent event
+        ) {
+            super(address);
+            this.infoHash = infoHash;
+            this.peerID = client.getIdentity().getID();
+            this.downloaded = downloaded;
+            this.left = left;
+            this.uploaded = uploaded;
+            this.event = event;
+            this.port = client.getIdentity().getSocketAddress().getPort();
+        }
+
+        @Override
+        protected int getAction() {
+            return ACTION_ANNOUNCE;
+        }
+
+        @Override
+        protected int getRequestLength() {
+            return 82;
+        }
+
+        @Override
+        protected void writeRequest(@NotNull ByteBuffer buffer) {
+            /* info_hash  */ buffer.put(infoHash.getBytes());
+            /* peer_id    */ buffer.put(peerID);
+            /* downloaded */ buffer.putLong(downloaded);
+            /* left       */ buffer.putLong(left);
+            /* uploaded   */ buffer.putLong(uploaded);
+            /* event      */ buffer.putInt(event.getID());
+            /* IP address */ buffer.putInt(0);
+            /* key        */ buffer.putInt(key);
+            /* num_want   */ buffer.putInt(-1);
+            /* port       */ buffer.putShort((short) port);
+        }
+
+        @Override
+        protected @NotNull Announce readResponse(@NotNull ByteBuffer buffer) throws TrackerException {
+            if (buffer.remaining() < 12) {
+                throw new TrackerException("UDP tracker " + address + " sent announce response that is too short");
+            }
+            int interval = buffer.getInt();
+            int leechers = buffer.getInt();
+            int seeders = buffer.getInt();
+
+            // IPv6 trackers respond with 18-byte peer entries instead of 6-byte ones
+            int addressLength = address.getAddress() instanceof Inet4Address ? 4 : 16;
+            int entryLength = addressLength + 2;
+
+            var peers = new ArrayList<InetSocketAddress>(buffer.remaining() / entryLength);
+            var addressBytes = new byte[addressLength];
+            while (buffer.remaining() >= entryLength) {
+                buffer.get(addressBytes);
+                int port = buffer.getShort() & 0xFFFF;
+                try {
+                    peers.add(new InetSocketAddress(InetAddress.getByAddress(addressBytes), port));
+                } catch (UnknownHostException cause) {
+                    throw new TrackerException("UDP tracker " + address + " sent invalid peer address", cause);
+                }
+            }
+
+            return new Announce(interval, leechers, seeders, Collections.unmodifiableList(peers));
+        }
+    }
+
+    private final class ScrapeExchange extends Exchange<List<Scrape>> {
+        private final List<PendingScrape> batch;
+
+        private ScrapeExchange(InetSocketAddress address, List<PendingScrape> batch) {
+            super(address);
+            this.batch = batch;
+            whenComplete((scrapes, cause) -> {
+                for (int i = 0, size = batch.size(); i < size; i++) {
+                    if (cause != null) {
+                        batch.get(i).future.completeExceptionally(cause);
+                    } else {
+                        batch.get(i).future.complete(scrapes.get(i));
+                    }
+                }
+            });
+        }
+
+        @Override
+        protected int getAction() {
+            return ACTION_SCRAPE;
+        }
+
+        @Override
+        protected int getRequestLength() {
+            return batch.size() * 20;
+        }
+
+        @Override
+        protected void writeRequest(@NotNull ByteBuffer buffer) {
+            for (var pendingScrape : batch) {
+                /* info_hash */ buffer.put(pendingScrape.infoHash.getBytes());
+            }
+        }
+
+        @Override
+        protected @NotNull List<Scrape> readResponse(@NotNull ByteBuffer buffer) throws TrackerException {
+            if (buffer.remaining() < batch.size() * 12) {
+                throw new TrackerException("UDP tracker " + address + " sent scrape response that is too short");
+            }
+            var scrapes = new ArrayList<Scrape>(batch.size());
+            for (int i = 0, size = batch.size(); i < size; i++) {
+                int seeders = buffer.getInt();
+                int completed = buffer.getInt();
+                int leechers = buffer.getInt();
+                scrapes.add(new Scrape(seeders, completed, leechers));
+            }
+            return scrapes;
+        }
+    }
+
+    public @NotNull CompletableFuture<@NotNull Announce> announce(
+            @NotNull InetSocketAddress address,
+            @NotNull Hash infoHash,
+            long downloaded,
+            long left,
+            long uploaded,
+            @NotNull TrackerEvent event
+    ) {
+        Objects.requireNonNull(address, "Argument 'address'");
+        Objects.requireNonNull(infoHash, "Argument 'infoHash'");
+        Objects.requireNonNull(event, "Argument 'event'");
+        if (infoHash.length() != 20) {
+            throw new IllegalArgumentException("Infohash length is not 20 bytes");
+        }
+        assertNotClosed();
+        var exchange = new AnnounceExchange(address, infoHash, downloaded, left, uploaded, event);
+        exchange.start();
+        return exchange;
+    }
+
+    public @NotNull CompletableFuture<@NotNull Announce> announce(
+            @NotNull InetSocketAddress address,
+            @NotNull Swarm swarm,
+            @NotNull TrackerEvent event
+    ) {
+        Objects.requireNonNull(swarm, "Argument 'swarm'");
+        return announce(
+            address,
+            swarm.getInfoHash(),
+            swarm.getBytesDownloaded(),
+            swarm.getBytesLeft(),
+            swarm.getBytesUploaded(),
+            event
+        ).whenComplete((announce, cause) -> {
+            if (cause != null) {
+                LOGGER.debug("UDP tracker {} announce for infohash {} failed: {}", address, swarm.getInfoHash(), Throwables.getMessage(cause));
+            } else if (!swarm.isClosed()) {
+                int count = swarm.addPeerCandidates(announce.peers());
+                LOGGER.debug("UDP tracker {} announce for infohash {} returned {} peers, {} new", address, swarm.getInfoHash(), announce.peers().size(), count);
+            }
+        });
+    }
+
+    public @NotNull CompletableFuture<@NotNull Scrape> scrape(@NotNull InetSocketAddress address, @NotNull Hash infoHash) {
+        Objects.requireNonNull(address, "Argument 'address'");
+        Objects.requireNonNull(infoHash, "Argument 'infoHash'");
+        if (infoHash.length() != 20) {
+            throw new IllegalArgumentException("Infohash length is not 20 bytes");
+        }
+        assertNotClosed();
+        var future = new CompletableFuture<Scrape>();
+        boolean shouldScheduleFlush;
+        synchronized (pendingScrapes) {
+            var list = pendingScrapes.computeIfAbsent(address, __ -> new ArrayList<>());
+            shouldScheduleFlush = list.isEmpty();
+            list.add(new PendingScrape(infoHash, future));
+        }
+        if (shouldScheduleFlush) {
+            try {
+                client.getExecutors().schedule(() -> flushScrapes(address), SCRAPE_BATCH_DELAY_MS);
+            } catch (RejectedExecutionException cause) {
+                List<PendingScrape> list;
+                synchronized (pendingScrapes) {
+                    list = pendingScrapes.remove(address);
+                }
+                if (list != null) {
+                    for (var pendingScrape : list) {
+                        pendingScrape.future.completeExceptionally(cause);
+                    }
+                }
+            }
+        }
+        return future;
+    }
+
+    public @NotNull CompletableFuture<@NotNull Map<@NotNull Hash, @NotNull Scrape>> scrape(
+            @NotNull InetSocketAddress address,
+            @NotNull Collection<@NotNull Hash> infoHashes
+    ) {
+        Objects.requireNonNull(infoHashes, "Argument 'infoHashes'");
+        var futures = new LinkedHashMap<Hash, CompletableFuture<Scrape>>(infoHashes.size());
+        for (var infoHash : infoHashes) {
+            futures.computeIfAbsent(infoHash, __ -> scrape(address, infoHash));
+        }
+        return CompletableFuture
+                .allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(__ -> {
+                    var scrapes = new LinkedHashMap<Hash, Scrape>(futures.size());
+                    futures.forEach((infoHash, future) -> scrapes.put(infoHash, future.join()));
+                    return Collections.unmodifiableMap(scrapes);
+                });
+    }
+
+    private void flushScrapes(InetSocketAddress address) {
+        List<PendingScrape> list;
+        synchronized (pendingScrapes) {
+            list = pendingScrapes.remove(address);
+        }
+        if (list == null) {
+            return;
+        }
+        for (int i = 0, size = list.size(); i < size; i += SCRAPE_BATCH_SIZE) {
+            var batch = List.copyOf(list.subList(i, Math.min(i + SCRAPE_BATCH_SIZE, size)));
+            if (isClosed()) {
+                batch.forEach(pendingScrape -> pendingScrape.future.completeExceptionally(new IllegalStateException("Tracker closed")));
+            } else {
+                new ScrapeExchange(address, batch).start();
+            }
+        }
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "UdpTracker{exchanges=" + exchanges.size() + ", connections=" + connections.size() + ", isClosed=" + isClosed() + "}";
+    }
+
+}
@@ -0,0 +1,130 @@
+package dev.foxgirl.torrent.util;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+// Hashes runs of equal length pieces, as in rechecks and torrent creation. With the lanes strategy
+// SHA-1 runs over several pieces at once on the incubating Vector API, which is several times
+// faster than pure Java digests but slower than the JDK's SHA instruction intrinsics, so it is
+// only the default when the module is present and the JDK can't use those instructions.
+public final class BatchHasher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchHasher.class);
+
+    private static final boolean IS_VECTOR_AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    private static final boolean HAS_SHA1_INTRINSICS = hasSha1Intrinsics();
+
+    private static boolean hasSha1Intrinsics() {
+        try {
+            var bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return Boolean.parseBoolean(bean.getVMOption("UseSHA1Intrinsics").getValue());
+        } catch (Throwable cause) {
+            // Other JVMs are assumed to have fast digests of their own
+            return true;
+        }
+    }
+
+    public enum Strategy {
+        // One piece at a time with the current hash provider
+        SEQUENTIAL,
+        // Interleaved lanes on the Vector API, SHA-1 only
+        LANES;
+
+        public boolean isAvailable(@NotNull Hash.Algorithm algorithm) {
+            Objects.requireNonNull(algorithm, "Argument 'algorithm'");
+            return this == SEQUENTIAL || (algorithm == Hash.Algorithm.SHA1 && IS_VECTOR_AVAILABLE);
+        }
+
+        public static @NotNull Strategy getDefault(@NotNull Hash.Algorithm algorithm) {
+            if (LANES.isAvailable(algorithm) && !(Hash.getProvider() == Hash.Provider.JDK && HAS_SHA1_INTRINSICS)) {
+                return LANES;
+            }
+            return SEQUENTIAL;
+        }
+    }
+
+    interface Engine {
+        int getLaneCount();
+
+        // Digests getLaneCount() consecutive messages of the given length into the output
+        void digest(ByteBuffer buffer, int offset, int length, byte[] output);
+    }
+
+    private final Hash.Algorithm algorithm;
+    private final Strategy strategy;
+    private final Engine engine;
+    private final byte[] output;
+
+    public BatchHasher(@NotNull Hash.Algorithm algorithm) {
+        this(algorithm, Strategy.getDefault(algorithm));
+    }
+
+    public BatchHasher(@NotNull Hash.Algorithm algorithm, @NotNull Strategy strategy) {
+        Objects.requireNonNull(algorithm, "Argument 'algorithm'");
+        Objects.requireNonNull(strategy, "Argument 'strategy'");
+        if (!strategy.isAvailable(algorithm)) {
+            throw new IllegalArgumentException("Strategy " + strategy + " is not available for " + algorithm.getName());
+        }
+        this.algorithm = algorithm;
+        this.strategy = strategy;
+        this.engine = strategy == Strategy.LANES ? new VectorSha1() : null;
+        this.output = engine != null ? new byte[engine.getLaneCount() * algorithm.getLength()] : null;
+        LOGGER.debug("Batch hasher using {} with {} lanes", strategy, getLaneCount());
+    }
+
+    public @NotNull Hash.Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public @NotNull Strategy getStrategy() {
+        return strategy;
+    }
+
+    // Number of pieces hashed together, batches that are a multiple of this are hashed fastest
+    public int getLaneCount() {
+        return engine != null ? engine.getLaneCount() : 1;
+    }
+
+    // Digests the remaining bytes as consecutive pieces of the given length, where the last one may be
+    // shorter, without moving the buffer's position
+    public @NotNull Hash @NotNull [] digest(@NotNull ByteBuffer buffer, int pieceLength) {
+        Objects.requireNonNull(buffer, "Argument 'buffer'");
+        if (pieceLength <= 0) {
+            throw new IllegalArgumentException("Piece length is not positive");
+        }
+
+        int position = buffer.position();
+        int remaining = buffer.remaining();
+        var hashes = new Hash[(remaining + pieceLength - 1) / pieceLength];
+
+        int index = 0;
+        if (engine != null) {
+            int laneCount = engine.getLaneCount();
+            int hashLength = algorithm.getLength();
+            for (; index + laneCount <= remaining / pieceLength; index += laneCount) {
+                engine.digest(buffer, position + index * pieceLength, pieceLength, output);
+                for (int l = 0; l < laneCount; l++) {
+                    hashes[index + l] = Hash.of(output, l * hashLength, hashLength);
+                }
+            }
+        }
+        for (; index < hashes.length; index++) {
+            int offset = index * pieceLength;
+            hashes[index] = Hash.digest(algorithm, buffer.slice(position + offset, Math.min(pieceLength, remaining - offset)));
+        }
+
+        return hashes;
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "BatchHasher{algorithm=" + algorithm + ", strategy=" + strategy + ", laneCount=" + getLaneCount() + "}";
+    }
+
+}
@@ -0,0 +1,11 @@
+package dev.foxgirl.torrent.util;
+
+// Monotonic time source in nanoseconds, swapped out for a virtual clock in simulations
+@FunctionalInterface
+public interface Clock {
+
+    Clock SYSTEM = System::nanoTime;
+
+    long nanoTime();
+
+}
@@ -12,23 +12,20 @@ public final class DefaultExecutors {
     private DefaultExecutors() {
     }
 
+    // 100ms ticks with 512 slots, one revolution covers 51.2 seconds
+    private static final long TIMER_WHEEL_TICK_MS = 100;
+    private static final int TIMER_WHEEL_SLOT_COUNT = 512;
+
     private static final ExecutorService DEFAULT_EXECUTOR_SERVICE;
     private static final ExecutorService IO_EXECUTOR_SERVICE;
     private static final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE;
+    private static final TimerWheel TIMER_WHEEL;
 
     static {
-        /*
-        ExecutorService defaultExecutorService;
-        try {
-            defaultExecutorService = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
-        } catch (Exception ignored) {
-            defaultExecutorService = Executors.newCachedThreadPool();
-        }
-        DEFAULT_EXECUTOR_SERVICE = defaultExecutorService;
-        */
         DEFAULT_EXECUTOR_SERVICE = ForkJoinPool.commonPool();
         IO_EXECUTOR_SERVICE = Executors.newCachedThreadPool();
         SCHEDULED_EXECUTOR_SERVICE = Executors.newSingleThreadScheduledExecutor();
+        TIMER_WHEEL = new TimerWheel(TIMER_WHEEL_TICK_MS, TIMER_WHEEL_SLOT_COUNT, DEFAULT_EXECUTOR_SERVICE);
     }
 
     public static @NotNull ExecutorService getDefaultExecutor() {
@@ -43,10 +40,16 @@ public final class DefaultExecutors {
         return SCHEDULED_EXECUTOR_SERVICE;
     }
 
+    // Used for high-frequency timeouts that are usually cancelled before they fire
+    public static @NotNull TimerWheel getTimerWheel() {
+        return TIMER_WHEEL;
+    }
+
     public static void shutdown() {
         DEFAULT_EXECUTOR_SERVICE.shutdown();
         IO_EXECUTOR_SERVICE.shutdown();
         SCHEDULED_EXECUTOR_SERVICE.shutdown();
+        TIMER_WHEEL.close();
     }
 
 }
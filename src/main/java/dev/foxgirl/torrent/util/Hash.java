@@ -9,68 +9,296 @@ import org.jetbrains.annotations.NotNull;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Objects;
 
 public final class Hash {
 
     public enum Algorithm {
-        SHA1 {
-            public @NotNull SHA1Digest createDigest() {
-                return new SHA1Digest();
+        SHA1("SHA-1", 20),
+        SHA256("SHA-256", 32);
+
+        private final String name;
+        private final int length;
+
+        Algorithm(String name, int length) {
+            this.name = name;
+            this.length = length;
+        }
+
+        // Standard name, as used by MessageDigest
+        public @NotNull String getName() {
+            return name;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public @NotNull Hasher createHasher() {
+            return getProvider().createHasher(this);
+        }
+    }
+
+    // Running digest computation, not thread safe
+    public interface Hasher {
+        void update(byte value);
+
+        void update(byte @NotNull [] bytes, int offset, int length);
+
+        // Digests the remaining bytes without moving the buffer's position
+        void update(@NotNull ByteBuffer buffer);
+
+        // Completes the digest into the destination, the hasher is reset afterwards
+        void finish(byte @NotNull [] destination, int offset);
+
+        @NotNull Algorithm getAlgorithm();
+    }
+
+    public interface Provider {
+        @NotNull String getName();
+
+        boolean isAvailable(@NotNull Algorithm algorithm);
+
+        @NotNull Hasher createHasher(@NotNull Algorithm algorithm);
+
+        // MessageDigest from the JDK's providers, which HotSpot compiles to the SHA instructions
+        // where the CPU has them
+        Provider JDK = new Provider() {
+            private final Map<Algorithm, MessageDigest> prototypes = new EnumMap<>(Algorithm.class);
+
+            {
+                for (var algorithm : Algorithm.values()) {
+                    try {
+                        prototypes.put(algorithm, MessageDigest.getInstance(algorithm.getName()));
+                    } catch (NoSuchAlgorithmException ignored) {
+                    }
+                }
+            }
+
+            @Override
+            public @NotNull String getName() {
+                return "JDK";
             }
-        },
-        SHA256 {
-            public @NotNull SHA256Digest createDigest() {
-                return new SHA256Digest();
+
+            @Override
+            public boolean isAvailable(@NotNull Algorithm algorithm) {
+                return prototypes.containsKey(algorithm);
+            }
+
+            @Override
+            public @NotNull Hasher createHasher(@NotNull Algorithm algorithm) {
+                Objects.requireNonNull(algorithm, "Argument 'algorithm'");
+                var prototype = prototypes.get(algorithm);
+                if (prototype == null) {
+                    throw new IllegalStateException("Algorithm " + algorithm.getName() + " is not available from the JDK");
+                }
+                MessageDigest digest;
+                try {
+                    // Cloning skips the provider lookup that getInstance does every time
+                    digest = (MessageDigest) prototype.clone();
+                } catch (CloneNotSupportedException cause) {
+                    try {
+                        digest = MessageDigest.getInstance(algorithm.getName());
+                    } catch (NoSuchAlgorithmException unreachable) {
+                        throw new IllegalStateException(unreachable);
+                    }
+                }
+                return new JdkHasher(algorithm, digest);
+            }
+
+            @Override
+            public String toString() {
+                return getName();
             }
         };
 
-        public abstract @NotNull Digest createDigest();
+        // Pure Java BouncyCastle digests, always available
+        Provider BOUNCY_CASTLE = new Provider() {
+            @Override
+            public @NotNull String getName() {
+                return "BouncyCastle";
+            }
+
+            @Override
+            public boolean isAvailable(@NotNull Algorithm algorithm) {
+                return true;
+            }
+
+            @Override
+            public @NotNull Hasher createHasher(@NotNull Algorithm algorithm) {
+                Objects.requireNonNull(algorithm, "Argument 'algorithm'");
+                return new DigestHasher(algorithm, switch (algorithm) {
+                    case SHA1 -> new SHA1Digest();
+                    case SHA256 -> new SHA256Digest();
+                });
+            }
+
+            @Override
+            public String toString() {
+                return getName();
+            }
+        };
     }
 
-    public static final class DigestOutputStream extends OutputStream {
+    private static final class JdkHasher implements Hasher {
+        private final Algorithm algorithm;
+        private final MessageDigest digest;
+
+        private JdkHasher(Algorithm algorithm, MessageDigest digest) {
+            this.algorithm = algorithm;
+            this.digest = digest;
+        }
+
+        @Override
+        public void update(byte value) {
+            digest.update(value);
+        }
+
+        @Override
+        public void update(byte @NotNull [] bytes, int offset, int length) {
+            digest.update(bytes, offset, length);
+        }
+
+        @Override
+        public void update(@NotNull ByteBuffer buffer) {
+            digest.update(buffer.duplicate());
+        }
+
+        @Override
+        public void finish(byte @NotNull [] destination, int offset) {
+            try {
+                digest.digest(destination, offset, algorithm.getLength());
+            } catch (DigestException cause) {
+                throw new IllegalArgumentException("Destination is too small", cause);
+            }
+        }
+
+        @Override
+        public @NotNull Algorithm getAlgorithm() {
+            return algorithm;
+        }
+    }
+
+    private static final class DigestHasher implements Hasher {
+        private final Algorithm algorithm;
         private final Digest digest;
+        private byte[] chunk;
+
+        private DigestHasher(Algorithm algorithm, Digest digest) {
+            this.algorithm = algorithm;
+            this.digest = digest;
+        }
+
+        @Override
+        public void update(byte value) {
+            digest.update(value);
+        }
+
+        @Override
+        public void update(byte @NotNull [] bytes, int offset, int length) {
+            digest.update(bytes, offset, length);
+        }
+
+        @Override
+        public void update(@NotNull ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                digest.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                return;
+            }
+            var source = buffer.duplicate();
+            var chunk = this.chunk;
+            if (chunk == null) {
+                chunk = this.chunk = new byte[8192];
+            }
+            while (source.hasRemaining()) {
+                int count = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, count);
+                digest.update(chunk, 0, count);
+            }
+        }
+
+        @Override
+        public void finish(byte @NotNull [] destination, int offset) {
+            digest.doFinal(destination, offset);
+        }
+
+        @Override
+        public @NotNull Algorithm getAlgorithm() {
+            return algorithm;
+        }
+    }
+
+    private static volatile Provider provider = selectProvider();
+
+    private static Provider selectProvider() {
+        for (var algorithm : Algorithm.values()) {
+            if (!Provider.JDK.isAvailable(algorithm)) {
+                return Provider.BOUNCY_CASTLE;
+            }
+        }
+        return Provider.JDK;
+    }
+
+    public static @NotNull Provider getProvider() {
+        return provider;
+    }
+
+    // Provider used by every digest created afterwards, the JDK unless it lacks an algorithm
+    public static void setProvider(@NotNull Provider provider) {
+        Objects.requireNonNull(provider, "Argument 'provider'");
+        Hash.provider = provider;
+    }
+
+    // Not thread safe, each stream is meant to be written by one thread at a time
+    public static final class DigestOutputStream extends OutputStream {
+        private final Hasher hasher;
         private Hash hash;
         private long count;
 
         public DigestOutputStream(@NotNull Algorithm algorithm) {
             Objects.requireNonNull(algorithm, "Argument 'algorithm'");
-            digest = algorithm.createDigest();
+            hasher = algorithm.createHasher();
         }
 
-        public synchronized long getCount() {
+        public long getCount() {
             return count;
         }
 
         @Override
-        public synchronized void write(int value) {
+        public void write(int value) {
             if (hash != null) {
                 throw new IllegalStateException("Stream is closed");
             }
-            digest.update((byte) value);
+            hasher.update((byte) value);
             count++;
         }
 
         @Override
-        public synchronized void write(byte @NotNull [] bytes, int offset, int length) {
+        public void write(byte @NotNull [] bytes, int offset, int length) {
             Objects.requireNonNull(bytes, "Argument 'bytes'");
             Objects.checkFromIndexSize(offset, length, bytes.length);
             if (hash != null) {
                 throw new IllegalStateException("Stream is closed");
             }
-            digest.update(bytes, offset, length);
+            hasher.update(bytes, offset, length);
             count += length;
         }
 
         @Override
-        public synchronized void close() {
+        public void close() {
             if (hash == null) {
-                hash = new Hash(digest);
+                hash = new Hash(hasher);
             }
         }
 
-        public synchronized @NotNull Hash complete() {
+        public @NotNull Hash complete() {
             close();
             return hash;
         }
@@ -83,29 +311,44 @@ public final class Hash {
     public static @NotNull Hash digest(@NotNull Algorithm algorithm, @NotNull InputStream inputStream) throws IOException {
         Objects.requireNonNull(algorithm, "Argument 'algorithm'");
         Objects.requireNonNull(inputStream, "Argument inputStream'");
-        var digest = algorithm.createDigest();
+        var hasher = algorithm.createHasher();
         var buffer = new byte[8192];
         while (true) {
             int count = inputStream.read(buffer, 0, buffer.length);
-            if (count > 0) digest.update(buffer, 0, count);
+            if (count > 0) hasher.update(buffer, 0, count);
             if (count < 0) break;
         }
-        return new Hash(digest);
+        return new Hash(hasher);
     }
 
     public static @NotNull Hash digest(@NotNull Algorithm algorithm, byte @NotNull [] bytes, int offset, int length) {
         Objects.requireNonNull(algorithm, "Argument 'algorithm'");
         Objects.requireNonNull(bytes, "Argument 'bytes'");
         Objects.checkFromIndexSize(offset, length, bytes.length);
-        Digest digest = algorithm.createDigest();
-        digest.update(bytes, offset, length);
-        return new Hash(digest);
+        var hasher = algorithm.createHasher();
+        hasher.update(bytes, offset, length);
+        return new Hash(hasher);
     }
 
     public static @NotNull Hash digest(@NotNull Algorithm algorithm, byte @NotNull [] bytes) {
         return digest(algorithm, bytes, 0, bytes.length);
     }
 
+    // Digests the remaining bytes without moving the buffer's position
+    public static @NotNull Hash digest(@NotNull Algorithm algorithm, @NotNull ByteBuffer buffer) {
+        Objects.requireNonNull(algorithm, "Argument 'algorithm'");
+        Objects.requireNonNull(buffer, "Argument 'buffer'");
+        var hasher = algorithm.createHasher();
+        hasher.update(buffer);
+        return new Hash(hasher);
+    }
+
+    // Completes a hasher that was fed incrementally
+    public static @NotNull Hash finish(@NotNull Hasher hasher) {
+        Objects.requireNonNull(hasher, "Argument 'hasher'");
+        return new Hash(hasher);
+    }
+
     public static @NotNull Hash of(byte @NotNull [] bytes, int offset, int length) {
         Objects.requireNonNull(bytes, "Argument 'bytes'");
         Objects.checkFromIndexSize(offset, length, bytes.length);
@@ -122,9 +365,9 @@ public final class Hash {
         this.bytes = bytes;
     }
 
-    private Hash(Digest digest) {
-        bytes = new byte[digest.getDigestSize()];
-        digest.doFinal(bytes, 0);
+    private Hash(Hasher hasher) {
+        bytes = new byte[hasher.getAlgorithm().getLength()];
+        hasher.finish(bytes, 0);
     }
 
     public int length() {
@@ -142,6 +385,10 @@ public final class Hash {
 
     @Override
     public int hashCode() {
+        // Digest output is already uniformly distributed, so the leading bytes make a good hash code
+        if (bytes.length >= 4) {
+            return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+        }
         return Arrays.hashCode(bytes);
     }
 
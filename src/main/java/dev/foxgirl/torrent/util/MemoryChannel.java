@@ -0,0 +1,336 @@
+package dev.foxgirl.torrent.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.*;
+
+// In-process AsynchronousByteChannel, created in connected pairs. Each direction is modelled as a
+// link that serializes writes at a fixed bandwidth and delivers them after a fixed latency, so that
+// protocol code can be measured end to end without sockets.
+public final class MemoryChannel implements AsynchronousByteChannel {
+
+    // Bandwidth in bytes per second and chunk size in bytes, zero for unlimited
+    public record Options(long bandwidth, long latencyNanos, int chunkSize) {
+        public static final Options UNLIMITED = new Options(0, 0, 0);
+
+        public Options {
+            if (bandwidth < 0) {
+                throw new IllegalArgumentException("Bandwidth is negative");
+            }
+            if (latencyNanos < 0) {
+                throw new IllegalArgumentException("Latency is negative");
+            }
+            if (chunkSize < 0) {
+                throw new IllegalArgumentException("Chunk size is negative");
+            }
+        }
+
+        public static @NotNull Options of(long bandwidth, long latencyMs, int chunkSize) {
+            return new Options(bandwidth, TimeUnit.MILLISECONDS.toNanos(latencyMs), chunkSize);
+        }
+    }
+
+    public record Pair(@NotNull MemoryChannel first, @NotNull MemoryChannel second) {
+    }
+
+    public static @NotNull Pair pair() {
+        return pair(Options.UNLIMITED);
+    }
+
+    public static @NotNull Pair pair(@NotNull Options options) {
+        return pair(options, DefaultExecutors.getDefaultExecutor(), DefaultExecutors.getScheduledExecutor());
+    }
+
+    // Completion handlers run on the executor, the scheduler only times delayed completions
+    public static @NotNull Pair pair(@NotNull Options options, @NotNull Executor executor, @NotNull ScheduledExecutorService scheduler) {
+        Objects.requireNonNull(options, "Argument 'options'");
+        Objects.requireNonNull(executor, "Argument 'executor'");
+        Objects.requireNonNull(scheduler, "Argument 'scheduler'");
+        var forward = new Link(options, executor, scheduler);
+        var backward = new Link(options, executor, scheduler);
+        return new Pair(new MemoryChannel(backward, forward), new MemoryChannel(forward, backward));
+    }
+
+    private record Packet(@Nullable ByteBuffer data, long deliveryTime) {
+        private boolean isEndOfStream() {
+            return data == null;
+        }
+    }
+
+    private static final class PendingRead<A> {
+        private final ByteBuffer buffer;
+        private final A attachment;
+        private final CompletionHandler<Integer, ? super A> handler;
+
+        private PendingRead(ByteBuffer buffer, A attachment, CompletionHandler<Integer, ? super A> handler) {
+            this.buffer = buffer;
+            this.attachment = attachment;
+            this.handler = handler;
+        }
+
+        private void completed(int result) {
+            handler.completed(result, attachment);
+        }
+
+        private void failed(Throwable cause) {
+            handler.failed(cause, attachment);
+        }
+    }
+
+    // One direction of the pair, written by one channel and read by the other
+    private static final class Link {
+        private final Options options;
+        private final Executor executor;
+        private final ScheduledExecutorService scheduler;
+
+        // Packets in delivery order, delivery times never decrease
+        private final ArrayDeque<Packet> packets = new ArrayDeque<>();
+        private long idleTime = System.nanoTime();
+
+        private boolean isWriting = false;
+        private boolean isWriterClosed = false;
+        private boolean isReaderClosed = false;
+        private PendingRead<?> pendingRead;
+
+        private Link(Options options, Executor executor, ScheduledExecutorService scheduler) {
+            this.options = options;
+            this.executor = executor;
+            this.scheduler = scheduler;
+        }
+
+        private void runAt(long time, Runnable task) {
+            long delay = time - System.nanoTime();
+            if (delay > 0) {
+                scheduler.schedule(() -> executor.execute(task), delay, TimeUnit.NANOSECONDS);
+            } else {
+                executor.execute(task);
+            }
+        }
+
+        // Returns the time the link finishes sending the bytes, must hold the lock
+        private long transmit(int length) {
+            long now = System.nanoTime();
+            long start = idleTime - now > 0 ? idleTime : now;
+            long duration = options.bandwidth() > 0 ? length * 1_000_000_000L / options.bandwidth() : 0;
+            return idleTime = start + duration;
+        }
+
+        private <A> void write(ByteBuffer buffer, A attachment, CompletionHandler<Integer, ? super A> handler) {
+            long sentTime;
+            int count;
+            synchronized (this) {
+                if (isWriterClosed) {
+                    executor.execute(() -> handler.failed(new ClosedChannelException(), attachment));
+                    return;
+                }
+                if (isWriting) {
+                    throw new WritePendingException();
+                }
+                if (isReaderClosed) {
+                    // Remote end is gone, behave like a reset connection
+                    executor.execute(() -> handler.failed(new ClosedChannelException(), attachment));
+                    return;
+                }
+
+                count = buffer.remaining();
+                if (options.chunkSize() > 0) {
+                    count = Math.min(count, options.chunkSize());
+                }
+                var data = ByteBuffer.allocate(count);
+                data.put(0, buffer, buffer.position(), count).limit(count);
+                buffer.position(buffer.position() + count);
+
+                sentTime = transmit(count);
+                packets.addLast(new Packet(data, sentTime + options.latencyNanos()));
+                isWriting = true;
+                if (pendingRead != null) {
+                    runAt(sentTime + options.latencyNanos(), this::poll);
+                }
+            }
+            int result = count;
+            runAt(sentTime, () -> {
+                synchronized (this) {
+                    isWriting = false;
+                }
+                handler.completed(result, attachment);
+            });
+        }
+
+        private <A> void read(ByteBuffer buffer, A attachment, CompletionHandler<Integer, ? super A> handler) {
+            if (buffer.isReadOnly()) {
+                throw new IllegalArgumentException("Buffer is read-only");
+            }
+            synchronized (this) {
+                if (isReaderClosed) {
+                    executor.execute(() -> handler.failed(new ClosedChannelException(), attachment));
+                    return;
+                }
+                if (pendingRead != null) {
+                    throw new ReadPendingException();
+                }
+                pendingRead = new PendingRead<>(buffer, attachment, handler);
+            }
+            poll();
+        }
+
+        // Completes the pending read if any packets have been delivered
+        private void poll() {
+            PendingRead<?> read;
+            int result;
+            synchronized (this) {
+                read = pendingRead;
+                if (read == null) {
+                    return;
+                }
+                var packet = packets.peekFirst();
+                if (packet == null) {
+                    return;
+                }
+                if (packet.deliveryTime() - System.nanoTime() > 0) {
+                    runAt(packet.deliveryTime(), this::poll);
+                    return;
+                }
+                if (read.buffer.hasRemaining()) {
+                    result = drain(read.buffer);
+                } else {
+                    result = packet.isEndOfStream() ? -1 : 0;
+                }
+                pendingRead = null;
+            }
+            if (result == 0 && read.buffer.hasRemaining()) {
+                // Only the end of stream is left
+                result = -1;
+            }
+            int finalResult = result;
+            executor.execute(() -> read.completed(finalResult));
+        }
+
+        // Copies delivered bytes into the buffer, must hold the lock
+        private int drain(ByteBuffer buffer) {
+            int limit = options.chunkSize() > 0 ? options.chunkSize() : Integer.MAX_VALUE;
+            int count = 0;
+            long now = System.nanoTime();
+            while (count < limit && buffer.hasRemaining()) {
+                var packet = packets.peekFirst();
+                if (packet == null || packet.isEndOfStream() || packet.deliveryTime() - now > 0) {
+                    break;
+                }
+                var data = packet.data();
+                int length = Math.min(Math.min(data.remaining(), buffer.remaining()), limit - count);
+                buffer.put(buffer.position(), data, data.position(), length);
+                buffer.position(buffer.position() + length);
+                data.position(data.position() + length);
+                count += length;
+                if (!data.hasRemaining()) {
+                    packets.removeFirst();
+                }
+            }
+            return count;
+        }
+
+        private void closeWriter() {
+            synchronized (this) {
+                if (isWriterClosed) {
+                    return;
+                }
+                isWriterClosed = true;
+                long sentTime = transmit(0);
+                packets.addLast(new Packet(null, sentTime + options.latencyNanos()));
+            }
+            poll();
+        }
+
+        private void closeReader() {
+            PendingRead<?> read;
+            synchronized (this) {
+                if (isReaderClosed) {
+                    return;
+                }
+                isReaderClosed = true;
+                packets.clear();
+                read = pendingRead;
+                pendingRead = null;
+            }
+            if (read != null) {
+                executor.execute(() -> read.failed(new AsynchronousCloseException()));
+            }
+        }
+    }
+
+    private final Link incoming;
+    private final Link outgoing;
+
+    private volatile boolean isOpen = true;
+
+    private MemoryChannel(Link incoming, Link outgoing) {
+        this.incoming = incoming;
+        this.outgoing = outgoing;
+    }
+
+    public @NotNull Options getOptions() {
+        return outgoing.options;
+    }
+
+    @Override
+    public <A> void read(@NotNull ByteBuffer dst, A attachment, @NotNull CompletionHandler<Integer, ? super A> handler) {
+        Objects.requireNonNull(dst, "Argument 'dst'");
+        Objects.requireNonNull(handler, "Argument 'handler'");
+        incoming.read(dst, attachment, handler);
+    }
+
+    @Override
+    public @NotNull Future<Integer> read(@NotNull ByteBuffer dst) {
+        var future = new CompletableFuture<Integer>();
+        read(dst, null, new FutureHandler(future));
+        return future;
+    }
+
+    @Override
+    public <A> void write(@NotNull ByteBuffer src, A attachment, @NotNull CompletionHandler<Integer, ? super A> handler) {
+        Objects.requireNonNull(src, "Argument 'src'");
+        Objects.requireNonNull(handler, "Argument 'handler'");
+        outgoing.write(src, attachment, handler);
+    }
+
+    @Override
+    public @NotNull Future<Integer> write(@NotNull ByteBuffer src) {
+        var future = new CompletableFuture<Integer>();
+        write(src, null, new FutureHandler(future));
+        return future;
+    }
+
+    private record FutureHandler(CompletableFuture<Integer> future) implements CompletionHandler<Integer, Object> {
+        @Override
+        public void completed(Integer result, Object attachment) {
+            future.complete(result);
+        }
+        @Override
+        public void failed(Throwable cause, Object attachment) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    // Bytes already written are still delivered to the other end, followed by end of stream
+    @Override
+    public void close() {
+        isOpen = false;
+        outgoing.closeWriter();
+        incoming.closeReader();
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "MemoryChannel{options=" + getOptions() + ", isOpen=" + isOpen + "}";
+    }
+
+}
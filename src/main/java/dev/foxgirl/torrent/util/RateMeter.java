@@ -0,0 +1,57 @@
+package dev.foxgirl.torrent.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+// Transfer rate in bytes per second, smoothed over windows of at least a second so that
+// a single burst doesn't dominate
+public final class RateMeter {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double SMOOTHING = 0.5;
+
+    private final @NotNull Clock clock;
+
+    private long windowStart;
+    private long windowBytes;
+    private double rate;
+
+    public RateMeter() {
+        this(Clock.SYSTEM);
+    }
+
+    public RateMeter(@NotNull Clock clock) {
+        Objects.requireNonNull(clock, "Argument 'clock'");
+        this.clock = clock;
+        this.windowStart = clock.nanoTime();
+    }
+
+    public synchronized void add(long bytes) {
+        roll(clock.nanoTime());
+        windowBytes += bytes;
+    }
+
+    public synchronized double getRate() {
+        roll(clock.nanoTime());
+        return rate;
+    }
+
+    private void roll(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW_NANOS) {
+            return;
+        }
+        // A window left open while idle averages over its whole length, which decays the rate
+        rate = rate * SMOOTHING + (windowBytes * 1e9 / elapsed) * (1.0 - SMOOTHING);
+        windowStart = now;
+        windowBytes = 0;
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "RateMeter{rate=" + getRate() + "}";
+    }
+
+}
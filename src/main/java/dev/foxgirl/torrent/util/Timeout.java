@@ -4,8 +4,6 @@ import org.jetbrains.annotations.NotNull;
 
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.BiConsumer;
 
@@ -15,8 +13,8 @@ public final class Timeout {
         private final Timeout timeout;
         private final CompletableFuture<T> future;
 
-        private CompletableFutureTimeout(CompletableFuture<T> future) {
-            this.timeout = new Timeout(this);
+        private CompletableFutureTimeout(TimerWheel timerWheel, CompletableFuture<T> future) {
+            this.timeout = new Timeout(timerWheel, this);
             this.future = future.whenComplete(this);
         }
 
@@ -39,29 +37,42 @@ public final class Timeout {
     }
 
     public static <T> @NotNull CompletableFuture<T> timeoutCompletableFuture(long ms, CompletableFuture<T> future) {
+        return timeoutCompletableFuture(DefaultExecutors.getTimerWheel(), ms, future);
+    }
+
+    public static <T> @NotNull CompletableFuture<T> timeoutCompletableFuture(@NotNull TimerWheel timerWheel, long ms, CompletableFuture<T> future) {
+        Objects.requireNonNull(timerWheel, "Argument 'timerWheel'");
         Objects.requireNonNull(future, "Argument 'future'");
-        return new CompletableFutureTimeout<>(future).start(ms);
+        return new CompletableFutureTimeout<>(timerWheel, future).start(ms);
     }
 
+    private final TimerWheel timerWheel;
     private final Runnable action;
-    private ScheduledFuture<?> future;
+    private TimerWheel.Handle handle;
 
     public Timeout(@NotNull Runnable action) {
+        this(DefaultExecutors.getTimerWheel(), action);
+    }
+
+    // The action runs on the timer wheel's executor
+    public Timeout(@NotNull TimerWheel timerWheel, @NotNull Runnable action) {
+        Objects.requireNonNull(timerWheel, "Argument 'timerWheel'");
         Objects.requireNonNull(action, "Argument 'action'");
+        this.timerWheel = timerWheel;
         this.action = action;
     }
 
     public synchronized void cancel() {
-        if (future != null) {
-            future.cancel(true);
+        if (handle != null) {
+            handle.cancel();
         }
-        future = null;
+        handle = null;
     }
 
     public synchronized void start(long ms) {
         cancel();
         if (ms > 0) {
-            future = DefaultExecutors.getScheduledExecutor().schedule(action, ms, TimeUnit.MILLISECONDS);
+            handle = timerWheel.schedule(action, ms);
         }
     }
 
@@ -0,0 +1,232 @@
+package dev.foxgirl.torrent.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hashed timer wheel with coarse ticks, starting and cancelling a timer is O(1) and never blocks.
+// Timers further away than one revolution wait in their slot for the remaining number of rounds.
+public final class TimerWheel implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimerWheel.class);
+
+    public final class Handle {
+        private static final int STATE_PENDING = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        private final Runnable action;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+
+        // Only accessed by the worker thread
+        private long remainingRounds;
+        private Slot slot;
+        private Handle prev;
+        private Handle next;
+
+        private Handle(Runnable action, long deadline) {
+            this.action = action;
+            this.deadline = deadline;
+        }
+
+        public boolean cancel() {
+            if (state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+                cancelledHandles.add(this);
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+        public boolean isExpired() {
+            return state.get() == STATE_EXPIRED;
+        }
+
+        private void expire() {
+            if (state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+                try {
+                    executor.execute(action);
+                } catch (RejectedExecutionException ignored) {
+                } catch (Throwable cause) {
+                    LOGGER.warn("Timer action {} failed", action, cause);
+                }
+            }
+        }
+
+        @Override
+        public @NotNull String toString() {
+            return "Handle{action=" + action + ", state=" + state.get() + "}";
+        }
+    }
+
+    private static final class Slot {
+        private Handle head;
+        private Handle tail;
+
+        private void add(Handle handle) {
+            handle.slot = this;
+            if (head == null) {
+                head = tail = handle;
+            } else {
+                tail.next = handle;
+                handle.prev = tail;
+                tail = handle;
+            }
+        }
+
+        private void remove(Handle handle) {
+            var next = handle.next;
+            if (handle.prev != null) handle.prev.next = next;
+            if (handle.next != null) handle.next.prev = handle.prev;
+            if (handle == head) head = next;
+            if (handle == tail) tail = handle.prev;
+            handle.prev = null;
+            handle.next = null;
+            handle.slot = null;
+        }
+
+        private void expire() {
+            var handle = head;
+            while (handle != null) {
+                var next = handle.next;
+                if (handle.remainingRounds <= 0) {
+                    remove(handle);
+                    handle.expire();
+                } else if (handle.isCancelled()) {
+                    remove(handle);
+                } else {
+                    handle.remainingRounds--;
+                }
+                handle = next;
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final Slot[] slots;
+    private final Executor executor;
+
+    private final Queue<Handle> addedHandles = new ConcurrentLinkedQueue<>();
+    private final Queue<Handle> cancelledHandles = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+    private final Thread thread;
+    private final long startTime;
+
+    // Only accessed by the worker thread
+    private long tick;
+
+    public TimerWheel(long tickMs, int slotCount, @NotNull Executor executor) {
+        Objects.requireNonNull(executor, "Argument 'executor'");
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("Tick duration is not positive");
+        }
+        if (slotCount <= 0 || Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("Slot count is not a power of two");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.mask = slotCount - 1;
+        this.slots = new Slot[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new Slot();
+        }
+        this.executor = executor;
+        this.startTime = System.nanoTime();
+        this.thread = new Thread(this::run, "TimerWheel");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public boolean isClosed() {
+        return isClosed.get();
+    }
+
+    private void assertNotClosed() {
+        if (isClosed()) {
+            throw new IllegalStateException("Timer wheel is closed");
+        }
+    }
+
+    public @NotNull Handle schedule(@NotNull Runnable action, long delayMs) {
+        Objects.requireNonNull(action, "Argument 'action'");
+        assertNotClosed();
+        var deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMs, 0));
+        var handle = new Handle(action, deadline);
+        addedHandles.add(handle);
+        return handle;
+    }
+
+    private void run() {
+        while (!isClosed()) {
+            var deadline = tickNanos * (tick + 1);
+            var sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException ignored) {
+                }
+                continue;
+            }
+            try {
+                removeCancelledHandles();
+                transferAddedHandles();
+                slots[(int) (tick & mask)].expire();
+            } catch (Throwable cause) {
+                LOGGER.error("Timer wheel tick failed", cause);
+            }
+            tick++;
+        }
+    }
+
+    private void removeCancelledHandles() {
+        Handle handle;
+        while ((handle = cancelledHandles.poll()) != null) {
+            if (handle.slot != null) {
+                handle.slot.remove(handle);
+            }
+        }
+    }
+
+    private void transferAddedHandles() {
+        // Bounded so that a flood of new timers can't stall expiry
+        for (int i = 0; i < 100_000; i++) {
+            var handle = addedHandles.poll();
+            if (handle == null) {
+                break;
+            }
+            if (handle.isCancelled()) {
+                continue;
+            }
+            long ticks = Math.max(handle.deadline / tickNanos, tick);
+            handle.remainingRounds = (ticks - tick) / slots.length;
+            slots[(int) (ticks & mask)].add(handle);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (isClosed.getAndSet(true)) {
+            return;
+        }
+        thread.interrupt();
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "TimerWheel{tickMs=" + TimeUnit.NANOSECONDS.toMillis(tickNanos) + ", slots=" + slots.length + ", isClosed=" + isClosed() + "}";
+    }
+
+}
@@ -0,0 +1,127 @@
+package dev.foxgirl.torrent.util;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// SHA-1 over several equal length messages at once, one message per vector lane. Only loaded by
+// BatchHasher once it has checked that the incubating Vector API module is present.
+final class VectorSha1 implements BatchHasher.Engine {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private static final int BLOCK_LENGTH = 64;
+
+    private static final int[] INITIAL_STATE = { 0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0 };
+
+    private final int laneCount = SPECIES.length();
+
+    // Everything is laid out lane minor, word t of lane l is at t * laneCount + l
+    private final int[] state = new int[5 * laneCount];
+    private final int[] schedule = new int[80 * laneCount];
+    private final int[] offsets = new int[laneCount];
+    private final ByteBuffer padding = ByteBuffer.allocate(2 * BLOCK_LENGTH * laneCount);
+
+    @Override
+    public int getLaneCount() {
+        return laneCount;
+    }
+
+    @Override
+    public void digest(ByteBuffer buffer, int offset, int length, byte[] output) {
+        buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+
+        for (int i = 0; i < 5; i++) {
+            for (int l = 0; l < laneCount; l++) state[i * laneCount + l] = INITIAL_STATE[i];
+        }
+
+        int blockCount = length / BLOCK_LENGTH;
+        for (int block = 0; block < blockCount; block++) {
+            for (int l = 0; l < laneCount; l++) offsets[l] = offset + l * length + block * BLOCK_LENGTH;
+            compress(buffer, offsets);
+        }
+
+        // Every lane has the same length, so they all take the same number of padding blocks
+        int tail = length % BLOCK_LENGTH;
+        int paddingLength = tail < BLOCK_LENGTH - 8 ? BLOCK_LENGTH : 2 * BLOCK_LENGTH;
+        padding.clear();
+        for (int l = 0; l < laneCount; l++) {
+            int start = l * 2 * BLOCK_LENGTH;
+            padding.put(start, buffer, offset + l * length + blockCount * BLOCK_LENGTH, tail);
+            padding.put(start + tail, (byte) 0x80);
+            for (int i = start + tail + 1; i < start + paddingLength - 8; i++) padding.put(i, (byte) 0);
+            padding.putLong(start + paddingLength - 8, (long) length * 8);
+        }
+        for (int block = 0; block < paddingLength / BLOCK_LENGTH; block++) {
+            for (int l = 0; l < laneCount; l++) offsets[l] = l * 2 * BLOCK_LENGTH + block * BLOCK_LENGTH;
+            compress(padding, offsets);
+        }
+
+        var result = ByteBuffer.wrap(output).order(ByteOrder.BIG_ENDIAN);
+        for (int l = 0; l < laneCount; l++) {
+            for (int i = 0; i < 5; i++) result.putInt((l * 5 + i) * 4, state[i * laneCount + l]);
+        }
+    }
+
+    private void compress(ByteBuffer buffer, int[] offsets) {
+        int n = laneCount;
+        var w = schedule;
+
+        for (int t = 0; t < 16; t++) {
+            for (int l = 0; l < n; l++) w[t * n + l] = buffer.getInt(offsets[l] + t * 4);
+        }
+        for (int t = 16; t < 80; t++) {
+            IntVector.fromArray(SPECIES, w, (t - 3) * n)
+                .lanewise(VectorOperators.XOR, IntVector.fromArray(SPECIES, w, (t - 8) * n))
+                .lanewise(VectorOperators.XOR, IntVector.fromArray(SPECIES, w, (t - 14) * n))
+                .lanewise(VectorOperators.XOR, IntVector.fromArray(SPECIES, w, (t - 16) * n))
+                .lanewise(VectorOperators.ROL, 1)
+                .intoArray(w, t * n);
+        }
+
+        var a0 = IntVector.fromArray(SPECIES, state, 0);
+        var b0 = IntVector.fromArray(SPECIES, state, n);
+        var c0 = IntVector.fromArray(SPECIES, state, 2 * n);
+        var d0 = IntVector.fromArray(SPECIES, state, 3 * n);
+        var e0 = IntVector.fromArray(SPECIES, state, 4 * n);
+        var a = a0;
+        var b = b0;
+        var c = c0;
+        var d = d0;
+        var e = e0;
+
+        for (int t = 0; t < 80; t++) {
+            IntVector f;
+            int k;
+            if (t < 20) {
+                f = b.and(c).or(b.not().and(d));
+                k = 0x5A827999;
+            } else if (t < 40) {
+                f = b.lanewise(VectorOperators.XOR, c).lanewise(VectorOperators.XOR, d);
+                k = 0x6ED9EBA1;
+            } else if (t < 60) {
+                f = b.and(c).or(b.and(d)).or(c.and(d));
+                k = 0x8F1BBCDC;
+            } else {
+                f = b.lanewise(VectorOperators.XOR, c).lanewise(VectorOperators.XOR, d);
+                k = 0xCA62C1D6;
+            }
+            var temp = a.lanewise(VectorOperators.ROL, 5).add(f).add(e).add(k).add(IntVector.fromArray(SPECIES, w, t * n));
+            e = d;
+            d = c;
+            c = b.lanewise(VectorOperators.ROL, 30);
+            b = a;
+            a = temp;
+        }
+
+        a.add(a0).intoArray(state, 0);
+        b.add(b0).intoArray(state, n);
+        c.add(c0).intoArray(state, 2 * n);
+        d.add(d0).intoArray(state, 3 * n);
+        e.add(e0).intoArray(state, 4 * n);
+    }
+
+}